@@ -7,34 +7,78 @@ package handan;
 /**
  * Importsatser
  */
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.math.BigDecimal;
 import java.math.RoundingMode;
 import java.text.NumberFormat;
+import java.time.Instant;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
-import java.util.ArrayList;
+import java.time.format.DateTimeParseException;
+import java.util.AbstractList;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Abstrakt klass för bankkonto.
  */
 public abstract class Account implements Serializable {
 
+  /**
+   * Kontotyperna. Typen följer av klassen och sparas därför inte i varje konto.
+   */
+  protected enum AccountType {
+    SAVINGS("Sparkonto"), CREDIT("Kreditkonto");
+
+    private final String label;
+
+    AccountType(String label) {
+      this.label = label;
+    }
+
+    @Override
+    public String toString() {
+      return label;
+    }
+  }
+
   /**
    * Versionshanterings variabel till deserialisering
    */
   private static final long serialVersionUID = 611114L;
-  private static final int START_ACCOUNT_NUMBER = 1000; // Startvärde för kontonummer
   private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
   private static final Locale SWEDISH_LOCALE = Locale.forLanguageTag("sv-SE");
-  private static final String DEFAULT_ACCOUNT_NAME = "Sparkonto";
 
   /**
-   * Variabel som är gemensam för alla konton
+   * Gemensamma räntor och gränser. Alla konton har samma få värden, så varje
+   * värde finns bara en gång i minnet i stället för en gång per konto.
    */
-  private static int lastAssignedNumber = START_ACCOUNT_NUMBER; // Kontonummer
+  private static final Map<BigDecimal, BigDecimal> sharedValues = new ConcurrentHashMap<>();
+
+  /**
+   * Formaterar ett konto, används både av kontot och av bankens läsvy.
+   *
+   * @param accountNumber
+   * @param balance
+   * @param accountType
+   * @param rate          Räntan som gäller till beloppet
+   * @return "kontonr saldo kontotyp procent %"
+   */
+  protected static String formatAccountInfo(int accountNumber, BigDecimal balance, String accountType,
+      BigDecimal rate) {
+    var percentFormat = NumberFormat.getPercentInstance(SWEDISH_LOCALE);
+    percentFormat.setMaximumFractionDigits(1); // Anger att vi vill ha max 1 decimal
+    var strPercent = percentFormat.format(rate.divide(BigDecimal.valueOf(100), 2, RoundingMode.HALF_UP)).replace(',',
+        '.');
+    return String.format("%d %s %s %s", accountNumber, formatCurrency(balance), accountType, strPercent);
+  }
 
   /**
    * Protected hjälprutin till Number som byter "," till "." Underlättar vid
@@ -49,56 +93,146 @@ public abstract class Account implements Serializable {
   }
 
   /**
-   * Hjälprutin som hämtar senaste kontonummer
+   * Hjälprutin som formaterar en transaktion som "datum belopp Saldo: saldo"
+   *
+   * @param log   Kontots transaktioner
+   * @param index Vilken transaktion
+   * @return texten
+   */
+  protected static String formatTransaction(TransactionLog log, int index) {
+    return formatTransaction(log.getTime(index), log.getAmount(index), log.getBalance(index));
+  }
+
+  /**
+   * Hjälprutin som formaterar en transaktion som "datum belopp Saldo: saldo"
+   *
+   * @param epochSecond Tid
+   * @param amount      Ändrat belopp i öre
+   * @param balance     Nytt saldo i öre
+   * @return texten
+   */
+  protected static String formatTransaction(long epochSecond, long amount, long balance) {
+    var time = Instant.ofEpochSecond(epochSecond).atZone(ZoneId.systemDefault());
+    return String.format("%s %s Saldo: %s", DATE_FORMAT.format(time), formatCurrency(fromMinor(amount)),
+        formatCurrency(fromMinor(balance)));
+  }
+
+  /**
+   * Hjälprutin som gör om öre till kronor
    *
-   * @return lastAssignedNumber
+   * @param minor
+   * @return belopp i kronor
    */
-  protected static int getLastAssignedNumber() {
-    return lastAssignedNumber;
+  protected static BigDecimal fromMinor(long minor) {
+    return BigDecimal.valueOf(minor, 2);
   }
 
   /**
-   * Hjälprutin som sätter senaste kontonummer
+   * Hjälprutin som läser ett belopp skrivet med formatCurrency, t.ex. "−2 500.00
+   * kr" med hårda mellanslag och minustecknet U+2212
    *
-   * @param number
+   * @param text
+   * @return beloppet
+   * @throws NumberFormatException om texten inte är ett belopp
    */
-  protected static void setLastAssignedNumber(int number) {
-    lastAssignedNumber = number;
+  private static BigDecimal parseCurrency(String text) {
+    var amount = new BigDecimal(text.replaceAll("[^0-9.]", ""));
+    return text.indexOf('-') >= 0 || text.indexOf('\u2212') >= 0 ? amount.negate() : amount;
+  }
+
+  /**
+   * Hjälprutin som ger den gemensamma instansen av ett värde, t.ex. en ränta
+   *
+   * @param value
+   * @return samma värde, delat mellan alla konton
+   */
+  protected static BigDecimal sharedValue(BigDecimal value) {
+    return value == null ? null : sharedValues.computeIfAbsent(value, v -> v);
+  }
+
+  /**
+   * Hjälprutin som gör om ett belopp till öre
+   *
+   * @param amount
+   * @return öre
+   */
+  protected static long toMinor(BigDecimal amount) {
+    return amount.setScale(2, RoundingMode.HALF_UP).unscaledValue().longValueExact();
+  }
+
+  /**
+   * Hjälprutin som gör om transaktioner sparade som text, som i äldre filer, till
+   * en TransactionLog. Texten är "datum belopp Saldo: saldo" från
+   * formatTransaction.
+   *
+   * @param lines Transaktionerna som text
+   * @return lagringen
+   * @throws InvalidObjectException om en rad inte går att tolka
+   */
+  private static TransactionLog toTransactionLog(List<?> lines) throws InvalidObjectException {
+    var log = TransactionLog.create();
+    for (var line : lines) {
+      var text = String.valueOf(line);
+      var parts = text.length() > 19 ? text.substring(20).split(" Saldo: ") : new String[0];
+      if (parts.length != 2) {
+        throw new InvalidObjectException("Okänd transaktion: " + text);
+      }
+      try {
+        var time = LocalDateTime.parse(text.substring(0, 19), DATE_FORMAT).atZone(ZoneId.systemDefault());
+        log.add(time.toEpochSecond(), toMinor(parseCurrency(parts[0])), toMinor(parseCurrency(parts[1])));
+      } catch (DateTimeParseException | NumberFormatException | ArithmeticException e) {
+        throw new InvalidObjectException("Okänd transaktion: " + text);
+      }
+    }
+    return log;
   }
 
   /**
    * Variabler för enskilda konton
    */
-  private final int accountNumber; // 1001, 1002, 1003, 1004 osv.
-  private final String accountType;
+  private int accountNumber; // 1001, 1002, 1003, 1004 osv. Sätts bara i konstruktorn och readObject
   private BigDecimal balance;
-  private final BigDecimal interestRate;
-  private final List<String> transactions;
+  private BigDecimal interestRate; // Delad, se sharedValue
+  private TransactionLog transactions; // Sätts bara i konstruktorn och readObject
+  private int slot; // Plats i records, -1 utan plats. Sparas så att kontot kan ta tillbaka platsen vid start
 
   /**
-   * Default Konstruktor för ett nytt bankkonto
+   * Bankens lager för kontonas tillstånd, eller null om tillståndet ligger i
+   * fälten. Med lagret är saldo, räntor, kreditgräns och uttagsflagga null eller
+   * false i objektet och finns bara i posten. Sätts av banken med attach.
    */
-  protected Account() {
-    this(DEFAULT_ACCOUNT_NAME, 0, 2.4, false);
-  }
+  protected transient MappedAccountStore records;
 
   /**
    * Konstruktor för nytt bankkonto
    *
-   * @param accountType  Sparkonto eller Kreditkonto
-   * @param balance      start belopp
-   * @param interestRate 2.4% eller 1.1% på insatta pengar
-   * @param addNumber
+   * @param accountNumber Från bankens AccountNumbers
+   * @param balance       start belopp
+   * @param interestRate  2.4% eller 1.1% på insatta pengar
    */
-  protected Account(String accountType, int balance, double interestRate, boolean addNumber) {
-    if (addNumber) {
-      lastAssignedNumber++; // Ska bara räknas upp med 1 ibland.
-    }
-    this.accountNumber = lastAssignedNumber;
-    this.accountType = accountType;
+  protected Account(int accountNumber, int balance, double interestRate) {
+    this.accountNumber = accountNumber;
     this.balance = BigDecimal.valueOf(balance);
-    this.interestRate = BigDecimal.valueOf(interestRate);
-    this.transactions = new ArrayList<>();
+    this.interestRate = sharedValue(BigDecimal.valueOf(interestRate));
+    this.transactions = TransactionLog.create();
+    this.slot = -1;
+  }
+
+  /**
+   * Flyttar kontots tillstånd till en post i bankens lager. Efter remap tas
+   * platsen som sparades med kontot tillbaka om posten stämmer, annars tas en ny
+   * plats. Anropas av banken i dess tråd.
+   *
+   * @param store    Bankens lager
+   * @param remapped Om lagret just har mappats om, se MappedAccountStore.remap
+   */
+  protected void attach(MappedAccountStore store, boolean remapped) {
+    var claimed = remapped && store.claim(slot, accountNumber, getType(), toMinor(balance));
+    records = store;
+    if (!claimed) {
+      slot = store.allocate(accountNumber, getType());
+    }
+    moveToRecord(!claimed);
   }
 
   /**
@@ -137,7 +271,7 @@ public abstract class Account implements Serializable {
   }
 
   protected BigDecimal getAccountBalance() {
-    return balance;
+    return records == null ? balance : fromMinor(records.getBalance(slot));
   }
 
   /**
@@ -150,12 +284,50 @@ public abstract class Account implements Serializable {
   }
 
   /**
-   * Hämtar pekare till en lista med transaktioner
+   * Hämtar kontotyp
+   *
+   * @return Sparkonto eller Kreditkonto
+   */
+  protected String getAccountType() {
+    return getType().toString();
+  }
+
+  /**
+   * Hämtar en lista med transaktionerna som text. Listan läser direkt ur
+   * lagringen och formaterar en transaktion först när den hämtas.
    *
-   * @return pekare
+   * @return lista med "datum belopp Saldo: saldo"
    */
   protected List<String> getAccountTransactions() {
-    return transactions;
+    return new AbstractList<>() {
+      @Override
+      public String get(int index) {
+        return formatTransaction(transactions, index);
+      }
+
+      @Override
+      public int size() {
+        return transactions.size();
+      }
+    };
+  }
+
+  /**
+   * Hämtar räntan som gäller till saldot just nu
+   *
+   * @return procent
+   */
+  protected BigDecimal getCurrentRate() {
+    return getInterestRate();
+  }
+
+  /**
+   * Hämtar räntan som gäller när saldot är negativt
+   *
+   * @return procent
+   */
+  protected BigDecimal getDebtRate() {
+    return getInterestRate();
   }
 
   /**
@@ -164,16 +336,41 @@ public abstract class Account implements Serializable {
    * @return double värdet
    */
   protected BigDecimal getInterestRate() {
-    return interestRate;
+    return records == null ? interestRate : records.getRate(slot, MappedAccountStore.RATE);
+  }
+
+  /**
+   * Hämtar kontots plats i records
+   *
+   * @return platsen
+   */
+  protected int getSlot() {
+    return slot;
   }
 
+  /**
+   * Hämtar lagringen med transaktioner i öre
+   *
+   * @return transactions
+   */
+  protected TransactionLog getTransactionLog() {
+    return transactions;
+  }
+
+  /**
+   * Hämtar kontotypen
+   *
+   * @return SAVINGS eller CREDIT
+   */
+  protected abstract AccountType getType();
+
   /**
    * Vid bearbetning av kontot med kontonummer saldo kontotyp.
    *
    * @return "kontonr saldo kontotyp <procent %>"
    */
   protected String infoAccount() {
-    return String.format("%d %s %s", accountNumber, formatCurrency(balance), accountType);
+    return String.format("%d %s %s", accountNumber, formatCurrency(getAccountBalance()), getType());
   }
 
   /**
@@ -184,23 +381,79 @@ public abstract class Account implements Serializable {
    * @return
    */
   protected String makeAccountInfo(BigDecimal rate) {
-    var percentFormat = NumberFormat.getPercentInstance(SWEDISH_LOCALE);
-    percentFormat.setMaximumFractionDigits(1); // Anger att vi vill ha max 1 decimal
-    var strPercent = percentFormat.format(rate.divide(BigDecimal.valueOf(100), 2, RoundingMode.HALF_UP)).replace(',',
-        '.');
-    return String.format("%d %s %s %s", accountNumber, formatCurrency(balance), accountType, strPercent);
+    return formatAccountInfo(accountNumber, getAccountBalance(), getAccountType(), rate);
   }
 
   /**
-   * Privatrutin för att registrera en transaktion med datum, föndrat belopp och
-   * nytt saldo.
+   * Flyttar saldo och ränta från fälten till kontots post i records.
+   * Subklasserna flyttar sina egna fält efter detta.
    *
-   * @param amount
+   * @param write false om posten redan har värdena, efter remap
+   */
+  protected void moveToRecord(boolean write) {
+    if (write) {
+      records.setBalance(slot, toMinor(balance));
+      records.setRate(slot, MappedAccountStore.RATE, interestRate);
+    }
+    balance = null;
+    interestRate = null;
+  }
+
+  /**
+   * Läser in kontot och byter räntan mot den delade instansen. Saldot läses in
+   * med en BigInteger inuti, det görs om till den kompakta formen. Fälten läses
+   * ett och ett eftersom äldre filer har transaktionerna sparade som en lista med
+   * text, de görs om till en TransactionLog. Äldre filer har även kontotypen
+   * sparad, den hoppas över eftersom typen följer av klassen. Tillståndet hamnar
+   * i fälten, banken flyttar det till sitt lager med attach.
+   *
+   * @param in
+   * @throws IOException
+   * @throws ClassNotFoundException
+   */
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    var fields = in.readFields();
+    accountNumber = fields.get("accountNumber", 0);
+    slot = fields.get("slot", -1);
+    balance = (BigDecimal) fields.get("balance", null);
+    interestRate = sharedValue((BigDecimal) fields.get("interestRate", null));
+    var stored = fields.get("transactions", null);
+    if (stored instanceof TransactionLog log) {
+      transactions = log;
+    } else if (stored instanceof List<?> lines) {
+      transactions = toTransactionLog(lines);
+    } else {
+      throw new InvalidObjectException("Konto " + accountNumber + " har okända transaktioner: " + stored);
+    }
+    if (balance == null) {
+      throw new InvalidObjectException("Konto " + accountNumber + " saknar saldo");
+    }
+    if (balance.unscaledValue().bitLength() < Long.SIZE) {
+      balance = BigDecimal.valueOf(balance.unscaledValue().longValue(), balance.scale());
+    }
+  }
+
+  /**
+   * Lämnar tillbaka kontots plats i records. Anropas när kontot avslutas eller
+   * skrivs ut till disk, kontot får inte användas efter detta.
    */
-  private void makeTransaction(BigDecimal amount) {
-    var oneTransaction = String.format("%s %s Saldo: %s", DATE_FORMAT.format(LocalDateTime.now()),
-        formatCurrency(amount), formatCurrency(balance));
-    transactions.add(oneTransaction);
+  protected void release() {
+    if (records != null && slot >= 0) {
+      records.release(slot);
+      slot = -1;
+    }
+  }
+
+  /**
+   * Återför ett uttag: det dragna beloppet, med eventuell avgift, sätts tillbaka
+   * som en transaktion.
+   *
+   * @param debited Det som drogs från saldot vid uttaget, större än 0
+   * @param first   Om uttaget var kontots första
+   * @return true om det gick bra
+   */
+  protected boolean reverseWithdrawal(BigDecimal debited, boolean first) {
+    return debited.signum() > 0 && updateBalance(debited);
   }
 
   /**
@@ -210,7 +463,7 @@ public abstract class Account implements Serializable {
    */
   @Override
   public String toString() {
-    return makeAccountInfo(interestRate);
+    return makeAccountInfo(getCurrentRate());
   }
 
   /**
@@ -223,8 +476,15 @@ public abstract class Account implements Serializable {
     if (change == null) {
       return false;
     }
-    balance = balance.add(change);
-    makeTransaction(change);
+    long newBalance;
+    if (records == null) {
+      balance = balance.add(change);
+      newBalance = toMinor(balance);
+    } else {
+      newBalance = records.getBalance(slot) + toMinor(change);
+      records.setBalance(slot, newBalance);
+    }
+    transactions.add(Instant.now().getEpochSecond(), toMinor(change), newBalance);
     return true;
   }
 
@@ -232,4 +492,21 @@ public abstract class Account implements Serializable {
    * Abstrakt metod för uttag, implementeras i subklasserna.
    */
   protected abstract boolean withdraw(int amount);
+
+  /**
+   * Sparar kontot. Ligger tillståndet i records skrivs värdena från posten, så
+   * filen ser likadan ut oavsett lagring.
+   *
+   * @param out
+   * @throws IOException
+   */
+  private void writeObject(ObjectOutputStream out) throws IOException {
+    var fields = out.putFields();
+    fields.put("accountNumber", accountNumber);
+    fields.put("balance", getAccountBalance());
+    fields.put("interestRate", getInterestRate());
+    fields.put("transactions", transactions);
+    fields.put("slot", records == null ? -1 : slot);
+    out.writeFields();
+  }
 }
\ No newline at end of file
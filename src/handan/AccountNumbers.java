@@ -0,0 +1,61 @@
+/**
+ * Klass som definierar en banks serie med kontonummer.
+ * @author Hans Danielsson, handan-2
+ */
+package handan;
+
+/**
+ * Importsatser
+ */
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Kontonumren räknas upp per bank och inte för hela programmet, så att flera
+ * banker i samma JVM får var sin serie som börjar på 1001. Partitionerna i en
+ * BankEngine delar en serie eftersom de tillsammans är en bank. Atomisk
+ * eftersom konton kan skapas i flera partitioner samtidigt.
+ */
+public class AccountNumbers {
+
+  private static final int START_ACCOUNT_NUMBER = 1000; // Startvärde för kontonummer
+
+  private final AtomicInteger last = new AtomicInteger(START_ACCOUNT_NUMBER);
+
+  /**
+   * Senaste kontonummer
+   *
+   * @return senast utdelade numret
+   */
+  protected int get() {
+    return last.get();
+  }
+
+  /**
+   * Delar ut nästa kontonummer
+   *
+   * @return kontonumret, 1001, 1002, 1003 osv.
+   */
+  protected int next() {
+    return last.incrementAndGet();
+  }
+
+  /**
+   * Reserverar ett block med kontonummer i ett steg, t.ex. vid en massimport
+   * där kontona skapas parallellt
+   *
+   * @param count Antal kontonummer
+   * @return första numret i blocket, de följande är first + 1 ... first + count - 1
+   */
+  protected int reserve(int count) {
+    return last.getAndAdd(count) + 1;
+  }
+
+  /**
+   * Sätter senaste kontonummer, t.ex. när banken läses in från fil
+   *
+   * @param number
+   */
+  protected void set(int number) {
+    last.set(number);
+  }
+}
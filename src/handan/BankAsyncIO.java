@@ -0,0 +1,184 @@
+/**
+ * Klass som definierar asynkron skrivning av bankens filer.
+ * @author Hans Danielsson, handan-2
+ */
+package handan;
+
+/**
+ * Importsatser
+ */
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Filerna skrivs med AsynchronousFileChannel. Anroparen får en
+ * CompletableFuture direkt och fortsätter, öppning, skrivning, fsync och
+ * namnbyte görs av en liten pool med I/O-trådar. Varken JavaFX-tråden eller
+ * bankens tråd väntar alltså på disken, och flera filer kan skrivas samtidigt.
+ */
+public class BankAsyncIO {
+
+  private static final int IO_THREADS = 4; // Filer som kan skrivas samtidigt
+  private static final AtomicInteger threadCount = new AtomicInteger();
+  private static final Set<StandardOpenOption> WRITE_OPTIONS = Set.of(StandardOpenOption.CREATE,
+      StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+
+  /**
+   * Trådarna som kör kanalernas skrivningar och det som görs när de är klara
+   */
+  private static final ExecutorService ioExecutor = Executors.newFixedThreadPool(IO_THREADS, r -> {
+    var thread = new Thread(r, "bank-io-" + threadCount.incrementAndGet());
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  /**
+   * Synkar filen till disk och stänger kanalen
+   *
+   * @param channel
+   * @return klar när filen är stängd
+   */
+  protected static CompletableFuture<Void> close(AsynchronousFileChannel channel) {
+    return CompletableFuture.runAsync(() -> {
+      try (channel) {
+        channel.force(false);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }, ioExecutor);
+  }
+
+  /**
+   * Stänger kanalen efter ett fel
+   *
+   * @param channel
+   */
+  protected static void closeQuietly(AsynchronousFileChannel channel) {
+    try {
+      channel.close();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Öppnar en fil för skrivning, en befintlig fil töms
+   *
+   * @param path
+   * @return kanalen
+   */
+  protected static CompletableFuture<AsynchronousFileChannel> open(Path path) {
+    return CompletableFuture.supplyAsync(() -> {
+      try {
+        return AsynchronousFileChannel.open(path, WRITE_OPTIONS, ioExecutor);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }, ioExecutor);
+  }
+
+  /**
+   * Skriver buffertarna efter varandra med början på position
+   *
+   * @param channel
+   * @param position Var i filen första bufferten hamnar
+   * @param buffers
+   * @return position efter sista skrivna byten
+   */
+  protected static CompletableFuture<Long> write(AsynchronousFileChannel channel, long position,
+      ByteBuffer... buffers) {
+    var result = new CompletableFuture<Long>();
+    writeNext(channel, position, buffers, 0, result);
+    return result;
+  }
+
+  /**
+   * Skriver en hel fil: öppnar, skriver, synkar och stänger.
+   *
+   * @param path
+   * @param buffers Innehållet
+   * @return antal skrivna bytes
+   */
+  protected static CompletableFuture<Long> writeFile(Path path, ByteBuffer... buffers) {
+    return open(path).thenCompose(channel -> write(channel, 0, buffers)
+        .thenCompose(size -> close(channel).thenApply(_ -> size)).whenComplete((_, e) -> {
+          if (e != null) {
+            closeQuietly(channel);
+          }
+        }));
+  }
+
+  /**
+   * Skriver en hel fil så att en krasch aldrig lämnar en halv fil. Först skrivs
+   * en temporär fil som synkas till disk och sedan byter namn.
+   *
+   * @param path
+   * @param buffers Innehållet
+   * @return filen när den finns på plats
+   */
+  protected static CompletableFuture<Path> writeFileAtomic(Path path, ByteBuffer... buffers) {
+    var tmp = Path.of(path + ".tmp");
+    return writeFile(tmp, buffers).thenApplyAsync(_ -> {
+      try {
+        return Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }, ioExecutor);
+  }
+
+  /**
+   * Hjälprutin som skriver nästa buffert när den förra är klar. Kanalen kan
+   * skriva färre bytes än begärt, då skrivs resten av samma buffert.
+   *
+   * @param channel
+   * @param position
+   * @param buffers
+   * @param index    Bufferten som skrivs nu
+   * @param result   Får positionen efter sista byten
+   */
+  private static void writeNext(AsynchronousFileChannel channel, long position, ByteBuffer[] buffers, int index,
+      CompletableFuture<Long> result) {
+    var next = index;
+    while (next < buffers.length && !buffers[next].hasRemaining()) {
+      next++;
+    }
+    if (next == buffers.length) {
+      result.complete(position);
+      return;
+    }
+
+    var current = next;
+    try {
+      channel.write(buffers[current], position, null, new CompletionHandler<Integer, Void>() {
+        @Override
+        public void completed(Integer written, Void attachment) {
+          writeNext(channel, position + written, buffers, current, result);
+        }
+
+        @Override
+        public void failed(Throwable e, Void attachment) {
+          result.completeExceptionally(e);
+        }
+      });
+    } catch (RuntimeException e) {
+      result.completeExceptionally(e);
+    }
+  }
+
+  protected BankAsyncIO() {
+    // Privat konstruktor för att förhindra instansiering
+  }
+}
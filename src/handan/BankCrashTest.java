@@ -0,0 +1,241 @@
+/**
+ * Klass som testar att banken återställs efter att processen dödats mitt i en skrivning.
+ * @author Hans Danielsson, handan-2
+ */
+package handan;
+
+/**
+ * Importsatser
+ */
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Startar en bank i en egen JVM som gör ändringar utan uppehåll, varje ändring
+ * skrivs till journalen och ibland tas en ögonblicksbild. Processen dödas vid en
+ * slumpvis tidpunkt, oftast mitt i en skrivning, och banken återställs från
+ * ögonblicksbild och journal. Varannan runda läggs också en halv post sist i
+ * journalen, som efter ett avbrutet skrivanrop.
+ *
+ * Ändringarna tas fram ur löpnumret och bankens tillstånd, så samma följd kan
+ * göras om i minnet. Barnprocessen skriver ut numret när en ändring ligger på
+ * disk. Den återställda banken ska vara lika med banken efter alla utskrivna
+ * ändringar, eller efter en till om den hann skrivas men inte skrivas ut. Nästa
+ * runda fortsätter från den återställda banken.
+ *
+ * Körs med: java handan.BankCrashTest [rundor]. Avslutas med 1 om en återställd
+ * bank inte stämmer.
+ */
+public class BankCrashTest {
+
+  private static final String CHILD = "child";
+  private static final long SEED = 611114;
+  private static final int MIN_CUSTOMERS = 20;
+  private static final int MIN_RUN_MILLIS = 200;
+  private static final int MAX_RUN_MILLIS = 3000; // Långa rundor hinner ta en ögonblicksbild
+
+  /**
+   * Gör ändring nummer i mot banken. Varje ändring är ett anrop och ger högst en
+   * journalpost.
+   *
+   * @param bank
+   * @param i    Ändringens löpnummer
+   */
+  protected static void apply(BankLogic bank, long i) {
+    var random = new SplittableRandom(SEED + i);
+    var customers = bank.getAllCustomersList();
+    var op = random.nextInt(100);
+    if (customers.size() < MIN_CUSTOMERS || op < 5) {
+      bank.createCustomer("Förnamn" + i, "Efternamn", "P" + i);
+      return;
+    }
+    var customer = customers.get(random.nextInt(customers.size()));
+    var pNo = customer.getPersonalNumber();
+    var accounts = customer.getAccounts();
+    if (accounts.isEmpty() || op < 15) {
+      bank.createSavingsAccount(pNo);
+      return;
+    }
+    var account = accounts.get(random.nextInt(accounts.size())).getAccountNumber();
+    if (op < 20) {
+      bank.createCreditAccount(pNo);
+    } else if (op < 55) {
+      bank.deposit(pNo, account, 1 + random.nextInt(10_000));
+    } else if (op < 90) {
+      bank.withdraw(pNo, account, 1 + random.nextInt(5_000));
+    } else if (op < 95) {
+      bank.changeCustomerName("Nytt" + i, "", pNo);
+    } else if (op < 98) {
+      bank.closeAccount(pNo, account);
+    } else {
+      bank.deleteCustomer(pNo);
+    }
+  }
+
+  /**
+   * Barnprocessen: återställer banken i dir och gör ändringar från start tills
+   * den dödas
+   *
+   * @param dir
+   * @param start Första ändringens löpnummer
+   */
+  private static void runChild(Path dir, long start) {
+    var bank = BankFileIO.recoverBank(dir);
+    for (var i = start;; i++) {
+      apply(bank, i);
+      bank.durable().join();
+      System.out.println(i); // Ändringen ligger på disk
+      System.out.flush();
+    }
+  }
+
+  /**
+   * Hjälprutin som startar en barnprocess och dödar den efter millis
+   *
+   * @param dir
+   * @param start  Första ändringens löpnummer
+   * @param millis
+   * @return antal ändringar som barnet har skrivit ut
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  private static long runAndKill(Path dir, long start, int millis) throws IOException, InterruptedException {
+    List<String> command = new ArrayList<>();
+    command.add(ProcessHandle.current().info().command()
+        .orElse(Path.of(System.getProperty("java.home"), "bin", "java").toString()));
+    command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+    command.addAll(List.of("-cp", System.getProperty("java.class.path"), BankCrashTest.class.getName(), CHILD,
+        dir.toString(), String.valueOf(start)));
+    var child = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+
+    var acked = new AtomicLong(start);
+    var reader = new Thread(() -> {
+      try (var in = new BufferedReader(new InputStreamReader(child.getInputStream(), StandardCharsets.UTF_8))) {
+        for (var line = in.readLine(); line != null; line = in.readLine()) {
+          acked.set(Long.parseLong(line.strip()) + 1);
+        }
+      } catch (IOException | NumberFormatException e) {
+        e.printStackTrace();
+      }
+    });
+    reader.start();
+    Thread.sleep(millis);
+    child.toHandle().destroyForcibly(); // Som kill -9, utskrifter som redan gjorts går att läsa
+    child.waitFor();
+    reader.join();
+    return acked.get();
+  }
+
+  /**
+   * Hjälprutin som lägger en halv post sist i journalen
+   *
+   * @param dir
+   * @throws IOException
+   */
+  private static void tearJournal(Path dir) throws IOException {
+    var journal = dir.resolve(BankJournal.JOURNAL_NAME);
+    if (Files.exists(journal)) {
+      var record = BankJournal.encode(Long.MAX_VALUE, BankLogic.OP_DEPOSIT, "P0", "1001", "100");
+      Files.write(journal, Arrays.copyOf(record, record.length / 2), StandardOpenOption.APPEND);
+    }
+  }
+
+  /**
+   * Bankens tillstånd som text, utan tider
+   *
+   * @param bank
+   * @return en rad per kund och konto
+   */
+  private static List<String> state(BankLogic bank) {
+    List<String> state = new ArrayList<>();
+    state.add("Senaste kontonummer " + bank.getAccountNumbers().get());
+    for (var customer : bank.getAllCustomersList()) {
+      state.add(customer.toString());
+      for (var account : customer.getAccounts()) {
+        var log = account.getTransactionLog();
+        var sum = 0L;
+        for (var i = 0; i < log.size(); i++) {
+          sum += log.getAmount(i);
+        }
+        state.add(account.infoAccount() + ", " + log.size() + " transaktioner, summa " + sum);
+      }
+    }
+    return state;
+  }
+
+  /**
+   * Startrutin
+   *
+   * @param args [rundor], eller child katalog start i barnprocessen
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  public static void main(String[] args) throws IOException, InterruptedException {
+    if (args.length == 3 && CHILD.equals(args[0])) {
+      runChild(Path.of(args[1]), Long.parseLong(args[2]));
+      return;
+    }
+    var rounds = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+    var dir = Files.createTempDirectory("crash-");
+    var expected = new BankLogic(); // Samma ändringar i minnet
+    var applied = 0L;
+    var failed = false;
+    try {
+      for (var round = 1; round <= rounds && !failed; round++) {
+        var millis = ThreadLocalRandom.current().nextInt(MIN_RUN_MILLIS, MAX_RUN_MILLIS);
+        var acked = runAndKill(dir, applied, millis);
+        if (round % 2 == 0) {
+          tearJournal(dir);
+        }
+        while (applied < acked) {
+          apply(expected, applied++);
+        }
+
+        var bank = BankFileIO.recoverBank(dir);
+        var recovered = state(bank);
+        if (!recovered.equals(state(expected))) {
+          apply(expected, applied++); // Sista ändringen hann skrivas men inte skrivas ut
+        }
+        failed = !recovered.equals(state(expected));
+        System.out.printf("Runda %d: %d ms, %d ändringar på disk, återställd till %d: %s%n", round, millis, acked,
+            applied, failed ? "FEL" : "ok");
+        if (failed) {
+          var want = state(expected);
+          for (var i = 0; i < Math.max(want.size(), recovered.size()); i++) {
+            var w = i < want.size() ? want.get(i) : "";
+            var r = i < recovered.size() ? recovered.get(i) : "";
+            if (!w.equals(r)) {
+              System.out.println("Väntat:    " + w + "\nÅterställt: " + r);
+              break;
+            }
+          }
+        }
+        BankFileIO.closeBank(bank);
+      }
+    } finally {
+      try (var files = Files.walk(dir)) {
+        for (var file : files.sorted(Comparator.reverseOrder()).toList()) {
+          Files.deleteIfExists(file);
+        }
+      }
+    }
+    System.exit(failed ? 1 : 0);
+  }
+
+  protected BankCrashTest() {
+    // Privat konstruktor för att förhindra instansiering
+  }
+}
@@ -0,0 +1,251 @@
+/**
+ * Klass som definierar en bank uppdelad i partitioner med en tråd per partition.
+ * @author Hans Danielsson, handan-2
+ */
+package handan;
+
+/**
+ * Importsatser
+ */
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Banken delas i N partitioner efter personnummer. Varje partition är en egen
+ * BankLogic som bara ändras av partitionens tråd, som tar kommandon från en kö i
+ * tur och ordning. Ingen låsning behövs därför inne i en partition och
+ * partitionerna arbetar parallellt på var sin kärna. Läsningar går direkt mot
+ * partitionens ögonblicksbild och står aldrig i kön.
+ *
+ * En överföring mellan två partitioner görs i steg: mottagarkontot kontrolleras
+ * i ögonblicksbilden, uttaget görs i avsändarens partition och insättningen i
+ * mottagarens. Misslyckas insättningen återförs uttaget hos avsändaren.
+ * Partitionerna delar serie med kontonummer så att numren är unika i banken.
+ */
+public class BankEngine implements AutoCloseable {
+
+  /**
+   * En partition: banken och den enda tråd som får ändra den
+   *
+   * @param bank
+   * @param worker
+   */
+  private record Partition(BankLogic bank, ExecutorService worker) {
+  }
+
+  private final Partition[] partitions;
+
+  /**
+   * Skapa en motor med partitionCount partitioner
+   *
+   * @param partitionCount Antal partitioner, t.ex. antal kärnor
+   */
+  public BankEngine(int partitionCount) {
+    if (partitionCount <= 0) {
+      throw new IllegalArgumentException("Antal partitioner måste vara större än 0");
+    }
+    partitions = new Partition[partitionCount];
+    var accountNumbers = new AccountNumbers(); // En bank, samma serie i alla partitioner
+    for (var i = 0; i < partitionCount; i++) {
+      var name = "bank-partition-" + i;
+      partitions[i] = new Partition(new BankLogic(accountNumbers), Executors.newSingleThreadExecutor(r -> {
+        var t = new Thread(r, name);
+        t.setDaemon(true);
+        return t;
+      }));
+    }
+  }
+
+  /**
+   * Stänger partitionernas trådar efter att köade kommandon är utförda
+   */
+  @Override
+  public void close() {
+    for (var partition : partitions) {
+      partition.worker().shutdown();
+    }
+    try {
+      for (var partition : partitions) {
+        partition.worker().awaitTermination(1, TimeUnit.MINUTES);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Skapar ett kreditkonto för person pNo
+   *
+   * @param pNo
+   * @return kreditkontonummer om kunden hittas, annars -1
+   */
+  public CompletableFuture<Integer> createCreditAccount(String pNo) {
+    return submit(pNo, bank -> bank.createCreditAccount(pNo));
+  }
+
+  /**
+   * Rutin för att skapa en ny kund
+   *
+   * @param name
+   * @param surname
+   * @param pNo
+   * @return om kund är ny
+   */
+  public CompletableFuture<Boolean> createCustomer(String name, String surname, String pNo) {
+    return submit(pNo, bank -> bank.createCustomer(name, surname, pNo));
+  }
+
+  /**
+   * Skapar ett sparkonto för person pNo
+   *
+   * @param pNo
+   * @return kontonummer om kunden hittas, annars -1
+   */
+  public CompletableFuture<Integer> createSavingsAccount(String pNo) {
+    return submit(pNo, bank -> bank.createSavingsAccount(pNo));
+  }
+
+  /**
+   * Gör en insättning på konto med kontonummer som tillhör kunden med personnr
+   *
+   * @param pNo
+   * @param accountId
+   * @param amount
+   * @return True om det gick bra
+   */
+  public CompletableFuture<Boolean> deposit(String pNo, int accountId, int amount) {
+    return submit(pNo, bank -> bank.deposit(pNo, accountId, amount));
+  }
+
+  /**
+   * Rutin som returnerar alla kunder, partition för partition. Läses från
+   * ögonblicksbilderna utan att vänta på kön.
+   *
+   * @return "pNr f-Namn E-namn" för alla kunder
+   */
+  public List<String> getAllCustomers() {
+    List<String> result = new ArrayList<>();
+    for (var partition : partitions) {
+      result.addAll(partition.bank().getAllCustomers());
+    }
+    return List.copyOf(result);
+  }
+
+  /**
+   * Rutin som tar fram en kunds information och dess konton, från
+   * ögonblicksbilden.
+   *
+   * @param pNo
+   * @return kunden och kontona, eller null
+   */
+  public List<String> getCustomer(String pNo) {
+    return partition(pNo).bank().getCustomer(pNo);
+  }
+
+  /**
+   * Antal partitioner
+   *
+   * @return antal
+   */
+  public int getPartitionCount() {
+    return partitions.length;
+  }
+
+  /**
+   * Hjälprutin som väljer partition för ett personnummer
+   *
+   * @param pNo
+   * @return partitionen
+   */
+  private Partition partition(String pNo) {
+    var h = pNo == null ? 0 : pNo.hashCode() * 0x9E3779B9; // Sprid närliggande personnummer
+    return partitions[Math.floorMod(h ^ (h >>> 16), partitions.length)];
+  }
+
+  /**
+   * Lägger ett kommando i kön för den partition som äger kunden pNo. Kommandot
+   * körs av partitionens tråd och får därför ändra banken fritt, men bara för
+   * kunder i samma partition. Resultatet blir klart först när ändringarna
+   * ligger i journalen, se BankLogic.durable.
+   *
+   * @param pNo     Kunden som kommandot gäller
+   * @param command Anropet mot partitionens bank
+   * @return resultatet när kommandot är utfört
+   */
+  public <T> CompletableFuture<T> submit(String pNo, Function<BankLogic, T> command) {
+    var partition = partition(pNo);
+    var bank = partition.bank();
+    return CompletableFuture.supplyAsync(() -> {
+      var result = command.apply(bank);
+      return bank.durable().thenApply(_ -> result);
+    }, partition.worker()).thenCompose(done -> done);
+  }
+
+  /**
+   * Överför amount kronor mellan två konton. Inom en partition görs uttag och
+   * insättning i samma kommando. Mellan partitioner görs uttaget först och
+   * insättningen sedan, misslyckas insättningen återförs uttaget: det som drogs,
+   * med eventuell avgift, sätts tillbaka och ett första fritt uttag blir fritt
+   * igen. Uttaget följer kontots vanliga regler, t.ex. uttagsavgift på
+   * sparkonto.
+   *
+   * @param fromPNo
+   * @param fromAccount
+   * @param toPNo
+   * @param toAccount
+   * @param amount
+   * @return true om pengarna har flyttats, misslyckas om ett uttag inte kunde
+   *         återföras
+   */
+  public CompletableFuture<Boolean> transfer(String fromPNo, int fromAccount, String toPNo, int toAccount,
+      int amount) {
+    if (amount <= 0) {
+      return CompletableFuture.completedFuture(false);
+    }
+    var target = partition(toPNo);
+    if (target == partition(fromPNo)) {
+      return submit(fromPNo, bank -> bank.getAccount(toPNo, toAccount) != null
+          && bank.withdraw(fromPNo, fromAccount, amount) && bank.deposit(toPNo, toAccount, amount));
+    }
+
+    // Kontrollera mottagaren i ögonblicksbilden innan pengarna lämnar avsändaren
+    if (target.bank().getAccount(toPNo, toAccount) == null) {
+      return CompletableFuture.completedFuture(false);
+    }
+    return submit(fromPNo, bank -> bank.withdrawReversible(fromPNo, fromAccount, amount)).thenCompose(withdrawal -> {
+      if (withdrawal == null) {
+        return CompletableFuture.completedFuture(false);
+      }
+      return deposit(toPNo, toAccount, amount).thenCompose(deposited -> {
+        if (deposited) {
+          return CompletableFuture.completedFuture(true);
+        }
+        // Mottagarkontot försvann efter kontrollen, återför uttaget
+        return submit(fromPNo, bank -> bank.reverseWithdrawal(fromPNo, fromAccount, withdrawal)).thenApply(reversed -> {
+          if (!reversed) {
+            throw new IllegalStateException(
+                "Uttaget på " + withdrawal.debited() + " öre från konto " + fromAccount + " kunde inte återföras");
+          }
+          return false;
+        });
+      });
+    });
+  }
+
+  /**
+   * Gör ett uttag på kontot för en kund.
+   *
+   * @param pNo
+   * @param accountId
+   * @param amount
+   * @return true if ok
+   */
+  public CompletableFuture<Boolean> withdraw(String pNo, int accountId, int amount) {
+    return submit(pNo, bank -> bank.withdraw(pNo, accountId, amount));
+  }
+}
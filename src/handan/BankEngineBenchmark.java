@@ -0,0 +1,122 @@
+/**
+ * Klass som mäter hur BankEngine skalar med antal partitioner.
+ * @author Hans Danielsson, handan-2
+ */
+package handan;
+
+/**
+ * Importsatser
+ */
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Kör samma blandning av insättningar, uttag och överföringar mot motorer med 1,
+ * 2, 4 ... partitioner upp till antalet kärnor och skriver ut kommandon per
+ * sekund. Körs med: java handan.BankEngineBenchmark [kunder] [kommandon]
+ * [partitioner]
+ */
+public class BankEngineBenchmark {
+
+  private static final int TRANSFER_PERCENT = 10; // Andel överföringar
+  private static final int IN_FLIGHT = 1024; // Kommandon i luften per klient
+
+  /**
+   * Hjälprutin som kör kommandon från en klienttråd
+   *
+   * @param engine
+   * @param pNos     Kundernas personnummer
+   * @param accounts Kontonummer per kund
+   * @param count    Antal kommandon
+   */
+  private static void runClient(BankEngine engine, String[] pNos, int[] accounts, int count) {
+    var random = ThreadLocalRandom.current();
+    List<CompletableFuture<Boolean>> pending = new ArrayList<>(IN_FLIGHT);
+    for (var i = 0; i < count; i++) {
+      var from = random.nextInt(pNos.length);
+      var op = random.nextInt(100);
+      if (op < TRANSFER_PERCENT) {
+        var to = random.nextInt(pNos.length);
+        pending.add(engine.transfer(pNos[from], accounts[from], pNos[to], accounts[to], 1));
+      } else if (op < 55) {
+        pending.add(engine.deposit(pNos[from], accounts[from], 100));
+      } else {
+        pending.add(engine.withdraw(pNos[from], accounts[from], 50));
+      }
+      if (pending.size() == IN_FLIGHT) {
+        pending.forEach(CompletableFuture::join);
+        pending.clear();
+      }
+    }
+    pending.forEach(CompletableFuture::join);
+  }
+
+  /**
+   * Mäter en motor med partitionCount partitioner
+   *
+   * @param partitionCount
+   * @param customerCount
+   * @param commandCount
+   * @return kommandon per sekund
+   * @throws InterruptedException
+   */
+  private static double measure(int partitionCount, int customerCount, int commandCount)
+      throws InterruptedException {
+    try (var engine = new BankEngine(partitionCount)) {
+      var pNos = new String[customerCount];
+      var accounts = new int[customerCount];
+      List<CompletableFuture<Integer>> created = new ArrayList<>(customerCount);
+      for (var i = 0; i < customerCount; i++) {
+        var pNo = String.format("19%010d", i);
+        pNos[i] = pNo;
+        engine.createCustomer("Förnamn" + i, "Efternamn" + i, pNo);
+        created.add(i % 4 == 0 ? engine.createCreditAccount(pNo) : engine.createSavingsAccount(pNo));
+      }
+      for (var i = 0; i < customerCount; i++) {
+        accounts[i] = created.get(i).join();
+      }
+
+      var clients = new Thread[partitionCount];
+      var start = System.nanoTime();
+      for (var i = 0; i < clients.length; i++) {
+        clients[i] = new Thread(() -> runClient(engine, pNos, accounts, commandCount / clients.length));
+        clients[i].start();
+      }
+      for (var client : clients) {
+        client.join();
+      }
+      var seconds = (System.nanoTime() - start) / 1e9;
+      return commandCount / seconds;
+    }
+  }
+
+  /**
+   * Startrutin
+   *
+   * @param args [kunder] [kommandon] [största antal partitioner]
+   * @throws InterruptedException
+   */
+  public static void main(String[] args) throws InterruptedException {
+    var customerCount = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+    var commandCount = args.length > 1 ? Integer.parseInt(args[1]) : 2_000_000;
+    var maxPartitions = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+
+    measure(1, customerCount / 10, commandCount / 10); // Uppvärmning
+    System.out.printf("%d kunder, %d kommandon, %d%% överföringar%n", customerCount, commandCount, TRANSFER_PERCENT);
+    System.out.println("Partitioner  Kommandon/s  Skalning");
+    double base = 0;
+    for (var n = 1; n <= maxPartitions; n *= 2) {
+      var rate = measure(n, customerCount, commandCount);
+      if (n == 1) {
+        base = rate;
+      }
+      System.out.printf("%11d  %11.0f  %7.2fx%n", n, rate, rate / base);
+    }
+  }
+
+  protected BankEngineBenchmark() {
+    // Privat konstruktor för att förhindra instansiering
+  }
+}
@@ -0,0 +1,190 @@
+/**
+ * Klass som definierar en ström med händelser när banken ändras.
+ * @author Hans Danielsson, handan-2
+ */
+package handan;
+
+/**
+ * Importsatser
+ */
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Banken publicerar en händelse för varje ändring av en kund eller ett konto.
+ * Varje prenumerant har en egen begränsad kö och en egen tråd som lämnar över
+ * händelserna i omgångar. Bankens tråd lägger bara händelsen i köerna och
+ * väntar aldrig: är en kö full räknas händelsen som missad och prenumeranten
+ * får antalet med nästa omgång, så att den kan läsa om läget från läsvyn. En
+ * långsam prenumerant kan alltså aldrig bromsa insättningar och uttag.
+ *
+ * Utan prenumeranter skapas inga händelser alls.
+ */
+public class BankEvents {
+
+  /**
+   * Vad som har hänt
+   */
+  protected enum Type {
+    CUSTOMER_CREATED, CUSTOMER_RENAMED, CUSTOMER_DELETED, ACCOUNT_OPENED, ACCOUNT_CLOSED, DEPOSIT, WITHDRAWAL
+  }
+
+  /**
+   * En ändring i banken
+   *
+   * @param sequence       Löpnummer, ökar med 1 för varje ändring i banken
+   * @param type
+   * @param personalNumber Kunden
+   * @param accountNumber  Kontot, 0 för händelser på kunden
+   * @param amount         Ändrat belopp i öre, 0 om inget belopp ändrades
+   * @param balance        Kontots saldo i öre efter ändringen
+   */
+  protected record BankEvent(long sequence, Type type, String personalNumber, int accountNumber, long amount,
+      long balance) {
+  }
+
+  /**
+   * En omgång händelser till en prenumerant
+   *
+   * @param events Händelserna i ordning
+   * @param missed Händelser som inte fick plats i kön sedan förra omgången
+   */
+  protected record Batch(List<BankEvent> events, long missed) {
+  }
+
+  /**
+   * En prenumerant med egen kö och tråd. Stängs för att sluta prenumerera.
+   */
+  protected final class Subscription implements Closeable {
+    private final BlockingQueue<BankEvent> queue;
+    private final int maxBatch;
+    private final Consumer<Batch> consumer;
+    private final AtomicLong dropped = new AtomicLong(); // Sedan förra omgången
+    private final AtomicLong totalDropped = new AtomicLong();
+    private final Thread thread;
+    private volatile boolean closed;
+
+    private Subscription(String name, int capacity, int maxBatch, Consumer<Batch> consumer) {
+      this.queue = new ArrayBlockingQueue<>(capacity);
+      this.maxBatch = maxBatch;
+      this.consumer = consumer;
+      this.thread = new Thread(this::run, "bank-events-" + name);
+      this.thread.setDaemon(true);
+    }
+
+    @Override
+    public void close() {
+      closed = true;
+      subscriptions.remove(this);
+      thread.interrupt();
+    }
+
+    /**
+     * Antal händelser som inte fick plats i kön, totalt
+     *
+     * @return antal
+     */
+    protected long getDropped() {
+      return totalDropped.get();
+    }
+
+    /**
+     * Lägger händelsen i kön utan att vänta
+     *
+     * @param event
+     */
+    private void offer(BankEvent event) {
+      if (!queue.offer(event)) {
+        dropped.incrementAndGet();
+        totalDropped.incrementAndGet();
+      }
+    }
+
+    /**
+     * Prenumerantens tråd: väntar på en händelse och tar sedan med allt som
+     * hunnit komma, högst maxBatch åt gången
+     */
+    private void run() {
+      var batch = new ArrayList<BankEvent>(maxBatch);
+      try {
+        while (!closed) {
+          batch.add(queue.take());
+          queue.drainTo(batch, maxBatch - 1);
+          try {
+            consumer.accept(new Batch(List.copyOf(batch), dropped.getAndSet(0)));
+          } catch (RuntimeException e) {
+            e.printStackTrace();
+          }
+          batch.clear();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+  private long sequence; // Skrivs bara av bankens tråd
+
+  /**
+   * Stänger alla prenumerationer, t.ex. när banken byts ut
+   */
+  protected void close() {
+    subscriptions.forEach(Subscription::close);
+  }
+
+  /**
+   * Publicerar en ändring. Anropas av bankens tråd efter ändringen.
+   *
+   * @param type
+   * @param pNo
+   * @param accountNumber 0 för händelser på kunden
+   * @param amount        Öre
+   * @param balance       Öre
+   */
+  protected void publish(Type type, String pNo, int accountNumber, long amount, long balance) {
+    var number = ++sequence;
+    if (subscriptions.isEmpty()) {
+      return;
+    }
+    var event = new BankEvent(number, type, pNo, accountNumber, amount, balance);
+    for (var subscription : subscriptions) {
+      subscription.offer(event);
+    }
+  }
+
+  /**
+   * Publicerar en ändring av ett konto
+   *
+   * @param type
+   * @param pNo
+   * @param account
+   * @param amount  Ändrat belopp
+   */
+  protected void publish(Type type, String pNo, Account account, long amount) {
+    var balance = subscriptions.isEmpty() ? 0 : Account.toMinor(account.getAccountBalance());
+    publish(type, pNo, account.getAccountNumber(), amount, balance);
+  }
+
+  /**
+   * Börjar prenumerera på händelserna
+   *
+   * @param name     Namn på prenumerantens tråd
+   * @param capacity Händelser som får vänta i kön
+   * @param maxBatch Högst antal händelser per omgång
+   * @param consumer Tar emot omgångarna, på prenumerantens tråd
+   * @return prenumerationen
+   */
+  protected Subscription subscribe(String name, int capacity, int maxBatch, Consumer<Batch> consumer) {
+    var subscription = new Subscription(name, capacity, maxBatch, consumer);
+    subscriptions.add(subscription);
+    subscription.thread.start();
+    return subscription;
+  }
+}
@@ -0,0 +1,196 @@
+/**
+ * Klass som definierar export av alla transaktioner i banken.
+ * @author Hans Danielsson, handan-2
+ */
+package handan;
+
+/**
+ * Importsatser
+ */
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.BiPredicate;
+
+import handan.BankView.AccountView;
+import handan.BankView.CustomerView;
+
+/**
+ * Exporterar alla transaktioner, eller ett urval, till CSV eller ett binärt
+ * format. Kunderna delas upp i skärvor som kodas parallellt till direkta
+ * buffertar, skärvorna skrivs sedan i ordning med BankAsyncIO. Endast ett fåtal
+ * skärvor är kodade samtidigt, så minnet växer inte med bankens storlek.
+ */
+public class BankExport {
+
+  /**
+   * Exportformat. BINARY har per transaktion: personnummer (UTF), kontonummer
+   * (int), kontotyp (byte 0 = Sparkonto, 1 = Kreditkonto), tid (long
+   * epoch-sekunder), belopp och saldo (long i öre).
+   */
+  protected enum Format {
+    CSV, BINARY
+  }
+
+  private static final int BUFFER_SIZE = 1 << 20; // 1 MB per direkt buffert
+  private static final int SHARD_SIZE = 512; // Kunder per skärva
+  private static final int WINDOW = Runtime.getRuntime().availableProcessors() * 2; // Skärvor i arbete
+  private static final String CSV_HEADER = "personnummer;kontonummer;kontotyp;datum;belopp;saldo\n";
+  private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+  /**
+   * Återanvända direkta buffertar
+   */
+  private static final ConcurrentLinkedQueue<ByteBuffer> bufferPool = new ConcurrentLinkedQueue<>();
+
+  /**
+   * Hjälprutin som hämtar en tom buffert från poolen eller skapar en ny.
+   *
+   * @return buffert
+   */
+  private static ByteBuffer acquireBuffer() {
+    var buffer = bufferPool.poll();
+    return buffer == null ? ByteBuffer.allocateDirect(BUFFER_SIZE) : buffer.clear();
+  }
+
+  /**
+   * Kodar en skärva av kunder till en lista med buffertar klara för skrivning.
+   *
+   * @param shard  Kunderna i skärvan
+   * @param format Exportformat
+   * @param filter Urval av konton
+   * @return buffertar i ordning
+   */
+  private static ByteBuffer[] encodeShard(List<CustomerView> shard, Format format,
+      BiPredicate<CustomerView, AccountView> filter) {
+    List<ByteBuffer> buffers = new ArrayList<>();
+    var buffer = acquireBuffer();
+    var line = new StringBuilder(128);
+
+    for (var customer : shard) {
+      for (var account : customer.accounts()) {
+        if (!filter.test(customer, account)) {
+          continue;
+        }
+        var log = account.transactions();
+        for (var i = 0; i < log.size(); i++) {
+          var bytes = format == Format.CSV ? toCsv(line, customer, account, log, i)
+              : toBinary(customer, account, log, i);
+          if (buffer.remaining() < bytes.length) {
+            buffers.add(buffer.flip());
+            buffer = bytes.length > BUFFER_SIZE ? ByteBuffer.allocateDirect(bytes.length) : acquireBuffer();
+          }
+          buffer.put(bytes);
+        }
+      }
+    }
+    buffers.add(buffer.flip());
+    return buffers.toArray(ByteBuffer[]::new);
+  }
+
+  /**
+   * Exporterar transaktionerna för alla konton som filtret släpper igenom.
+   * Exporten läser en ögonblicksbild, så banken kan ändras under tiden och
+   * anroparen väntar inte på disken. Skärva k kodas först när skärva k - WINDOW
+   * är skriven och skrivs först när skärva k - 1 är skriven.
+   *
+   * @param view   Bankens ögonblicksbild
+   * @param path   Filen som skapas
+   * @param format CSV eller BINARY
+   * @param filter Urval av konton, (c, a) -> true ger alla
+   * @return antal skrivna bytes när filen är klar
+   */
+  protected static CompletableFuture<Long> exportTransactions(BankView view, Path path, Format format,
+      BiPredicate<CustomerView, AccountView> filter) {
+    var customers = view.getCustomers();
+    return BankAsyncIO.open(path).thenCompose(channel -> {
+      var header = ByteBuffer.wrap(format == Format.CSV ? CSV_HEADER.getBytes(StandardCharsets.UTF_8) : new byte[0]);
+      var written = new ArrayList<CompletableFuture<Long>>(); // Position efter varje skärva
+      var last = BankAsyncIO.write(channel, 0, header);
+      for (var next = 0; next < customers.size(); next += SHARD_SIZE) {
+        var shard = customers.subList(next, Math.min(next + SHARD_SIZE, customers.size()));
+        var start = written.size() < WINDOW ? CompletableFuture.completedFuture(0L)
+            : written.get(written.size() - WINDOW);
+        var encoded = start.thenApplyAsync(_ -> encodeShard(shard, format, filter));
+        last = last.thenCompose(position -> encoded.thenCompose(buffers -> write(channel, position, buffers)));
+        written.add(last);
+      }
+      return last.thenCompose(size -> BankAsyncIO.close(channel).thenApply(_ -> size)).whenComplete((_, e) -> {
+        if (e != null) {
+          BankAsyncIO.closeQuietly(channel);
+        }
+      });
+    });
+  }
+
+  /**
+   * Hjälprutin som kodar en transaktion binärt.
+   *
+   * @param customer
+   * @param account
+   * @param log      Kontots transaktioner
+   * @param index    Vilken transaktion
+   * @return bytes
+   */
+  private static byte[] toBinary(CustomerView customer, AccountView account, TransactionLog log, int index) {
+    var pNo = customer.personalNumber().getBytes(StandardCharsets.UTF_8);
+    var type = Account.AccountType.CREDIT.toString().equals(account.accountType()) ? 1 : 0;
+    return ByteBuffer.allocate(2 + pNo.length + 4 + 1 + 3 * 8).putShort((short) pNo.length).put(pNo)
+        .putInt(account.accountNumber()).put((byte) type).putLong(log.getTime(index))
+        .putLong(log.getAmount(index)).putLong(log.getBalance(index)).array();
+  }
+
+  /**
+   * Hjälprutin som kodar en transaktion som en CSV-rad.
+   *
+   * @param line     Återanvänd StringBuilder
+   * @param customer
+   * @param account
+   * @param log      Kontots transaktioner
+   * @param index    Vilken transaktion
+   * @return bytes
+   */
+  private static byte[] toCsv(StringBuilder line, CustomerView customer, AccountView account, TransactionLog log,
+      int index) {
+    var time = Instant.ofEpochSecond(log.getTime(index)).atZone(ZoneId.systemDefault());
+    line.setLength(0);
+    line.append(customer.personalNumber()).append(';').append(account.accountNumber()).append(';')
+        .append(account.accountType()).append(';').append(DATE_FORMAT.format(time)).append(';')
+        .append(Account.fromMinor(log.getAmount(index)).toPlainString()).append(';')
+        .append(Account.fromMinor(log.getBalance(index)).toPlainString()).append('\n');
+    return line.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Hjälprutin som skriver en kodad skärva och lämnar tillbaka buffertarna till
+   * poolen när de är skrivna.
+   *
+   * @param channel
+   * @param position Var skärvan börjar
+   * @param buffers
+   * @return position efter skärvan
+   */
+  private static CompletableFuture<Long> write(AsynchronousFileChannel channel, long position,
+      ByteBuffer[] buffers) {
+    return BankAsyncIO.write(channel, position, buffers).thenApply(end -> {
+      for (var buffer : buffers) {
+        if (buffer.capacity() == BUFFER_SIZE) {
+          bufferPool.offer(buffer);
+        }
+      }
+      return end;
+    });
+  }
+
+  protected BankExport() {
+    // Privat konstruktor för att förhindra instansiering
+  }
+}
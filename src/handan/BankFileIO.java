@@ -7,33 +7,113 @@ package handan;
 /**
  * Importsatser
  */
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.text.SimpleDateFormat;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Importsatser för JavaFX med olika API rutiner
  */
 import javafx.scene.control.Alert;
 import javafx.scene.control.ButtonType;
-import javafx.scene.control.TextArea;
 import javafx.stage.FileChooser;
 import javafx.stage.Stage;
 
+/**
+ * Alla skrivningar görs i bakgrunden med BankAsyncIO och returnerar en
+ * CompletableFuture med texten som ska visas, "Sparad till fil: ..." eller
+ * "Sökväg/Åtkomst nekad: ...". Det som ska sparas samlas in direkt i
+ * anroparens tråd, så filen visar banken som den var vid anropet.
+ */
 public class BankFileIO {
 
+  /**
+   * Samlar en serialiserad bank i bitar om CHUNK_SIZE bytes, så att en stor bank
+   * inte behöver en enda sammanhängande array som kopieras när den växer.
+   */
+  private static final class ChunkOutputStream extends OutputStream {
+    private static final int CHUNK_SIZE = 1 << 20;
+    private final List<ByteBuffer> chunks = new ArrayList<>();
+    private byte[] current = new byte[CHUNK_SIZE];
+    private int position;
+
+    @Override
+    public void write(int b) {
+      if (position == current.length) {
+        nextChunk();
+      }
+      current[position++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      while (len > 0) {
+        if (position == current.length) {
+          nextChunk();
+        }
+        var count = Math.min(len, current.length - position);
+        System.arraycopy(b, off, current, position, count);
+        position += count;
+        off += count;
+        len -= count;
+      }
+    }
+
+    /**
+     * Hjälprutin som lägger undan en full bit och påbörjar nästa
+     */
+    private void nextChunk() {
+      chunks.add(ByteBuffer.wrap(current));
+      current = new byte[CHUNK_SIZE];
+      position = 0;
+    }
+
+    /**
+     * Bitarna klara för skrivning
+     *
+     * @return buffertar i ordning
+     */
+    private ByteBuffer[] toBuffers() {
+      List<ByteBuffer> result = new ArrayList<>(chunks);
+      result.add(ByteBuffer.wrap(Arrays.copyOf(current, position)));
+      return result.toArray(ByteBuffer[]::new);
+    }
+  }
+
   private static final SimpleDateFormat sdf = new SimpleDateFormat("yyMMdd-HHmmss");
-  private static final String BASE_PATH = "src/handan/files/";
+  private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("yyMMdd");
+  protected static final String BASE_PATH = "src/handan/files/";
+  private static final String SAVED = "Sparad till fil: ";
+  private static final String DENIED = "Sökväg/Åtkomst nekad: ";
+  private static final String COLD_FILE = "customers.cold"; // Kunder på disk vid lagring i nivåer
+
+  /**
+   * Ögonblicksbilderna skrivs en i taget per katalog i den ordning de togs, så
+   * att den nyaste filen alltid är den senast tagna. Banker i olika kataloger
+   * skriver oberoende av varandra.
+   */
+  private static final Map<Path, CompletableFuture<String>> lastSnapshots = new ConcurrentHashMap<>();
+  private static String lastStamp = ""; // Tidsstämpel i senaste filnamn
+  private static int sameStampCount; // Filer med samma tidsstämpel
 
   /**
    * Lokal hjälprutin som visar en dialog för att bekräfta om användaren vill
@@ -48,64 +128,139 @@ public class BankFileIO {
   }
 
   /**
-   * Hjälprutin som skapar ett unikt filnamn med datum och tid.
+   * Väntar tills ögonblicksbilderna som skrivs i katalogen dir är klara, t.ex.
+   * innan bankens journal stängs
    *
-   * @param prefix    Prefix till filnamnet
-   * @param extension Filändelse
-   * @return Filnamnet
+   * @param dir Bankens katalog
    */
-  private static String createUniqueFileName(String prefix, String extension) {
-    try {
-      Thread.sleep(1000);
-    } catch (InterruptedException ignored) {
-      // Ignorera avbrott
+  protected static void awaitSnapshots(Path dir) {
+    var key = dir.toAbsolutePath().normalize();
+    var last = lastSnapshots.get(key);
+    if (last != null) {
+      last.join();
+      lastSnapshots.remove(key, last);
     }
-    return BASE_PATH + prefix + sdf.format(new Date()) + extension;
   }
 
   /**
-   * Hjälprutin för att välja en fil och läsa in banken.
+   * Rutin som sparar en ögonblicksbild av banken utan dialog och börjar på en ny
+   * journal. Anropas automatiskt efter ett visst antal journalposter.
+   *
+   * @param bank - Bank objektet
+   * @return Filnamnet när filen är skriven
+   */
+  protected static CompletableFuture<String> checkpointBank(BankLogic bank) {
+    return writeBank(bank, Path.of(createUniqueFileName(bank.getDirectory(), "bank-", ".dat")));
+  }
+
+  /**
+   * Hjälprutin för att välja en bankfil. Måste anropas i JavaFX-tråden.
    *
-   * @return den nya banken eller null
+   * @return den valda filen eller null
    */
-  protected static BankLogic getFileBank() {
-    // Skapa en filväljare
+  protected static Path chooseBankFile() {
     var file = openFile("*.dat");
-    if (file == null) {
-      return null;
-    }
+    return file == null ? null : file.toPath();
+  }
 
-    try (var in = new ObjectInputStream(new FileInputStream(file))) {
-      // Läs in kontonummer
-      Account.setLastAssignedNumber(in.readInt());
-      // Läs in bank objektet
-      return (BankLogic) in.readObject();
-    } catch (IOException | ClassNotFoundException e) {
-      e.printStackTrace();
-    }
-    return null;
+  /**
+   * Hjälprutin för att välja en fil med kunder att importera. Måste anropas i
+   * JavaFX-tråden.
+   *
+   * @return den valda filen eller null
+   */
+  protected static Path chooseImportFile() {
+    var file = openFile("*.csv");
+    return file == null ? null : file.toPath();
   }
 
   /**
-   * Rutin som öppnar en fil och läser in transaktioner till en dialog ruta med
-   * scroll.
+   * Hjälprutin för att välja en transaktionsfil. Måste anropas i JavaFX-tråden.
    *
-   * @return true om det inte går att läsa in filen
+   * @return den valda filen eller null
    */
-  protected static boolean getFileTransactions() {
+  protected static Path chooseTransactionFile() {
     var file = openFile("*.txt");
-    if (file == null) {
-      return false;
+    return file == null ? null : file.toPath();
+  }
+  /**
+   * Rutin som stänger en bank, t.ex. i BankRegistry eller när programmet
+   * avslutas. Ligger kontona i en minnesmappad fil sparas först en
+   * ögonblicksbild om journalen har nya poster, så att filen kan mappas om vid
+   * nästa start. Ögonblicksbilder som skrivs blir klara och journal, cache och
+   * kontofil stängs. Ingen får ändra banken under tiden.
+   *
+   * @param bank
+   */
+  protected static void closeBank(BankLogic bank) {
+    var journal = bank.getJournal();
+    if (bank.getRecords() != null && journal != null && journal.getRecordCount() > 0) {
+      checkpointBank(bank);
+    }
+    if (bank.getDirectory() != null) {
+      awaitSnapshots(bank.getDirectory());
+    }
+    bank.getEvents().close();
+    if (bank.getCache() != null) {
+      bank.getCache().close();
     }
+    bank.setJournal(null);
+    if (journal != null) {
+      journal.close();
+    }
+    bank.closeRecords(journal != null);
+  }
+
 
-    try (var br = new BufferedReader(new FileReader(file))) {
-      var content = br.lines().collect(Collectors.joining(System.lineSeparator()));
-      showTextInDialog("Transaktioner", "Innehåll i filen: " + file.getName(), content);
-      return false;
+  /**
+   * Hjälprutin som skapar ett unikt filnamn med datum och tid. Skapas flera
+   * filer samma sekund får de ett löpnummer efter tiden.
+   *
+   * @param dir       Katalogen filen ska ligga i
+   * @param prefix    Prefix till filnamnet
+   * @param extension Filändelse
+   * @return Filnamnet
+   */
+  private static synchronized String createUniqueFileName(Path dir, String prefix, String extension) {
+    var stamp = sdf.format(new Date());
+    if (stamp.equals(lastStamp)) {
+      sameStampCount++;
+      return dir.resolve(prefix + stamp + "-" + sameStampCount + extension).toString();
+    }
+    lastStamp = stamp;
+    sameStampCount = 0;
+    return dir.resolve(prefix + stamp + extension).toString();
+  }
+
+  /**
+   * Hjälprutin som gör om ett fel från en skrivning till texten som visas
+   *
+   * @param path
+   * @param e
+   * @return "Sökväg/Åtkomst nekad: fil"
+   */
+  private static String denied(Object path, Throwable e) {
+    e.printStackTrace();
+    return DENIED + path;
+  }
+
+  /**
+   * Hjälprutin som slår på lagring i nivåer om systemegenskapen
+   * handan.tiered.hot anger hur många kunder som ska ha sina konton i minnet,
+   * t.ex. -Dhandan.tiered.hot=100000.
+   *
+   * @param bank
+   */
+  private static void enableTiering(BankLogic bank) {
+    var hotCapacity = Integer.getInteger("handan.tiered.hot", 0);
+    if (hotCapacity <= 0) {
+      return;
+    }
+    try {
+      bank.enableTiering(bank.getDirectory().resolve(COLD_FILE), hotCapacity);
     } catch (IOException e) {
       e.printStackTrace();
     }
-    return true;
   }
 
   /**
@@ -125,25 +280,49 @@ public class BankFileIO {
     return fileChooser.showOpenDialog(new Stage());
   }
 
+  /**
+   * Rutin som exporterar alla transaktioner i banken till en CSV-fil. Exporten
+   * läser bankens ögonblicksbild och kan därför pågå medan banken ändras.
+   *
+   * @param bank - Bank objektet
+   * @return Filnamnet när filen är skriven
+   */
+  protected static CompletableFuture<String> putFileAllTransactions(BankLogic bank) {
+    var path = createUniqueFileName(bank.getDirectory(), "export-", ".csv");
+    return BankExport.exportTransactions(bank.snapshot(), Path.of(path), BankExport.Format.CSV, (c, a) -> true)
+        .thenApply(_ -> SAVED + path).exceptionally(e -> denied(path, e));
+  }
+
   /**
    * Hjälprutin som skriver bank objektet till en fil.
    *
    * @param bank - Bank objektet
-   * @return Filnamnet
+   * @return Filnamnet när filen är skriven
    */
-  protected static String putFileBank(BankLogic bank) {
-    var path = createUniqueFileName("bank-", ".dat");
+  protected static CompletableFuture<String> putFileBank(BankLogic bank) {
+    return writeBank(bank, Path.of(createUniqueFileName(bank.getDirectory(), "bank-", ".dat")));
+  }
 
-    try (var oos = new ObjectOutputStream(new FileOutputStream(path))) {
-      // Spara kontonummer
-      oos.writeInt(Account.getLastAssignedNumber());
-      // Spara bank objektet
-      oos.writeObject(bank);
-      return "Sparad till fil: " + path;
-    } catch (IOException e) {
-      e.printStackTrace();
-      return "Sökväg/Åtkomst nekad: " + path;
-    }
+  /**
+   * Hjälprutin som skriver kontoutdrag för alla kunder för en period. Mappen får
+   * periodens namn, så en avbruten körning fortsätter där den slutade om den
+   * startas igen.
+   *
+   * @param bank
+   * @param from Första dagen i perioden
+   * @param to   Sista dagen i perioden
+   * @return mappen och antal utdrag när alla är skrivna
+   */
+  protected static CompletableFuture<String> putFileStatements(BankLogic bank, LocalDate from, LocalDate to) {
+    var dir = bank.getDirectory().resolve("statements-" + DATE_FORMAT.format(from) + "-" + DATE_FORMAT.format(to));
+    var view = bank.snapshot();
+    return CompletableFuture.supplyAsync(() -> {
+      try {
+        return SAVED + dir + ", " + BankStatements.write(view, dir, from, to);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }).exceptionally(e -> denied(dir, e));
   }
 
   /**
@@ -152,50 +331,231 @@ public class BankFileIO {
    * null.
    *
    * @param transactions
-   * @return Filnamnet
+   * @return Filnamnet när filen är skriven
    */
-  protected static String putFileTransactions(List<String> transactions) {
-    var path = createUniqueFileName("bank-", ".txt");
+  protected static CompletableFuture<String> putFileTransactions(List<String> transactions) {
+    var path = createUniqueFileName(Path.of(BASE_PATH), "bank-", ".txt");
+    var separator = "====================================" + System.lineSeparator();
+    var text = new StringBuilder();
+    text.append("Datum: ").append(DATE_FORMAT.format(LocalDate.now())).append(System.lineSeparator());
+    text.append(separator);
+    for (var str : transactions) {
+      text.append(str).append(System.lineSeparator());
+    }
+    text.append(separator);
 
-    try (var fileWriter = new FileWriter(path, true)) {
-      fileWriter.write("Datum: " + sdf.format(new Date()).split("-")[0] + System.lineSeparator());
-      fileWriter.write("====================================" + System.lineSeparator());
+    var data = ByteBuffer.wrap(text.toString().getBytes(StandardCharsets.UTF_8));
+    return BankAsyncIO.writeFile(Path.of(path), data).thenApply(_ -> SAVED + path)
+        .exceptionally(e -> denied(path, e));
+  }
 
-      for (var str : transactions) {
-        fileWriter.write(str + System.lineSeparator());
-      }
+  /**
+   * Hjälprutin som läser in en bank från en .dat fil. Sökindex och läsvy tas
+   * från indexfilen bredvid om den passar, annars byggs de om.
+   *
+   * @param file Bankfilen
+   * @return banken eller null om filen är trasig
+   */
+  protected static BankLogic readBankFile(Path file) {
+    try (var in = new ObjectInputStream(new FileInputStream(file.toFile()))) {
+      // Läs in kontonummer
+      var lastNumber = in.readInt();
+      // Läs in bank objektet
+      var bank = (BankLogic) in.readObject();
+      bank.getAccountNumbers().set(lastNumber);
+      BankIndexFile.load(bank, file);
+      return bank;
+    } catch (IOException | ClassNotFoundException | ClassCastException e) {
+      System.err.println("Kan inte läsa bankfil " + file + ": " + e);
+    }
+    return null;
+  }
 
-      fileWriter.write("====================================" + System.lineSeparator());
-      return "Sparad till fil: " + path;
+  /**
+   * Rutin som återställer banken vid start utan dialog. Senaste giltiga
+   * ögonblicksbild (bank-*.dat) läses in och journalen efter den spelas upp. Finns
+   * ingen ögonblicksbild startar en tom bank.
+   *
+   * @return den återställda banken, aldrig null
+   */
+  protected static BankLogic recoverBank() {
+    return recoverBank(Path.of(BASE_PATH));
+  }
+
+  /**
+   * Rutin som återställer banken i katalogen dir på samma sätt som
+   * recoverBank(). Banken sparar sedan sina filer i dir, så att flera banker med
+   * var sin katalog kan köras i samma program.
+   *
+   * @param dir Bankens katalog, skapas om den saknas
+   * @return den återställda banken, aldrig null
+   * @throws IllegalStateException om det finns ögonblicksbilder men ingen går
+   *                               att läsa. En tom bank skulle annars sparas
+   *                               som nyaste ögonblicksbild och dölja dem.
+   */
+  protected static BankLogic recoverBank(Path dir) {
+    BankLogic bank = null;
+    List<Path> snapshots = List.of();
+    try {
+      Files.createDirectories(dir);
+      try (var files = Files.list(dir)) {
+        snapshots = files.filter(f -> f.getFileName().toString().startsWith("bank-"))
+            .filter(f -> f.getFileName().toString().endsWith(".dat"))
+            .sorted(Comparator.comparingLong((Path f) -> f.toFile().lastModified())
+                .thenComparing(BankFileIO::snapshotStamp).thenComparingInt(BankFileIO::snapshotNumber).reversed())
+            .toList();
+        // Nyaste giltiga ögonblicksbild vinner, trasiga hoppas över.
+        for (var file : snapshots) {
+          bank = readBankFile(file);
+          if (bank != null) {
+            break;
+          }
+        }
+      }
     } catch (IOException e) {
       e.printStackTrace();
-      return "Sökväg/Åtkomst nekad: " + path;
     }
+
+    var fromSnapshot = bank != null;
+    if (!fromSnapshot && !snapshots.isEmpty()) {
+      throw new IllegalStateException("Ingen ögonblicksbild i " + dir + " går att läsa, " + snapshots.size()
+          + " filer finns. Banken startas inte tom.");
+    }
+    if (!fromSnapshot) {
+      bank = new BankLogic();
+    }
+    bank.setDirectory(dir);
+    bank.openRecords();
+
+    var journal = new BankJournal(dir);
+    var replayed = journal.recover(bank);
+    bank.setJournal(journal);
+    enableTiering(bank);
+    if (!fromSnapshot || replayed > 0) {
+      checkpointBank(bank);
+    }
+    return bank;
+  }
+
+  /**
+   * Hjälprutin som tar bort "bank-" och ".dat" från en ögonblicksbilds namn
+   *
+   * @param file
+   * @return det som står mellan
+   */
+  private static String snapshotName(Path file) {
+    var name = file.getFileName().toString();
+    return name.substring("bank-".length(), name.length() - ".dat".length());
   }
 
   /**
-   * Hjälprutin som visar en modal dialogruta med textinnehåll.
+   * Hjälprutin som ger löpnumret i en ögonblicksbilds namn, bank-x.dat har 0 och
+   * bank-x-1.dat har 1. Används när två filer har samma ändringstid.
    *
-   * @param title   Titel på dialogrutan
-   * @param header  Rubrik på dialogrutan
-   * @param content Innehåll i dialogrutan
+   * @param file bank-ÅÅMMDD-HHMMSS[-n].dat
+   * @return löpnumret
    */
-  private static void showTextInDialog(String title, String header, String content) {
+  private static int snapshotNumber(Path file) {
+    var parts = snapshotName(file).split("-");
+    try {
+      return parts.length > 2 ? Integer.parseInt(parts[2]) : 0;
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
 
-    // Skapa en TextArea för visning
-    var textArea = new TextArea(content);
-    textArea.setEditable(false);
-    textArea.setWrapText(true);
-    textArea.setMaxWidth(600);
-    textArea.setMaxHeight(400);
+  /**
+   * Hjälprutin som ger tidsstämpeln i en ögonblicksbilds namn, utan löpnummer
+   *
+   * @param file bank-ÅÅMMDD-HHMMSS[-n].dat
+   * @return "ÅÅMMDD-HHMMSS"
+   */
+  private static String snapshotStamp(Path file) {
+    var parts = snapshotName(file).split("-");
+    return parts.length > 1 ? parts[0] + "-" + parts[1] : parts[0];
+  }
+
+  /**
+   * Rutin som flyttar journalen från den gamla banken till en nyss inläst bank.
+   * Journalen töms och en ögonblicksbild av den nya banken sparas direkt. Vid
+   * lagring i nivåer tar den nya banken över filen för kunder på disk, och
+   * ligger kontona i en minnesmappad fil tar den nya banken över filen, som
+   * töms. Prenumerationer på den gamla banken stängs.
+   *
+   * @param oldBank Banken som ersätts
+   * @param newBank Den inlästa banken
+   */
+  protected static void switchBank(BankLogic oldBank, BankLogic newBank) {
+    oldBank.getEvents().close();
+    if (oldBank.getCache() != null) {
+      oldBank.getCache().close();
+    }
+    oldBank.closeRecords(false);
+    newBank.setDirectory(oldBank.getDirectory());
+    newBank.openRecords();
+    enableTiering(newBank);
+    var journal = oldBank.getJournal();
+    oldBank.setJournal(null);
+    if (journal != null) {
+      journal.reset(newBank.getBankId());
+      newBank.setJournal(journal);
+      checkpointBank(newBank);
+    }
+  }
+
+  /**
+   * Hjälprutin som skriver banken till fil. Banken serialiseras direkt i
+   * anroparens tråd, där den inte ändras under tiden. Själva skrivningen görs i
+   * bakgrunden: först en temporär fil som synkas till disk och sedan byter namn,
+   * så att en krasch aldrig lämnar en halv bankfil. Därefter börjar journalen om
+   * och indexfilen skrivs. Framtiden blir klar först när även indexfilen är
+   * skriven, så nästa ögonblicksbild och closeBank väntar på den. Misslyckas
+   * indexfilen byggs indexen om vid inläsning.
+   *
+   * @param bank - Bank objektet
+   * @param path - Filen
+   * @return Filnamnet när filen är skriven
+   */
+  private static CompletableFuture<String> writeBank(BankLogic bank, Path path) {
+    var out = new ChunkOutputStream();
+    try (var oos = new ObjectOutputStream(out)) {
+      // Spara kontonummer
+      oos.writeInt(bank.getAccountNumbers().get());
+      // Spara bank objektet
+      oos.writeObject(bank);
+    } catch (IOException e) {
+      return CompletableFuture.completedFuture(denied(path, e));
+    }
 
-    // Visa i alert-dialog
-    var alert = new Alert(Alert.AlertType.INFORMATION);
-    alert.setTitle(title);
-    alert.setHeaderText(header);
-    alert.getDialogPane().setContent(textArea);
-    alert.setResizable(true);
-    alert.showAndWait();
+    var data = out.toBuffers();
+    var index = BankIndexFile.create(bank, Arrays.stream(data).mapToLong(ByteBuffer::remaining).sum());
+    var indexPath = BankIndexFile.indexPath(path);
+    var journal = bank.getJournal();
+    var generation = journal == null ? 0 : journal.getGeneration();
+    var bankId = bank.getBankId();
+    var records = bank.getRecords();
+    var sequence = bank.getJournalSequence();
+    return lastSnapshots.compute(path.toAbsolutePath().normalize().getParent(), (_, last) -> {
+      var previous = last == null ? CompletableFuture.<String>completedFuture(null) : last;
+      return previous.thenCompose(_ -> BankAsyncIO.writeFileAtomic(path, data)).thenCompose(_ -> {
+        if (journal != null) {
+          journal.rotate(bankId, generation);
+        }
+        if (records != null) {
+          records.checkpoint(sequence);
+        }
+        if (index == null) {
+          return CompletableFuture.completedFuture(SAVED + path);
+        }
+        // Ett fel i indexfilen loggas bara, banken är redan sparad
+        return BankAsyncIO.writeFileAtomic(indexPath, index).handle((_, e) -> {
+          if (e != null) {
+            denied(indexPath, e);
+          }
+          return SAVED + path;
+        });
+      }).exceptionally(e -> denied(path, e));
+    });
   }
 
   protected BankFileIO() {
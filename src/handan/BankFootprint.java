@@ -0,0 +1,143 @@
+/**
+ * Klass som mäter hur mycket minne kunder, konton och transaktioner tar.
+ * @author Hans Danielsson, handan-2
+ */
+package handan;
+
+/**
+ * Importsatser
+ */
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+/**
+ * Bygger en bank steg för steg och mäter heapen efter skräpsamling mellan
+ * stegen: först bara kunder, sedan ett sparkonto och ett kreditkonto per kund,
+ * sedan transaktioner. Till sist sparas banken och läses in igen, eftersom en
+ * inläst bank inte delar objekt på samma sätt som en nyskapad. Siffrorna
+ * omfattar allt banken håller per kund, även index och läsvy.
+ *
+ * Körs med: java handan.BankFootprint [kunder]
+ */
+public class BankFootprint {
+
+  private static final String[] FIRST_NAMES = { "Anna", "Eva", "Maria", "Karin", "Lars", "Karl", "Erik", "Hans" };
+  private static final String[] LAST_NAMES = { "Andersson", "Johansson", "Karlsson", "Nilsson", "Danielsson" };
+  private static final int TRANSACTIONS = 10; // Per konto
+
+  /**
+   * Hjälprutin som läser in en sparad bank
+   *
+   * @param snapshot
+   * @return banken
+   * @throws IOException
+   * @throws ClassNotFoundException
+   */
+  private static BankLogic load(byte[] snapshot) throws IOException, ClassNotFoundException {
+    try (var in = new ObjectInputStream(new ByteArrayInputStream(snapshot))) {
+      var bank = (BankLogic) in.readObject();
+      bank.rebuildIndexes();
+      return bank;
+    }
+  }
+
+  /**
+   * Hjälprutin som sparar banken som den sparas till fil
+   *
+   * @param bank
+   * @return bytes
+   * @throws IOException
+   */
+  private static byte[] save(BankLogic bank) throws IOException {
+    var buffer = new ByteArrayOutputStream();
+    try (var out = new ObjectOutputStream(buffer)) {
+      out.writeObject(bank);
+    }
+    return buffer.toByteArray();
+  }
+
+  /**
+   * Hjälprutin som ger heapen som används efter skräpsamling
+   *
+   * @return bytes
+   */
+  private static long usedHeap() {
+    var runtime = Runtime.getRuntime();
+    for (var i = 0; i < 4; i++) {
+      System.gc();
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+
+  /**
+   * Startrutin
+   *
+   * @param args [kunder]
+   * @throws IOException
+   * @throws ClassNotFoundException
+   */
+  public static void main(String[] args) throws IOException, ClassNotFoundException {
+    var count = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+    var pNos = new String[count];
+    var savings = new int[count];
+    var credits = new int[count];
+    for (var i = 0; i < count; i++) {
+      pNos[i] = String.format("19%06d-%04d", i / 10_000, i % 10_000);
+    }
+
+    var base = usedHeap();
+    var bank = new BankLogic();
+    for (var i = 0; i < count; i++) {
+      bank.createCustomer(new String(FIRST_NAMES[i % FIRST_NAMES.length]),
+          new String(LAST_NAMES[i % LAST_NAMES.length]), pNos[i]);
+    }
+    var afterCustomers = usedHeap();
+
+    for (var i = 0; i < count; i++) {
+      savings[i] = bank.createSavingsAccount(pNos[i]);
+    }
+    var afterSavings = usedHeap();
+
+    for (var i = 0; i < count; i++) {
+      credits[i] = bank.createCreditAccount(pNos[i]);
+    }
+    var afterCredits = usedHeap();
+
+    for (var i = 0; i < count; i++) {
+      for (var t = 0; t < TRANSACTIONS / 2; t++) {
+        bank.deposit(pNos[i], savings[i], 100);
+        bank.deposit(pNos[i], credits[i], 100);
+      }
+      for (var t = 0; t < TRANSACTIONS / 2; t++) {
+        bank.withdraw(pNos[i], savings[i], 10);
+        bank.withdraw(pNos[i], credits[i], 10);
+      }
+    }
+    var afterTransactions = usedHeap();
+
+    // Spara och läs in igen, som när banken läses från fil
+    var snapshot = save(bank);
+    bank = load(snapshot);
+    var snapshotBytes = snapshot.length;
+    snapshot = null;
+    var afterLoad = usedHeap();
+
+    System.out.printf("Kunder: %,d, %d transaktioner per konto, ögonblicksbild %,d bytes per kund%n", count,
+        TRANSACTIONS, snapshotBytes / count);
+    System.out.printf("Kund utan konton:  %,6d bytes%n", (afterCustomers - base) / count);
+    System.out.printf("Sparkonto:         %,6d bytes%n", (afterSavings - afterCustomers) / count);
+    System.out.printf("Kreditkonto:       %,6d bytes%n", (afterCredits - afterSavings) / count);
+    System.out.printf("Transaktion:       %,6d bytes%n",
+        (afterTransactions - afterCredits) / (2L * TRANSACTIONS * count));
+    System.out.printf("Kund med konton:   %,6d bytes (nyskapad)%n", (afterTransactions - base) / count);
+    System.out.printf("Kund med konton:   %,6d bytes (inläst från fil)%n", (afterLoad - base) / count);
+    System.out.println(bank.getStatistics().getCustomerCount() == count ? "" : "Fel antal kunder");
+  }
+
+  protected BankFootprint() {
+    // Privat konstruktor för att förhindra instansiering
+  }
+}
@@ -0,0 +1,417 @@
+/**
+ * Klass som definierar en massimport av kunder och konton från en CSV-fil.
+ * @author Hans Danielsson, handan-2
+ */
+package handan;
+
+/**
+ * Importsatser
+ */
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BooleanSupplier;
+import java.util.stream.IntStream;
+
+/**
+ * Filen har en kund per rad, med samma avgränsare som exporten:
+ *
+ * <pre>
+ * personnummer;förnamn;efternamn;konton
+ * 19800101-1234;Anna;Andersson;SK
+ * </pre>
+ *
+ * Konton är en bokstav per konto, S för sparkonto och K för kreditkonto, och
+ * kan vara tom. En första rad som börjar med "personnummer" hoppas över.
+ *
+ * Filen mappas in och delas i bitar som slutar vid en radbrytning. Bitarna
+ * tolkas parallellt och varje rad kontrolleras för sig: personnumret ska vara
+ * ett giltigt datum med rätt kontrollsiffra, ÅÅÅÅMMDD-NNNK eller ÅÅMMDD-NNNK (+
+ * för 100 år eller äldre), och sparas som ÅÅÅÅMMDD-NNNK. Dubbletter mot banken
+ * och inom filen hittas med en hashmängd i filens ordning, första raden vinner.
+ * Kontonumren för alla godkända rader reserveras i ett block, kunder och konton
+ * skapas parallellt och läggs sedan in i banken i filens ordning.
+ *
+ * Körs på bankens tråd, banken ändras inte av någon annan under importen.
+ */
+public class BankImport {
+
+  /**
+   * En godkänd rad
+   *
+   * @param line           Radnummer i biten, från 1
+   * @param personalNumber ÅÅÅÅMMDD-NNNK
+   * @param firstName
+   * @param lastName
+   * @param accountTypes   S och K, ett tecken per konto
+   */
+  private record Row(long line, String personalNumber, String firstName, String lastName, String accountTypes) {
+  }
+
+  /**
+   * En avvisad rad
+   *
+   * @param line Radnummer i biten, från 1
+   * @param text "orsak: rad"
+   */
+  private record Rejected(long line, String text) {
+  }
+
+  /**
+   * En bit av filen efter tolkningen
+   */
+  private static final class Chunk {
+    private final List<Row> rows = new ArrayList<>();
+    private final List<Rejected> rejected = new ArrayList<>();
+    private long lines; // Rader i biten, tomma rader inräknade
+    private long accounts; // Konton för godkända rader efter dubblettkontrollen
+  }
+
+  /**
+   * Resultatet av en import
+   *
+   * @param rows         Rader med innehåll, rubrikraden oräknad
+   * @param customers    Nya kunder
+   * @param accounts     Nya konton
+   * @param rejected     Avvisade rader
+   * @param rejectedRows Avvisade rader med radnummer och orsak, högst
+   *                     MAX_REPORTED
+   * @param millis       Tid för importen
+   */
+  protected record Result(long rows, long customers, long accounts, long rejected, List<String> rejectedRows,
+      long millis) {
+
+    /**
+     * Rader per sekund
+     *
+     * @return rader/s
+     */
+    protected long rowsPerSecond() {
+      return millis == 0 ? rows * 1000 : rows * 1000 / millis;
+    }
+
+    /**
+     * Resultatet som text, en rad per avvisad rad
+     *
+     * @return rader
+     */
+    protected List<String> report() {
+      var lines = new ArrayList<String>();
+      lines.add(String.format("Importerade %,d kunder och %,d konton från %,d rader på %,d ms (%,d rader/s)",
+          customers, accounts, rows, millis, rowsPerSecond()));
+      lines.add(rejected == 0 ? "Inga rader avvisades" : String.format("%,d rader avvisades:", rejected));
+      lines.addAll(rejectedRows);
+      if (rejected > rejectedRows.size()) {
+        lines.add(String.format("... och %,d till", rejected - rejectedRows.size()));
+      }
+      return lines;
+    }
+  }
+
+  private static final int MAX_REPORTED = 1000; // Avvisade rader som visas
+  private static final long MAX_CHUNK = 16L << 20; // Största bit som tolkas på en gång
+  private static final String SEPARATOR = ";";
+  private static final String HEADER = "personnummer";
+
+  /**
+   * Hjälprutin som räknar ut kontrollsiffran med Luhn-algoritmen
+   *
+   * @param digits De nio siffrorna ÅÅMMDDNNN
+   * @return kontrollsiffra
+   */
+  protected static int checkDigit(CharSequence digits) {
+    var sum = 0;
+    for (var i = 0; i < digits.length(); i++) {
+      var d = (digits.charAt(i) - '0') * (i % 2 == 0 ? 2 : 1);
+      sum += d > 9 ? d - 9 : d;
+    }
+    return (10 - sum % 10) % 10;
+  }
+
+  /**
+   * Hjälprutin som delar filen i bitar som slutar efter en radbrytning
+   *
+   * @param file
+   * @return start för varje bit och till sist filens längd
+   */
+  private static long[] chunkStarts(MemorySegment file) {
+    var size = file.byteSize();
+    var parallelism = ForkJoinPool.getCommonPoolParallelism();
+    // Fyra bitar per kärna, dock minst 64 kB och högst MAX_CHUNK per bit
+    var count = (int) Math.max(Math.min(parallelism * 4L, (size >> 16) + 1), (size + MAX_CHUNK - 1) / MAX_CHUNK);
+    var starts = new ArrayList<Long>(count + 1);
+    starts.add(0L);
+    for (var i = 1; i < count; i++) {
+      var position = size * i / count;
+      if (position <= starts.get(starts.size() - 1)) {
+        continue;
+      }
+      while (position < size && file.get(ValueLayout.JAVA_BYTE, position - 1) != '\n') {
+        position++;
+      }
+      if (position < size) {
+        starts.add(position);
+      }
+    }
+    starts.add(size);
+    return starts.stream().mapToLong(Long::longValue).toArray();
+  }
+
+  /**
+   * Importerar kunderna i filen till banken
+   *
+   * @param bank
+   * @param file CSV-filen
+   * @return resultatet
+   * @throws IOException om filen inte kan läsas
+   */
+  protected static Result importCsv(BankLogic bank, Path file) throws IOException {
+    return importCsv(bank, file, () -> false);
+  }
+
+  /**
+   * Importerar kunderna i filen till banken och slutar i förtid om cancelled
+   * blir sann. Den läses före varje bit som tolkas och innan kontonumren
+   * reserveras. När kunderna väl läggs in i banken görs importen klart, så
+   * banken och journalen aldrig får en halv import.
+   *
+   * @param bank
+   * @param file      CSV-filen
+   * @param cancelled Svarar true när importen ska avbrytas
+   * @return resultatet
+   * @throws IOException           om filen inte kan läsas
+   * @throws CancellationException om importen avbröts, banken är då oförändrad
+   */
+  protected static Result importCsv(BankLogic bank, Path file, BooleanSupplier cancelled) throws IOException {
+    var start = System.nanoTime();
+    List<Chunk> chunks;
+    try (var arena = Arena.ofShared(); var channel = FileChannel.open(file)) {
+      var segment = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size(), arena);
+      var starts = chunkStarts(segment);
+      chunks = IntStream.range(0, starts.length - 1).parallel().mapToObj(i -> {
+        if (cancelled.getAsBoolean()) {
+          throw new CancellationException("Importen avbröts");
+        }
+        return parse(segment.asSlice(starts[i], starts[i + 1] - starts[i]), i == 0);
+      }).toList();
+    }
+
+    // Dubbletter i filens ordning, första raden vinner
+    var view = bank.snapshot();
+    var seen = new HashSet<String>();
+    var lineOffset = 0L;
+    var rows = 0L;
+    var rejected = 0L;
+    var rejectedRows = new ArrayList<String>();
+    var accepted = new ArrayList<List<Row>>(chunks.size());
+    var totalAccounts = 0L;
+    for (var chunk : chunks) {
+      rows += chunk.rows.size() + chunk.rejected.size();
+      var keep = new ArrayList<Row>(chunk.rows.size());
+      for (var row : chunk.rows) {
+        if (view.getCustomer(row.personalNumber()) != null || !seen.add(row.personalNumber())) {
+          chunk.rejected.add(new Rejected(row.line(), "personnumret finns redan: " + row.personalNumber()));
+        } else {
+          keep.add(row);
+          chunk.accounts += row.accountTypes().length();
+        }
+      }
+      accepted.add(keep);
+      totalAccounts += chunk.accounts;
+      rejected += chunk.rejected.size();
+      chunk.rejected.sort(Comparator.comparingLong(Rejected::line));
+      for (var i = 0; i < chunk.rejected.size() && rejectedRows.size() < MAX_REPORTED; i++) {
+        var row = chunk.rejected.get(i);
+        rejectedRows.add("Rad " + (lineOffset + row.line()) + ": " + row.text());
+      }
+      lineOffset += chunk.lines;
+    }
+    if (cancelled.getAsBoolean()) {
+      throw new CancellationException("Importen avbröts");
+    }
+    var numbers = bank.getAccountNumbers();
+    if (totalAccounts > Integer.MAX_VALUE - numbers.get()) {
+      throw new IllegalStateException("För många konton i importen: " + totalAccounts);
+    }
+
+    // Kontonumren reserveras i ett block, varje bit får sin del
+    var firstNumber = numbers.reserve((int) totalAccounts);
+    var chunkFirst = new int[chunks.size()];
+    for (var i = 1; i < chunks.size(); i++) {
+      chunkFirst[i] = chunkFirst[i - 1] + (int) chunks.get(i - 1).accounts;
+    }
+    var customers = IntStream.range(0, chunks.size()).parallel()
+        .mapToObj(i -> createCustomers(accepted.get(i), firstNumber + chunkFirst[i])).flatMap(List::stream)
+        .toList();
+
+    // En gång för hela filen, så att journalen skrivs i stora block och bara en ny
+    // ögonblicksbild tas
+    bank.importCustomers(customers);
+    return new Result(rows, customers.size(), totalAccounts, rejected, List.copyOf(rejectedRows),
+        (System.nanoTime() - start) / 1_000_000);
+  }
+
+  /**
+   * Hjälprutin som skapar kunderna och kontona för en bit
+   *
+   * @param rows
+   * @param firstNumber Kontonummer för bitens första konto
+   * @return kunderna
+   */
+  private static List<Customer> createCustomers(List<Row> rows, int firstNumber) {
+    var result = new ArrayList<Customer>(rows.size());
+    var number = firstNumber;
+    for (var row : rows) {
+      var customer = new Customer(row.firstName(), row.lastName(), row.personalNumber());
+      for (var i = 0; i < row.accountTypes().length(); i++) {
+        Account account = row.accountTypes().charAt(i) == 'K'
+            ? new CreditAccount(number, 0, BankLogic.CREDIT_RATE, BankLogic.CREDIT_LIMIT, BankLogic.CREDIT_DEBT_RATE)
+            : new SavingsAccount(number, 0, BankLogic.SAVINGS_RATE, BankLogic.SAVINGS_WITHDRAW_RATE);
+        customer.getAccounts().add(account);
+        number++;
+      }
+      result.add(customer);
+    }
+    return result;
+  }
+
+  /**
+   * Hjälprutin som kontrollerar och skriver om ett personnummer
+   *
+   * @param text ÅÅÅÅMMDD-NNNK, ÅÅÅÅMMDDNNNK, ÅÅMMDD-NNNK eller ÅÅMMDD+NNNK
+   * @return ÅÅÅÅMMDD-NNNK, eller null om personnumret inte är giltigt
+   */
+  protected static String normalizePersonalNumber(String text) {
+    var digits = new StringBuilder(12);
+    var separator = '-';
+    var separatorAt = -1;
+    for (var i = 0; i < text.length(); i++) {
+      var c = text.charAt(i);
+      if (c >= '0' && c <= '9') {
+        digits.append(c);
+      } else if ((c == '-' || c == '+') && separatorAt < 0) {
+        separator = c;
+        separatorAt = digits.length();
+      } else {
+        return null;
+      }
+    }
+    if (separatorAt >= 0 && separatorAt != digits.length() - 4) {
+      return null;
+    }
+
+    var today = LocalDate.now();
+    int year;
+    if (digits.length() == 12) {
+      year = Integer.parseInt(digits, 0, 4, 10);
+    } else if (digits.length() == 10) {
+      // Århundradet väljs så att personen är under 100 år, eller minst 100 med +
+      var yy = Integer.parseInt(digits, 0, 2, 10);
+      year = today.getYear() - Math.floorMod(today.getYear() - yy, 100);
+      if (separator == '+') {
+        year -= 100;
+      }
+      digits.insert(0, year / 100);
+    } else {
+      return null;
+    }
+
+    var month = Integer.parseInt(digits, 4, 6, 10);
+    var day = Integer.parseInt(digits, 6, 8, 10);
+    try {
+      // Samordningsnummer har 60 lagt till dagen
+      if (LocalDate.of(year, month, day > 60 ? day - 60 : day).isAfter(today)) {
+        return null;
+      }
+    } catch (DateTimeException e) {
+      return null;
+    }
+    if (checkDigit(digits.subSequence(2, 11)) != digits.charAt(11) - '0') {
+      return null;
+    }
+    return digits.substring(0, 8) + "-" + digits.substring(8);
+  }
+
+  /**
+   * Hjälprutin som tolkar en bit av filen
+   *
+   * @param segment Biten, slutar efter en radbrytning eller vid filens slut
+   * @param first   Om biten är först i filen och kan ha rubrikrad
+   * @return raderna
+   */
+  private static Chunk parse(MemorySegment segment, boolean first) {
+    var chunk = new Chunk();
+    var bytes = segment.toArray(ValueLayout.JAVA_BYTE);
+    var position = 0;
+    if (first && bytes.length >= 3 && bytes[0] == (byte) 0xEF && bytes[1] == (byte) 0xBB && bytes[2] == (byte) 0xBF) {
+      position = 3; // UTF-8 BOM
+    }
+    while (position < bytes.length) {
+      var end = position;
+      while (end < bytes.length && bytes[end] != '\n') {
+        end++;
+      }
+      var next = end + 1;
+      if (end > position && bytes[end - 1] == '\r') {
+        end--;
+      }
+      chunk.lines++;
+      var line = new String(bytes, position, end - position, StandardCharsets.UTF_8);
+      position = next;
+      if (line.isBlank() || (first && chunk.lines == 1 && line.regionMatches(true, 0, HEADER, 0, HEADER.length()))) {
+        continue;
+      }
+      var reason = parseLine(line, chunk);
+      if (reason != null) {
+        chunk.rejected.add(new Rejected(chunk.lines, reason + ": " + line));
+      }
+    }
+    return chunk;
+  }
+
+  /**
+   * Hjälprutin som kontrollerar en rad och lägger till den om den är godkänd
+   *
+   * @param line
+   * @param chunk
+   * @return orsaken om raden avvisas, annars null
+   */
+  private static String parseLine(String line, Chunk chunk) {
+    var fields = line.split(SEPARATOR, -1);
+    if (fields.length < 3 || fields.length > 4) {
+      return "fel antal fält";
+    }
+    var pNo = normalizePersonalNumber(fields[0].strip());
+    if (pNo == null) {
+      return "ogiltigt personnummer";
+    }
+    var firstName = fields[1].strip();
+    var lastName = fields[2].strip();
+    if (firstName.isEmpty() || lastName.isEmpty()) {
+      return "namn saknas";
+    }
+    var accountTypes = fields.length == 4 ? fields[3].strip().toUpperCase(Locale.ROOT) : "";
+    if (!accountTypes.chars().allMatch(c -> c == 'S' || c == 'K')) {
+      return "okänd kontotyp, S eller K";
+    }
+    chunk.rows.add(new Row(chunk.lines, pNo, firstName, lastName, accountTypes));
+    return null;
+  }
+
+  protected BankImport() {
+    // Privat konstruktor för att förhindra instansiering
+  }
+}
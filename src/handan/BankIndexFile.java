@@ -0,0 +1,193 @@
+/**
+ * Klass som definierar indexfilen som sparas bredvid en bankfil.
+ * @author Hans Danielsson, handan-2
+ */
+package handan;
+
+/**
+ * Importsatser
+ */
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+/**
+ * När en bank läses in måste sökindex och läsvy byggas upp, och det mesta av
+ * tiden går åt till att sortera: kunderna på personnummer och namn, och alla
+ * transaktioner på tid och belopp. Indexfilen sparar den ordningen bredvid
+ * bankfilen, bank-x.dat får bank-x.idx, och vid inläsning mappas filen in och
+ * träden byggs direkt från ordningen utan att något sorteras om.
+ *
+ * <pre>
+ * huvud:  magic, version, bankfilens längd, journalens löpnummer, antal kunder,
+ *         konton och transaktioner, CRC-32C för resten, bankens id
+ * kunder: platsen i banken för kunderna sorterade på personnummer, efternamn
+ *         och förnamn, ett int per kund och ordning
+ * sedan:  transaktionsindexet, se TransactionIndex.write
+ * </pre>
+ *
+ * Filen gäller bara om huvudet stämmer med bankfilen och banken som lästes in
+ * och summan stämmer. Annars, eller om filen saknas, byggs allt om parallellt.
+ * Bankfilen är alltid det som gäller, indexfilen går att ta bort.
+ */
+public class BankIndexFile {
+
+  /**
+   * Det som lästs från indexfilen
+   *
+   * @param accounts         Antal konton när filen skrevs
+   * @param transactions     Antal transaktioner när filen skrevs
+   * @param byPersonalNumber Kundernas plats i banken sorterade på personnummer
+   * @param byLastName       Sorterade på efternamn
+   * @param byFirstName      Sorterade på förnamn
+   * @param transactionData  Transaktionsindexets del av filen
+   */
+  protected record Index(long accounts, long transactions, int[] byPersonalNumber, int[] byLastName,
+      int[] byFirstName, ByteBuffer transactionData) {
+  }
+
+  private static final int MAGIC = 0x48494458; // "HIDX"
+  private static final int VERSION = 1;
+  private static final String EXTENSION = ".idx";
+
+  /**
+   * Skapar indexfilens innehåll för banken som den är nu. Anropas i bankens tråd
+   * direkt efter att banken serialiserats, så att filen visar samma bank.
+   *
+   * @param bank
+   * @param bankFileLength Bankfilens längd i bytes
+   * @return buffertarna, eller null om indexet är för stort för en buffert
+   */
+  protected static ByteBuffer[] create(BankLogic bank, long bankFileLength) {
+    var customers = bank.getAllCustomersList();
+    var positions = HashMap.<String, Integer>newHashMap(customers.size());
+    for (var i = 0; i < customers.size(); i++) {
+      positions.put(customers.get(i).getPersonalNumber(), i);
+    }
+    var byPersonalNumber = bank.snapshot().getCustomersByPersonalNumber();
+    if (positions.size() != customers.size() || byPersonalNumber.size() != customers.size()) {
+      return null; // Samma personnummer två gånger
+    }
+    var transactions = bank.getTransactionIndex().write(positions);
+    if (transactions == null) {
+      return null;
+    }
+
+    var orders = ByteBuffer.allocate(3 * Integer.BYTES * customers.size());
+    byPersonalNumber.forEach(c -> orders.putInt(positions.get(c.personalNumber())));
+    putPositions(orders, bank.getNameIndex().byLastName(), positions);
+    putPositions(orders, bank.getNameIndex().byFirstName(), positions);
+    orders.flip();
+    var accounts = byPersonalNumber.stream().mapToLong(c -> c.accounts().size()).sum();
+
+    var crc = new CRC32C();
+    crc.update(orders.duplicate());
+    crc.update(transactions.duplicate());
+    var bankId = bank.getBankId().getBytes(StandardCharsets.UTF_8);
+    var header = ByteBuffer.allocate(5 * Long.BYTES + 4 * Integer.BYTES + bankId.length);
+    header.putInt(MAGIC).putInt(VERSION).putLong(bankFileLength).putLong(bank.getJournalSequence())
+        .putInt(customers.size()).putLong(accounts).putLong(bank.getTransactionIndex().size())
+        .putLong(crc.getValue()).putInt(bankId.length).put(bankId);
+    return new ByteBuffer[] { header.flip(), orders, transactions };
+  }
+
+  /**
+   * Indexfilen till en bankfil
+   *
+   * @param bankFile bank-x.dat
+   * @return bank-x.idx
+   */
+  protected static Path indexPath(Path bankFile) {
+    var name = bankFile.getFileName().toString();
+    var dot = name.lastIndexOf('.');
+    return bankFile.resolveSibling((dot < 0 ? name : name.substring(0, dot)) + EXTENSION);
+  }
+
+  /**
+   * Fyller i sökindex, statistik och läsvy för en nyss inläst bank, från
+   * indexfilen om den passar och annars genom att bygga om dem parallellt.
+   *
+   * @param bank     Nyss inläst
+   * @param bankFile Filen banken lästes från
+   */
+  protected static void load(BankLogic bank, Path bankFile) {
+    var indexFile = indexPath(bankFile);
+    if (Files.exists(indexFile)) {
+      try {
+        var index = read(indexFile, bank, Files.size(bankFile));
+        if (index != null && bank.restoreIndexes(index)) {
+          return;
+        }
+      } catch (IOException | RuntimeException e) {
+        System.err.println("Kan inte läsa indexfil " + indexFile + ": " + e);
+      }
+      System.err.println("Indexfil " + indexFile + " passar inte banken, index byggs om");
+    }
+    bank.rebuildIndexes();
+  }
+
+  /**
+   * Hjälprutin som lägger till kundernas platser i ordning
+   *
+   * @param out
+   * @param customers Kunderna i indexets ordning
+   * @param positions Kundens plats på personnummer
+   */
+  private static void putPositions(ByteBuffer out, Collection<Customer> customers, Map<String, Integer> positions) {
+    customers.forEach(c -> out.putInt(positions.get(c.getPersonalNumber())));
+  }
+
+  /**
+   * Hjälprutin som mappar in indexfilen och kontrollerar huvudet mot banken
+   *
+   * @param indexFile
+   * @param bank           Nyss inläst
+   * @param bankFileLength
+   * @return innehållet, eller null om filen inte hör till bankfilen
+   * @throws IOException
+   */
+  private static Index read(Path indexFile, BankLogic bank, long bankFileLength) throws IOException {
+    ByteBuffer in;
+    try (var channel = FileChannel.open(indexFile)) {
+      in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+    List<Customer> customers = bank.getAllCustomersList();
+    if (in.getInt() != MAGIC || in.getInt() != VERSION || in.getLong() != bankFileLength
+        || in.getLong() != bank.getJournalSequence() || in.getInt() != customers.size()) {
+      return null;
+    }
+    var accounts = in.getLong();
+    var transactions = in.getLong();
+    var storedCrc = in.getLong();
+    var bankId = new byte[in.getInt()];
+    in.get(bankId);
+    if (!new String(bankId, StandardCharsets.UTF_8).equals(bank.getBankId())) {
+      return null;
+    }
+    var crc = new CRC32C();
+    crc.update(in.duplicate());
+    if (crc.getValue() != storedCrc) {
+      return null;
+    }
+
+    var orders = in.asIntBuffer();
+    var byPersonalNumber = new int[customers.size()];
+    var byLastName = new int[customers.size()];
+    var byFirstName = new int[customers.size()];
+    orders.get(byPersonalNumber).get(byLastName).get(byFirstName);
+    in.position(in.position() + 3 * Integer.BYTES * customers.size());
+    return new Index(accounts, transactions, byPersonalNumber, byLastName, byFirstName, in.slice());
+  }
+
+  protected BankIndexFile() {
+    // Privat konstruktor för att förhindra instansiering
+  }
+}
@@ -0,0 +1,671 @@
+/**
+ * Klass som definierar en journal (logg) över bankens operationer.
+ * @author Hans Danielsson, handan-2
+ */
+package handan;
+
+/**
+ * Importsatser
+ */
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Journalen sparar varje lyckad ändring i banken som en post på fil. Efter en
+ * krasch läses senaste ögonblicksbild (bank-*.dat) in och posterna efter den
+ * spelas upp igen. Varje post har formen [längd][data][crc32], en avbruten
+ * skrivning i slutet av filen upptäcks därför och kapas bort.
+ *
+ * Skrivningen görs med gruppcommit: anroparna lägger sina poster i en kö och en
+ * skrivtråd samlar ihop dem till en skrivning och en fsync. Varje anropare
+ * släpps först när dess post ligger på disk. Största batch och längsta väntan
+ * på fler poster styrs med handan.journal.maxBatch och
+ * handan.journal.maxWaitMicros. En batch blir bara större än en post om flera
+ * poster ligger i kön samtidigt, dvs. om anroparna använder appendAsync eller
+ * om flera trådar skriver. Går en skrivning fel stängs journalen för nya poster,
+ * banken har då ändringar som inte finns på disk. Skrivtråden stoppas av close.
+ */
+public class BankJournal implements Closeable {
+
+  protected static final String JOURNAL_NAME = "bank.journal";
+  protected static final String PREVIOUS_NAME = "bank.journal.1";
+  private static final String HEADER = "HEADER";
+  private static final int MAX_RECORD_SIZE = 1 << 20; // Skydd mot trasig längd
+  private static final int DEFAULT_MAX_BATCH = 256;
+  private static final long DEFAULT_MAX_WAIT_MICROS = 0; // Ta bara med det som redan väntar
+
+  /**
+   * En post som väntar på att skrivas. Utan data är den en markör som bara
+   * väntar in alla poster före den.
+   *
+   * @param data Posten eller null
+   * @param done Klar när posten ligger på disk
+   */
+  private record Pending(byte[] data, CompletableFuture<Void> done) {
+  }
+
+  private static final Pending STOP = new Pending(null, null); // Sista posten i kön, stoppar skrivtråden
+
+  /**
+   * En inläst post från journalen.
+   *
+   * @param seq  Löpnummer
+   * @param op   Operation, t.ex. DEPOSIT
+   * @param args Argument till operationen
+   */
+  protected record JournalRecord(long seq, String op, List<String> args) {
+  }
+
+  /**
+   * Hjälprutin som kodar en post till bytes med längd och kontrollsumma.
+   *
+   * @param seq
+   * @param op
+   * @param args
+   * @return hela posten
+   */
+  protected static byte[] encode(long seq, String op, String... args) {
+    try {
+      var payload = new ByteArrayOutputStream(64);
+      var out = new DataOutputStream(payload);
+      out.writeLong(seq);
+      out.writeUTF(op);
+      out.writeByte(args.length);
+      for (var arg : args) {
+        out.writeUTF(arg == null ? "" : arg);
+      }
+      out.flush();
+
+      var data = payload.toByteArray();
+      var crc = new CRC32();
+      crc.update(data);
+      return ByteBuffer.allocate(data.length + 8).putInt(data.length).put(data).putInt((int) crc.getValue()).array();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Kodar en post direkt in i en befintlig buffert, i samma format som encode,
+   * utan att skapa några nya objekt. Används av BankPipeline.
+   *
+   * @param out   Bufferten, posten läggs från dess position
+   * @param crc   Återanvänd kontrollsumma
+   * @param seq   Löpnummer
+   * @param op    Operation
+   * @param args  Argument
+   * @param count Antal argument som används i args
+   * @return false om posten inte får plats, bufferten är då oförändrad
+   */
+  protected static boolean encodeInto(ByteBuffer out, CRC32 crc, long seq, String op, CharSequence[] args,
+      int count) {
+    var start = out.position();
+    try {
+      out.putInt(0); // Längden skrivs sist
+      out.putLong(seq);
+      putUtf(out, op);
+      out.put((byte) count);
+      for (var i = 0; i < count; i++) {
+        putUtf(out, args[i] == null ? "" : args[i]);
+      }
+      var length = out.position() - start - 4;
+      out.putInt(start, length);
+      crc.reset();
+      crc.update(out.slice(start + 4, length));
+      out.putInt((int) crc.getValue());
+      return true;
+    } catch (BufferOverflowException | IllegalArgumentException e) {
+      out.position(start);
+      return false;
+    }
+  }
+
+  /**
+   * Hjälprutin som skriver text som DataOutput.writeUTF, dvs längd och
+   * modifierad UTF-8.
+   *
+   * @param out
+   * @param text
+   */
+  private static void putUtf(ByteBuffer out, CharSequence text) {
+    var lengthPos = out.position();
+    out.putShort((short) 0);
+    for (var i = 0; i < text.length(); i++) {
+      var c = text.charAt(i);
+      if (c >= 0x0001 && c <= 0x007F) {
+        out.put((byte) c);
+      } else if (c <= 0x07FF) {
+        out.put((byte) (0xC0 | ((c >> 6) & 0x1F))).put((byte) (0x80 | (c & 0x3F)));
+      } else {
+        out.put((byte) (0xE0 | ((c >> 12) & 0x0F))).put((byte) (0x80 | ((c >> 6) & 0x3F)))
+            .put((byte) (0x80 | (c & 0x3F)));
+      }
+    }
+    var length = out.position() - lengthPos - 2;
+    if (length > 0xFFFF) {
+      throw new IllegalArgumentException("För lång text i journalpost");
+    }
+    out.putShort(lengthPos, (short) length);
+  }
+
+  /**
+   * Läser alla hela poster i en fil. Läsningen stannar vid första trasiga posten.
+   *
+   * @param file    Journalfilen
+   * @param records Lista som fylls med posterna
+   * @return antal bytes som är giltiga
+   * @throws IOException
+   */
+  private static long readRecords(Path file, List<JournalRecord> records) throws IOException {
+    if (!Files.exists(file)) {
+      return 0;
+    }
+
+    long validLength = 0;
+    try (var in = new DataInputStream(Files.newInputStream(file))) {
+      while (true) {
+        var length = in.readInt();
+        if (length <= 0 || length > MAX_RECORD_SIZE) {
+          break;
+        }
+        var data = in.readNBytes(length);
+        if (data.length < length) {
+          break;
+        }
+        var crc = new CRC32();
+        crc.update(data);
+        if (in.readInt() != (int) crc.getValue()) {
+          break;
+        }
+        records.add(decode(data));
+        validLength += length + 8L;
+      }
+    } catch (EOFException ignored) {
+      // Avbruten skrivning i slutet av filen
+    }
+    return validLength;
+  }
+
+  /**
+   * Hjälprutin som avkodar data-delen av en post.
+   *
+   * @param data
+   * @return posten
+   * @throws IOException
+   */
+  private static JournalRecord decode(byte[] data) throws IOException {
+    var in = new DataInputStream(new ByteArrayInputStream(data));
+    var seq = in.readLong();
+    var op = in.readUTF();
+    var count = in.readUnsignedByte();
+    List<String> args = new ArrayList<>(count);
+    for (var i = 0; i < count; i++) {
+      args.add(in.readUTF());
+    }
+    return new JournalRecord(seq, op, List.copyOf(args));
+  }
+
+  private final Path path;
+  private final Path previous;
+  private final int maxBatch;
+  private final long maxWaitNanos;
+  private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+  private final Thread flusher;
+  private boolean closed; // Skyddas av queue, inga poster läggs efter STOP
+  private volatile UncheckedIOException failure; // Första felet vid skrivning
+  private FileChannel channel;
+  private int records; // Antal poster sedan senaste ögonblicksbild
+  private int generation; // Räknas upp när journalen roteras eller töms
+  private long flushes; // Antal fsync för poster
+
+  /**
+   * Skapa en journal i katalogen dir med gruppcommit enligt systemegenskaperna
+   *
+   * @param dir Katalog för journalfilerna
+   */
+  protected BankJournal(Path dir) {
+    this(dir, Integer.getInteger("handan.journal.maxBatch", DEFAULT_MAX_BATCH),
+        TimeUnit.MICROSECONDS.toNanos(Long.getLong("handan.journal.maxWaitMicros", DEFAULT_MAX_WAIT_MICROS)));
+  }
+
+  /**
+   * Skapa en journal i katalogen dir
+   *
+   * @param dir          Katalog för journalfilerna
+   * @param maxBatch     Högst så många poster per skrivning
+   * @param maxWaitNanos Så länge väntar skrivtråden på fler poster
+   */
+  protected BankJournal(Path dir, int maxBatch, long maxWaitNanos) {
+    this.path = dir.resolve(JOURNAL_NAME);
+    this.previous = dir.resolve(PREVIOUS_NAME);
+    this.maxBatch = Math.max(1, maxBatch);
+    this.maxWaitNanos = Math.max(0, maxWaitNanos);
+
+    flusher = new Thread(this::flushLoop, "journal-flusher");
+    flusher.setDaemon(true);
+    flusher.start();
+  }
+
+  /**
+   * Skriver en post och väntar tills den ligger på disk.
+   *
+   * @param seq  Löpnummer
+   * @param op   Operation
+   * @param args Argument
+   */
+  protected void append(long seq, String op, String... args) {
+    await(appendAsync(seq, op, args));
+  }
+
+  /**
+   * Lägger en post i kön utan att vänta.
+   *
+   * @param seq  Löpnummer
+   * @param op   Operation
+   * @param args Argument
+   * @return klar när posten ligger på disk
+   */
+  protected CompletableFuture<Void> appendAsync(long seq, String op, String... args) {
+    var pending = new Pending(encode(seq, op, args), new CompletableFuture<>());
+    enqueue(pending);
+    return pending.done();
+  }
+
+  /**
+   * Skriver färdigkodade poster med en skrivning och en fsync. Används av
+   * BankPipeline och massimporten som själva samlar posterna i batchar. Anroparen
+   * ska först vänta in kön med sync, annars kan posterna hamna i fel ordning.
+   *
+   * @param batch Posterna från position till limit
+   * @param count Antal poster
+   * @throws IOException
+   */
+  protected synchronized void appendEncoded(ByteBuffer batch, int count) throws IOException {
+    if (failure != null) {
+      throw failure.getCause();
+    }
+    if (channel == null || count == 0) {
+      return;
+    }
+    try {
+      while (batch.hasRemaining()) {
+        channel.write(batch);
+      }
+      channel.force(false);
+    } catch (IOException e) {
+      failure = new UncheckedIOException(e);
+      throw e;
+    }
+    records += count;
+    flushes++;
+  }
+
+  /**
+   * Hjälprutin som väntar på en post och kastar om fel uppstått vid skrivningen
+   *
+   * @param done
+   */
+  private static void await(CompletableFuture<Void> done) {
+    try {
+      done.join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof UncheckedIOException io) {
+        throw io;
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Skriver det som ligger i kön, stoppar skrivtråden och stänger filen. Poster
+   * som läggs efter close misslyckas.
+   */
+  @Override
+  public void close() {
+    synchronized (queue) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      queue.add(STOP);
+    }
+    try {
+      flusher.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    synchronized (this) {
+      closeChannel();
+    }
+  }
+
+  /**
+   * Hjälprutin som stänger filen
+   */
+  private void closeChannel() {
+    if (channel != null) {
+      try {
+        channel.close();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+      channel = null;
+    }
+  }
+
+  /**
+   * Hjälprutin som skapar en tom journalfil med huvud för banken.
+   *
+   * @param bankId
+   * @throws IOException
+   */
+  private void createNew(String bankId) throws IOException {
+    closeChannel();
+    channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING);
+    channel.write(ByteBuffer.wrap(encode(0, HEADER, bankId)));
+    channel.force(true);
+    records = 0;
+  }
+
+  /**
+   * Hjälprutin som lägger en post eller markör i kön. Efter close eller ett
+   * skrivfel misslyckas den direkt.
+   *
+   * @param pending
+   */
+  private void enqueue(Pending pending) {
+    synchronized (queue) {
+      if (failure != null) {
+        pending.done().completeExceptionally(failure);
+      } else if (closed) {
+        pending.done().completeExceptionally(new IllegalStateException("Journalen är stängd"));
+      } else {
+        queue.add(pending);
+      }
+    }
+  }
+
+  /**
+   * Skrivtråden: väntar på en post, samlar ihop fler upp till maxBatch eller
+   * maxWait och skriver alla med en skrivning och en fsync. Avslutas när STOP
+   * tas ur kön, då är alla poster före den skrivna.
+   */
+  private void flushLoop() {
+    List<Pending> batch = new ArrayList<>(maxBatch);
+    var stop = false;
+    while (!stop) {
+      try {
+        var first = queue.take();
+        stop = first == STOP;
+        if (!stop) {
+          batch.add(first);
+        }
+        var deadline = System.nanoTime() + maxWaitNanos;
+        while (!stop && batch.size() < maxBatch) {
+          var next = maxWaitNanos == 0 ? queue.poll()
+              : queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+          if (next == null) {
+            break;
+          }
+          stop = next == STOP;
+          if (!stop) {
+            batch.add(next);
+          }
+        }
+      } catch (InterruptedException e) {
+        return;
+      }
+
+      try {
+        if (failure != null) {
+          throw failure;
+        }
+        writeBatch(batch);
+        batch.forEach(p -> p.done().complete(null));
+      } catch (IOException e) {
+        failure = new UncheckedIOException(e);
+        System.err.println("Journal: kan inte skriva, nya poster stoppas: " + e);
+        batch.forEach(p -> p.done().completeExceptionally(failure));
+      } catch (UncheckedIOException e) {
+        batch.forEach(p -> p.done().completeExceptionally(e));
+      }
+      batch.clear();
+    }
+  }
+
+  /**
+   * Hur många gånger journalen har roterats eller tömts. En ögonblicksbild
+   * sparar värdet när den tas, se rotate.
+   *
+   * @return generation
+   */
+  protected synchronized int getGeneration() {
+    return generation;
+  }
+
+  /**
+   * Antal fsync som gjorts för poster, tillsammans med antal poster ger det
+   * storleken på batcharna.
+   *
+   * @return flushes
+   */
+  protected synchronized long getFlushCount() {
+    return flushes;
+  }
+
+  /**
+   * Antal poster som skrivits sedan senaste ögonblicksbild.
+   *
+   * @return records
+   */
+  protected synchronized int getRecordCount() {
+    return records;
+  }
+
+  /**
+   * Spelar upp journalen mot banken som just lästs in från ögonblicksbilden och
+   * öppnar sedan journalen för nya poster. Poster som redan finns i
+   * ögonblicksbilden hoppas över. Saknas en post i följden avbryts uppspelningen.
+   *
+   * @param bank Banken från senaste ögonblicksbild
+   * @return antal uppspelade poster
+   */
+  protected synchronized int recover(BankLogic bank) {
+    try {
+      List<JournalRecord> all = new ArrayList<>();
+      var bankId = bank.getBankId();
+
+      List<JournalRecord> older = new ArrayList<>();
+      readRecords(previous, older);
+      if (isSameBank(older, bankId)) {
+        all.addAll(older.subList(1, older.size()));
+      }
+
+      List<JournalRecord> current = new ArrayList<>();
+      var validLength = readRecords(path, current);
+      var sameBank = isSameBank(current, bankId);
+      if (sameBank) {
+        all.addAll(current.subList(1, current.size()));
+      }
+
+      var replayed = 0;
+      var complete = true;
+      for (var rec : all) {
+        if (rec.seq() <= bank.getJournalSequence()) {
+          continue;
+        }
+        if (rec.seq() != bank.getJournalSequence() + 1) {
+          System.err.println("Journal: saknad post före " + rec.seq() + ", uppspelningen avbryts");
+          complete = false;
+          break;
+        }
+        bank.replay(rec);
+        replayed++;
+      }
+
+      if (!sameBank || !complete) {
+        // Journalen saknas, hör till en annan bank eller har en lucka, börja om.
+        createNew(bankId);
+        return replayed;
+      }
+
+      // Kapa bort en eventuell halvskriven post och fortsätt skriva efter den.
+      closeChannel();
+      channel = FileChannel.open(path, StandardOpenOption.WRITE);
+      channel.truncate(validLength);
+      channel.position(validLength);
+      channel.force(true);
+      records = current.size() - 1;
+      return replayed;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Hjälprutin som kollar att journalens huvud tillhör banken.
+   *
+   * @param list
+   * @param bankId
+   * @return true om huvudet matchar
+   */
+  private static boolean isSameBank(List<JournalRecord> list, String bankId) {
+    if (list.isEmpty()) {
+      return false;
+    }
+    var head = list.get(0);
+    return HEADER.equals(head.op()) && head.args().size() == 1 && bankId.equals(head.args().get(0));
+  }
+
+  /**
+   * Tömmer journalen helt, t.ex. när en annan bank har lästs in.
+   *
+   * @param bankId Den nya bankens id
+   */
+  protected void reset(String bankId) {
+    sync();
+    synchronized (this) {
+      resetFiles(bankId);
+    }
+  }
+
+  /**
+   * Hjälprutin som tar bort föregående journal och skapar en ny tom
+   *
+   * @param bankId
+   */
+  private void resetFiles(String bankId) {
+    try {
+      Files.deleteIfExists(previous);
+      createNew(bankId);
+      generation++;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Anropas efter att en ögonblicksbild har sparats. Nuvarande journal sparas som
+   * föregående och en ny tom påbörjas, så att uppspelningen vid start blir kort.
+   * Ögonblicksbilden skrivs i bakgrunden medan nya poster kommer in. Har
+   * journalen roterats efter att bilden togs kan föregående journal innehålla
+   * poster som bilden saknar, då roteras den inte. En stängd journal roteras
+   * inte heller.
+   *
+   * @param bankId     Bankens id
+   * @param generation Värdet från getGeneration() när ögonblicksbilden togs
+   * @return true om journalen roterades
+   */
+  protected boolean rotate(String bankId, int generation) {
+    sync();
+    synchronized (queue) {
+      if (closed) {
+        return false;
+      }
+    }
+    synchronized (this) {
+      if (generation != this.generation) {
+        return false;
+      }
+      rotateFiles(bankId);
+      return true;
+    }
+  }
+
+  /**
+   * Hjälprutin som sparar nuvarande journal som föregående och skapar en ny
+   *
+   * @param bankId
+   */
+  private void rotateFiles(String bankId) {
+    try {
+      closeChannel();
+      if (Files.exists(path)) {
+        Files.move(path, previous, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      }
+      createNew(bankId);
+      generation++;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Väntar tills alla poster som ligger i kön är skrivna.
+   */
+  protected void sync() {
+    synchronized (queue) {
+      if (closed) {
+        return; // close har redan skrivit kön
+      }
+    }
+    var marker = new Pending(null, new CompletableFuture<>());
+    enqueue(marker);
+    await(marker.done());
+  }
+
+  /**
+   * Hjälprutin som skriver en batch med en samlad skrivning och en fsync.
+   *
+   * @param batch
+   * @throws IOException
+   */
+  private synchronized void writeBatch(List<Pending> batch) throws IOException {
+    if (channel == null) {
+      return;
+    }
+    var buffers = batch.stream().filter(p -> p.data() != null).map(p -> ByteBuffer.wrap(p.data()))
+        .toArray(ByteBuffer[]::new);
+    if (buffers.length == 0) {
+      return;
+    }
+    while (buffers[buffers.length - 1].hasRemaining()) {
+      channel.write(buffers);
+    }
+    channel.force(false);
+    records += buffers.length;
+    flushes++;
+  }
+}
@@ -0,0 +1,132 @@
+/**
+ * Klass som mäter journalens gruppcommit.
+ * @author Hans Danielsson, handan-2
+ */
+package handan;
+
+/**
+ * Importsatser
+ */
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Skriver journalposter med olika största batch och längsta väntan på fler
+ * poster och skriver ut poster per sekund och poster per fsync. Posterna skrivs
+ * antingen av flera trådar som var och en väntar på sin post, som klienter mot
+ * en delad journal, eller av en tråd med appendAsync som BankLogic.log gör.
+ * Journalen skapas i en temporär katalog som tas bort efteråt. Körs med: java
+ * handan.BankJournalBenchmark [poster per mätning]
+ */
+public class BankJournalBenchmark {
+
+  private static final int[] MAX_BATCHES = { 1, 256 };
+  private static final long[] MAX_WAIT_MICROS = { 0, 100, 1000 };
+  private static final int[] PRODUCERS = { 1, 8, 64 };
+  private static final int ASYNC = 0; // Ingen tråd väntar, en tråd med appendAsync
+  private static final int IN_FLIGHT = 1024; // Poster i luften med appendAsync
+
+  /**
+   * Hjälprutin som tar bort katalogen med journalen
+   *
+   * @param dir
+   */
+  private static void delete(Path dir) {
+    try (var files = Files.walk(dir)) {
+      for (var file : files.sorted(Comparator.reverseOrder()).toList()) {
+        Files.deleteIfExists(file);
+      }
+    } catch (IOException e) {
+      System.err.println("Kan inte ta bort " + dir + ": " + e);
+    }
+  }
+
+  /**
+   * Mäter en inställning
+   *
+   * @param maxBatch
+   * @param maxWaitMicros
+   * @param producers     Antal trådar som väntar på sina poster, eller ASYNC
+   * @param count         Antal poster
+   * @return poster per sekund och poster per fsync
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  private static double[] measure(int maxBatch, long maxWaitMicros, int producers, int count)
+      throws IOException, InterruptedException {
+    var dir = Files.createTempDirectory("journal-");
+    var journal = new BankJournal(dir, maxBatch, TimeUnit.MICROSECONDS.toNanos(maxWaitMicros));
+    try {
+      journal.recover(new BankLogic()); // Skapar journalfilen
+      var seq = new AtomicLong();
+      var start = System.nanoTime();
+      if (producers == ASYNC) {
+        List<CompletableFuture<Void>> pending = new ArrayList<>(IN_FLIGHT);
+        for (var i = 0; i < count; i++) {
+          pending.add(journal.appendAsync(seq.incrementAndGet(), BankLogic.OP_DEPOSIT, "19700101-1234", "1001",
+              "100"));
+          if (pending.size() == IN_FLIGHT) {
+            pending.forEach(CompletableFuture::join);
+            pending.clear();
+          }
+        }
+        pending.forEach(CompletableFuture::join);
+      } else {
+        var threads = new Thread[producers];
+        for (var t = 0; t < producers; t++) {
+          var share = count / producers + (t < count % producers ? 1 : 0);
+          threads[t] = new Thread(() -> {
+            for (var i = 0; i < share; i++) {
+              journal.append(seq.incrementAndGet(), BankLogic.OP_DEPOSIT, "19700101-1234", "1001", "100");
+            }
+          });
+          threads[t].start();
+        }
+        for (var thread : threads) {
+          thread.join();
+        }
+      }
+      var seconds = (System.nanoTime() - start) / 1e9;
+      return new double[] { count / seconds, (double) count / journal.getFlushCount() };
+    } finally {
+      journal.close();
+      delete(dir);
+    }
+  }
+
+  /**
+   * Startrutin
+   *
+   * @param args [poster per mätning]
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  public static void main(String[] args) throws IOException, InterruptedException {
+    var count = args.length > 0 ? Integer.parseInt(args[0]) : 5_000;
+
+    measure(256, 0, ASYNC, count); // Uppvärmning
+    System.out.printf("%d poster per mätning%n", count);
+    System.out.println("maxBatch  maxWait µs  Trådar     Poster/s  Poster/fsync");
+    for (var maxBatch : MAX_BATCHES) {
+      for (var maxWait : MAX_WAIT_MICROS) {
+        for (var producers : PRODUCERS) {
+          var result = measure(maxBatch, maxWait, producers, count);
+          System.out.printf("%8d  %10d  %6d  %11.0f  %12.1f%n", maxBatch, maxWait, producers, result[0], result[1]);
+        }
+        var result = measure(maxBatch, maxWait, ASYNC, count);
+        System.out.printf("%8d  %10d  %6s  %11.0f  %12.1f%n", maxBatch, maxWait, "async", result[0], result[1]);
+      }
+    }
+  }
+
+  protected BankJournalBenchmark() {
+    // Privat konstruktor för att förhindra instansiering
+  }
+}
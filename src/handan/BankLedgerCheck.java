@@ -0,0 +1,311 @@
+/**
+ * Klass som definierar en kontroll av att bankens konton stämmer.
+ * @author Hans Danielsson, handan-2
+ */
+package handan;
+
+/**
+ * Importsatser
+ */
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Går igenom alla kunder och konton parallellt med fork/join. Kunderna delas
+ * upp tills en deluppgift har högst THRESHOLD kunder. För varje konto spelas
+ * transaktionerna upp från startsaldot 0 kr och jämförs med kontots saldo och
+ * med saldot i varje transaktion. Kreditkonton kontrolleras mot kreditgränsen,
+ * sparkonton får inte ha negativt saldo. Kontonumren samlas i en int-array som
+ * sorteras, så dubbletter hittas utan en map med ett objekt per konto.
+ *
+ * Körs mot en levande bank från menyn, på bankens tråd så att inget ändras
+ * under kontrollen, eller mot en sparad bank med: java handan.BankLedgerCheck
+ * bank.dat
+ */
+public class BankLedgerCheck {
+
+  /**
+   * Resultatet av en kontroll
+   *
+   * @param problems     Avvikelserna, högst MAX_REPORTED
+   * @param problemCount Antal avvikelser
+   * @param customers
+   * @param accounts
+   * @param transactions
+   * @param millis       Tid för kontrollen
+   */
+  protected record Result(List<String> problems, long problemCount, long customers, long accounts,
+      long transactions, long millis) {
+
+    /**
+     * Om banken stämmer
+     *
+     * @return true om inga avvikelser hittades
+     */
+    protected boolean isConsistent() {
+      return problemCount == 0;
+    }
+
+    /**
+     * Resultatet som text, en rad per avvikelse
+     *
+     * @return rader
+     */
+    protected List<String> report() {
+      var lines = new ArrayList<String>();
+      lines.add(String.format("Kontrollerade %,d kunder, %,d konton och %,d transaktioner på %,d ms", customers,
+          accounts, transactions, millis));
+      lines.add(isConsistent() ? "Inga avvikelser" : String.format("%,d avvikelser:", problemCount));
+      lines.addAll(problems);
+      if (problemCount > problems.size()) {
+        lines.add(String.format("... och %,d till", problemCount - problems.size()));
+      }
+      return lines;
+    }
+  }
+
+  /**
+   * Det en deluppgift har hittat
+   */
+  private static final class Part {
+    private final List<String> problems = new ArrayList<>();
+    private final List<int[]> accountNumbers = new ArrayList<>();
+    private long problemCount;
+    private long accounts;
+    private long transactions;
+
+    private void problem(String text) {
+      problemCount++;
+      if (problems.size() < MAX_REPORTED) {
+        problems.add(text);
+      }
+    }
+
+    private Part merge(Part other) {
+      other.problems.forEach(this::problem);
+      problemCount += other.problemCount - other.problems.size();
+      accountNumbers.addAll(other.accountNumbers);
+      accounts += other.accounts;
+      transactions += other.transactions;
+      return this;
+    }
+  }
+
+  /**
+   * Kontrollerar kunderna från och med from till to
+   */
+  private static final class CheckTask extends RecursiveTask<Part> {
+    private static final long serialVersionUID = 611114L;
+    private final transient BankLogic bank;
+    private final transient List<Customer> customers;
+    private final transient BooleanSupplier cancelled;
+    private final int from;
+    private final int to;
+
+    private CheckTask(BankLogic bank, List<Customer> customers, BooleanSupplier cancelled, int from, int to) {
+      this.bank = bank;
+      this.customers = customers;
+      this.cancelled = cancelled;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected Part compute() {
+      if (to - from > THRESHOLD) {
+        var mid = (from + to) >>> 1;
+        var left = new CheckTask(bank, customers, cancelled, from, mid);
+        left.fork();
+        var right = new CheckTask(bank, customers, cancelled, mid, to).compute();
+        return left.join().merge(right);
+      }
+      if (cancelled.getAsBoolean()) {
+        throw new CancellationException("Kontrollen avbröts");
+      }
+
+      var part = new Part();
+      var numbers = new int[16];
+      var count = 0;
+      for (var i = from; i < to; i++) {
+        var customer = customers.get(i);
+        var accounts = accountsOf(bank, customer);
+        for (var account : accounts) {
+          checkAccount(customer.getPersonalNumber(), account, part);
+          if (count == numbers.length) {
+            numbers = Arrays.copyOf(numbers, count * 2);
+          }
+          numbers[count++] = account.getAccountNumber();
+        }
+        if (customer.isPagedOut()) {
+          accounts.forEach(Account::release);
+        }
+      }
+      part.accountNumbers.add(Arrays.copyOf(numbers, count));
+      return part;
+    }
+  }
+
+  private static final int THRESHOLD = 512; // Kunder per deluppgift
+  private static final int MAX_REPORTED = 1000; // Avvikelser som visas
+
+  /**
+   * Hjälprutin som hämtar kundens konton. Ligger de på disk läses de direkt ur
+   * lagret, kunden flyttas inte in i minnet.
+   *
+   * @param bank
+   * @param customer
+   * @return kontona
+   */
+  private static List<Account> accountsOf(BankLogic bank, Customer customer) {
+    if (!customer.isPagedOut()) {
+      return customer.getAccounts();
+    }
+    var data = bank.getCache().readStored(customer.getPersonalNumber());
+    return data == null ? List.of() : CustomerCache.toAccounts(data);
+  }
+
+  /**
+   * Kontrollerar hela banken. Banken får inte ändras under tiden.
+   *
+   * @param bank
+   * @return resultatet
+   */
+  protected static Result check(BankLogic bank) {
+    return check(bank, () -> false);
+  }
+
+  /**
+   * Kontrollerar hela banken och slutar i förtid om cancelled blir sann. Den
+   * läses före varje deluppgift, så inga konton är halvvägs lästa när
+   * kontrollen slutar.
+   *
+   * @param bank
+   * @param cancelled Svarar true när kontrollen ska avbrytas
+   * @return resultatet
+   * @throws CancellationException om kontrollen avbröts
+   */
+  protected static Result check(BankLogic bank, BooleanSupplier cancelled) {
+    var start = System.nanoTime();
+    var customers = bank.getAllCustomersList();
+    var part = ForkJoinPool.commonPool().invoke(new CheckTask(bank, customers, cancelled, 0, customers.size()));
+    checkAccountNumbers(bank, customers, part);
+    return new Result(List.copyOf(part.problems), part.problemCount, customers.size(), part.accounts,
+        part.transactions, (System.nanoTime() - start) / 1_000_000);
+  }
+
+  /**
+   * Hjälprutin som spelar upp kontots transaktioner och jämför med saldona
+   *
+   * @param pNo
+   * @param account
+   * @param part
+   */
+  private static void checkAccount(String pNo, Account account, Part part) {
+    var log = account.getTransactionLog();
+    var prefix = pNo + " " + account.getAccountNumber() + ": ";
+    var sum = 0L; // Startsaldot är 0 kr
+    var chainBroken = false;
+    for (var i = 0; i < log.size(); i++) {
+      sum += log.getAmount(i);
+      if (!chainBroken && log.getBalance(i) != sum) {
+        part.problem(prefix + "transaktion " + (i + 1) + " har saldo " + format(log.getBalance(i))
+            + " men transaktionerna ger " + format(sum));
+        chainBroken = true;
+      }
+    }
+
+    var balance = Account.toMinor(account.getAccountBalance());
+    if (balance != sum) {
+      part.problem(prefix + "saldo " + format(balance) + " men transaktionerna ger " + format(sum));
+    }
+    if (account instanceof CreditAccount credit) {
+      var limit = Account.toMinor(credit.getCreditLimit());
+      if (balance < -limit) {
+        part.problem(prefix + "saldo " + format(balance) + " under kreditgränsen " + format(-limit));
+      }
+    } else if (balance < 0) {
+      part.problem(prefix + "negativt saldo " + format(balance) + " på " + account.getAccountType());
+    }
+    part.accounts++;
+    part.transactions += log.size();
+  }
+
+  /**
+   * Hjälprutin som letar efter kontonummer som finns två gånger, och kontrollerar
+   * att nästa kontonummer inte kan krocka med ett befintligt. Ägarna tas fram
+   * bara om det finns dubbletter.
+   *
+   * @param bank
+   * @param customers
+   * @param part
+   */
+  private static void checkAccountNumbers(BankLogic bank, List<Customer> customers, Part part) {
+    var all = new int[(int) part.accounts];
+    var position = 0;
+    for (var numbers : part.accountNumbers) {
+      System.arraycopy(numbers, 0, all, position, numbers.length);
+      position += numbers.length;
+    }
+    Arrays.parallelSort(all);
+
+    var duplicates = new HashSet<Integer>();
+    for (var i = 1; i < all.length; i++) {
+      if (all[i] == all[i - 1]) {
+        duplicates.add(all[i]);
+      }
+    }
+    for (var number : duplicates) {
+      var owners = customers.stream()
+          .filter(c -> accountsOf(bank, c).stream().anyMatch(a -> a.getAccountNumber() == number))
+          .map(Customer::getPersonalNumber).toList();
+      part.problem("Kontonummer " + number + " finns flera gånger, hos " + String.join(", ", owners));
+    }
+
+    var lastNumber = bank.getAccountNumbers().get();
+    if (all.length > 0 && all[all.length - 1] > lastNumber) {
+      part.problem("Senaste kontonummer " + lastNumber + " är lägre än största kontonumret "
+          + all[all.length - 1] + ", nya konton kan få samma nummer");
+    }
+  }
+
+  /**
+   * Hjälprutin som formaterar öre som kronor
+   *
+   * @param minor
+   * @return "x xxx.xx kr"
+   */
+  private static String format(long minor) {
+    return Account.formatCurrency(Account.fromMinor(minor));
+  }
+
+  /**
+   * Startrutin, kontrollerar en sparad bank. Avslutas med 1 om avvikelser
+   * hittades och 2 om filen inte kunde läsas.
+   *
+   * @param args bankfil
+   */
+  public static void main(String[] args) {
+    if (args.length != 1) {
+      System.err.println("Användning: java handan.BankLedgerCheck bank.dat");
+      System.exit(2);
+    }
+    var bank = BankFileIO.readBankFile(Path.of(args[0]));
+    if (bank == null) {
+      System.exit(2);
+    }
+    var result = check(bank);
+    result.report().forEach(System.out::println);
+    System.exit(result.isConsistent() ? 0 : 1);
+  }
+
+  protected BankLedgerCheck() {
+    // Privat konstruktor för att förhindra instansiering
+  }
+}
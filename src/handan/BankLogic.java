@@ -7,13 +7,26 @@ package handan;
 /**
  * Importsatser
  */
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
+import java.io.UncheckedIOException;
 import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
+import java.util.zip.CRC32;
 
 public class BankLogic implements Serializable {
 
@@ -21,6 +34,39 @@ public class BankLogic implements Serializable {
    * Versionshanterings variabel till deserialisering
    */
   private static final long serialVersionUID = 611114L;
+  private static final int CHECKPOINT_INTERVAL = 10_000; // Ny ögonblicksbild efter så många poster
+  private static final int IMPORT_BUFFER_SIZE = 1 << 20; // Journalposter per skrivning vid massimport
+
+  /**
+   * Villkor för nya konton
+   */
+  protected static final double SAVINGS_RATE = 2.4;
+  protected static final double SAVINGS_WITHDRAW_RATE = 2.0;
+  protected static final double CREDIT_RATE = 1.1;
+  protected static final int CREDIT_LIMIT = 5000;
+  protected static final double CREDIT_DEBT_RATE = 5.0;
+
+  /**
+   * Namn på operationerna i journalen
+   */
+  private static final String OP_CHANGE_NAME = "CHANGE_NAME";
+  private static final String OP_CLOSE_ACCOUNT = "CLOSE_ACCOUNT";
+  private static final String OP_CREATE_CREDIT = "CREATE_CREDIT";
+  private static final String OP_CREATE_CUSTOMER = "CREATE_CUSTOMER";
+  private static final String OP_CREATE_SAVINGS = "CREATE_SAVINGS";
+  private static final String OP_DELETE_CUSTOMER = "DELETE_CUSTOMER";
+  protected static final String OP_DEPOSIT = "DEPOSIT";
+  private static final String OP_REVERSE_WITHDRAWAL = "REVERSE_WITHDRAWAL";
+  protected static final String OP_WITHDRAW = "WITHDRAW";
+
+  /**
+   * Ett gjort uttag som kan återföras, se withdrawReversible
+   *
+   * @param debited Det som drogs från saldot i öre, med eventuell avgift
+   * @param first   Om uttaget var kontots första, avgiftsfria
+   */
+  protected record Withdrawal(long debited, boolean first) {
+  }
 
   /**
    * Hjälpmetod som letar reda på ett konto
@@ -38,6 +84,93 @@ public class BankLogic implements Serializable {
    */
   private List<Customer> customers = new ArrayList<>();
 
+  /**
+   * Bankens id och löpnummer för senaste journalpost. Sparas med banken så att
+   * journalen kan spelas upp från rätt ställe efter en krasch.
+   */
+  private String bankId = UUID.randomUUID().toString();
+  private long journalSequence;
+
+  /**
+   * Journalen sparas inte med banken, den kopplas in vid start.
+   */
+  private transient BankJournal journal;
+  private transient CompletableFuture<Void> lastWrite; // Senaste journalpost, se durable
+  private transient CompletableFuture<String> checkpoint; // Ögonblicksbild som skrivs just nu
+
+  /**
+   * Sökindex på kundernas namn, läses från indexfilen eller byggs upp igen när
+   * banken läses in, se BankIndexFile.
+   */
+  private transient CustomerNameIndex nameIndex = new CustomerNameIndex();
+
+  /**
+   * Kunderna på personnummer, byggs upp igen när banken läses in, se
+   * BankIndexFile.
+   */
+  private transient Map<String, Customer> customerIndex = new HashMap<>();
+
+  /**
+   * Löpande summeringar för hela banken, byggs upp igen när banken läses in, se
+   * BankIndexFile.
+   */
+  private transient BankStatistics statistics = new BankStatistics();
+
+  /**
+   * Sökindex över alla transaktioner på tid och belopp, läses från indexfilen
+   * eller byggs upp igen när banken läses in, se BankIndexFile.
+   */
+  private transient TransactionIndex transactionIndex = new TransactionIndex();
+
+  /**
+   * Händelser för varje ändring, till prenumeranter utanför banken.
+   */
+  private transient BankEvents events = new BankEvents();
+
+  /**
+   * Senaste läsvyn. Ändringar görs av en tråd i taget (bankens bakgrundstråd),
+   * efter varje ändring byts vyn ut. Läsningar hämtar vyn och låser aldrig.
+   */
+  private transient volatile BankView view = BankView.EMPTY;
+  private transient long viewOrder; // Ordning för nästa nya kund i vyn
+
+  /**
+   * De senast använda kunderna när banken lagras i nivåer, annars null och allt
+   * ligger i minnet.
+   */
+  private transient CustomerCache cache;
+
+  /**
+   * Lagret för kontonas tillstånd i bankens katalog, eller null när kontona har
+   * sitt tillstånd i fälten, se openRecords.
+   */
+  private transient MappedAccountStore records;
+
+  /**
+   * Bankens serie med kontonummer och katalog för bankens filer. Sparas inte
+   * med banken, senaste kontonummer skrivs före banken i bankfilen och katalogen
+   * är där filen ligger.
+   */
+  private transient AccountNumbers accountNumbers;
+  private transient Path directory;
+
+  /**
+   * Konstruktor för en ny bank med en egen serie kontonummer
+   */
+  public BankLogic() {
+    this(new AccountNumbers());
+  }
+
+  /**
+   * Konstruktor för en ny bank som delar serie kontonummer med andra, t.ex.
+   * partitionerna i en BankEngine
+   *
+   * @param accountNumbers
+   */
+  protected BankLogic(AccountNumbers accountNumbers) {
+    this.accountNumbers = accountNumbers;
+  }
+
   /**
    * Rutin som byter namnet på en kund med pNo
    *
@@ -51,7 +184,72 @@ public class BankLogic implements Serializable {
       return false;
     }
     var customer = findCustomer(pNo);
-    return customer != null && customer.changeCustomerName(name, surname);
+    if (customer == null) {
+      return false;
+    }
+    nameIndex.remove(customer);
+    var changed = customer.changeCustomerName(name, surname);
+    nameIndex.add(customer);
+    if (!changed) {
+      return false;
+    }
+    publish(customer);
+    events.publish(BankEvents.Type.CUSTOMER_RENAMED, pNo, 0, 0, 0);
+    log(OP_CHANGE_NAME, name, surname, pNo);
+    return true;
+  }
+
+  /**
+   * Utför en insättning eller ett uttag som redan är skrivet till journalen med
+   * löpnummer seq, t.ex. av BankPipeline. Posten skrivs därför inte igen, men
+   * löpnumret följer med så att nästa ögonblicksbild hamnar rätt.
+   *
+   * @param seq       Postens löpnummer i journalen
+   * @param op        OP_DEPOSIT eller OP_WITHDRAW
+   * @param pNo
+   * @param accountId
+   * @param amount
+   * @return true om det gick bra
+   */
+  protected boolean applyJournaled(long seq, String op, String pNo, int accountId, int amount) {
+    var saved = journal;
+    journal = null;
+    boolean result;
+    try {
+      result = switch (op) {
+      case OP_DEPOSIT -> deposit(pNo, accountId, amount);
+      case OP_WITHDRAW -> withdraw(pNo, accountId, amount);
+      default -> false;
+      };
+    } finally {
+      journal = saved;
+      journalSequence = seq;
+    }
+    checkpointIfDue();
+    return result;
+  }
+
+  /**
+   * Hjälprutin som flyttar ett nytt konto till bankens lager, om det används
+   *
+   * @param account
+   */
+  private void attach(Account account) {
+    if (records != null) {
+      account.attach(records, false);
+    }
+  }
+
+  /**
+   * Hjälprutin som sparar en ny ögonblicksbild när journalen har fått ett visst
+   * antal poster. Bilden skrivs i bakgrunden och en ny påbörjas inte förrän den
+   * förra är klar.
+   */
+  private void checkpointIfDue() {
+    if (journal != null && journal.getRecordCount() >= CHECKPOINT_INTERVAL
+        && (checkpoint == null || checkpoint.isDone())) {
+      checkpoint = BankFileIO.checkpointBank(this);
+    }
   }
 
   /**
@@ -74,11 +272,36 @@ public class BankLogic implements Serializable {
 
     var result = account.infoAccount() + " " + account.calculateInterest();
     // Ta bort Transaktionerna
+    transactionIndex.closed(account);
     account.deleteTransactions();
     closeCustomer.getAccounts().remove(account);
+    statistics.accountClosed(account);
+    events.publish(BankEvents.Type.ACCOUNT_CLOSED, pNo, account, 0);
+    account.release();
+    publish(closeCustomer);
+    log(OP_CLOSE_ACCOUNT, pNo, String.valueOf(accountId));
     return result;
   }
 
+  /**
+   * Stänger bankens lager för kontonas tillstånd. Kontona får inte användas
+   * efter detta.
+   *
+   * @param clean true om senaste ögonblicksbild har bankens löpnummer, då kan
+   *              nästa start mappa om filen
+   */
+  protected void closeRecords(boolean clean) {
+    if (records == null) {
+      return;
+    }
+    if (clean) {
+      records.close(journalSequence);
+    } else {
+      records.close();
+    }
+    records = null;
+  }
+
   /**
    * Skapar ett kreditkonto för person pNo
    *
@@ -91,8 +314,13 @@ public class BankLogic implements Serializable {
       return -1;
     }
 
-    var account = new CreditAccount(0, 1.1, 5000, 5.0, true); // Här räknas kontonummer.
+    var account = new CreditAccount(accountNumbers.next(), 0, CREDIT_RATE, CREDIT_LIMIT, CREDIT_DEBT_RATE);
+    attach(account);
     customer.getAccounts().add(account);
+    statistics.accountOpened(account);
+    publish(customer);
+    events.publish(BankEvents.Type.ACCOUNT_OPENED, pNo, account, 0);
+    log(OP_CREATE_CREDIT, pNo, String.valueOf(account.getAccountNumber()));
 
     return account.getAccountNumber();
   }
@@ -111,7 +339,15 @@ public class BankLogic implements Serializable {
       return false;
     }
     // Ny kund till listan
-    return customers.add(new Customer(name, surname, pNo));
+    var customer = new Customer(name, surname, pNo);
+    customers.add(customer);
+    customerIndex.put(pNo, customer);
+    nameIndex.add(customer);
+    statistics.customerAdded();
+    publish(customer);
+    events.publish(BankEvents.Type.CUSTOMER_CREATED, pNo, 0, 0, 0);
+    log(OP_CREATE_CUSTOMER, name, surname, pNo);
+    return true;
   }
 
   /**
@@ -126,8 +362,13 @@ public class BankLogic implements Serializable {
       return -1;
     }
 
-    var account = new SavingsAccount(0, 2.4, 2.0, true); // Här räknas kontonummer.
+    var account = new SavingsAccount(accountNumbers.next(), 0, SAVINGS_RATE, SAVINGS_WITHDRAW_RATE);
+    attach(account);
     customer.getAccounts().add(account);
+    statistics.accountOpened(account);
+    publish(customer);
+    events.publish(BankEvents.Type.ACCOUNT_OPENED, pNo, account, 0);
+    log(OP_CREATE_SAVINGS, pNo, String.valueOf(account.getAccountNumber()));
 
     return account.getAccountNumber();
   }
@@ -154,12 +395,24 @@ public class BankLogic implements Serializable {
       accounts.forEach(account -> {
         result.add(account.infoAccount() + " " + account.calculateInterest());
         // Ta bort Transaktionerna
+        transactionIndex.closed(account);
         account.deleteTransactions();
+        statistics.accountClosed(account);
+        events.publish(BankEvents.Type.ACCOUNT_CLOSED, pNo, account, 0);
       });
       // Ta bort kontot
       customer.deleteAccounts();
     }
     customers.remove(customer);
+    customerIndex.remove(pNo);
+    nameIndex.remove(customer);
+    if (cache != null) {
+      cache.remove(customer);
+    }
+    statistics.customerRemoved();
+    view = view.without(pNo);
+    events.publish(BankEvents.Type.CUSTOMER_DELETED, pNo, 0, 0, 0);
+    log(OP_DELETE_CUSTOMER, pNo);
     return List.copyOf(result);
   }
 
@@ -182,12 +435,72 @@ public class BankLogic implements Serializable {
     }
 
     var account = findAccount(customer.getAccounts(), accountId);
-    return account != null && account.deposit(BigDecimal.valueOf(amount));
+    if (account == null) {
+      return false;
+    }
+    var before = account.getAccountBalance();
+    if (!account.deposit(BigDecimal.valueOf(amount))) {
+      return false;
+    }
+    statistics.balanceChanged(account, before, account.getAccountBalance());
+    transactionIndex.added(customer, account);
+    publish(customer);
+    events.publish(BankEvents.Type.DEPOSIT, pNo, account, Account.toMinor(BigDecimal.valueOf(amount)));
+    log(OP_DEPOSIT, pNo, String.valueOf(accountId), String.valueOf(amount));
+    return true;
+  }
+
+  /**
+   * Klar när alla ändringar som gjorts hittills ligger på disk. Ändringarna
+   * skrivs till journalen utan att bankens tråd väntar, så att ändringar som görs
+   * efter varandra kan dela en fsync. Svaret till den som gjorde ändringen ska
+   * vänta på detta, se BankRegistry.submit. Misslyckas om journalen inte kunde
+   * skrivas.
+   *
+   * @return klar när journalen är skriven
+   */
+  protected CompletableFuture<Void> durable() {
+    return lastWrite == null ? CompletableFuture.completedFuture(null) : lastWrite;
+  }
+
+  /**
+   * Slår på lagring i nivåer. Bara de hotCapacity senast använda kunderna har
+   * sina konton och transaktioner i minnet, övriga skrivs till filen path och
+   * läses in igen när de används.
+   *
+   * @param path        Fil för kunderna på disk, töms först
+   * @param hotCapacity Antal kunder i minnet
+   * @throws IOException
+   */
+  public void enableTiering(Path path, int hotCapacity) throws IOException {
+    if (cache != null) {
+      throw new IllegalStateException("Lagring i nivåer är redan påslagen");
+    }
+    cache = new CustomerCache(new CustomerStore(path), hotCapacity, records, this::publishPaged);
+    customers.forEach(cache::access);
+  }
+
+  /**
+   * Hjälprutin som skriver bufferten med journalposter med en fsync och tömmer
+   * den
+   *
+   * @param batch
+   * @param count Antal poster i bufferten
+   */
+  private void flushBatch(ByteBuffer batch, int count) {
+    try {
+      journal.sync(); // Poster från log först
+      journal.appendEncoded(batch.flip(), count);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    batch.clear();
   }
 
   /**
    * Hjälpmetod som letar reda på en kund med hjälp av pNr som är unikt. Kan inte
-   * vara static
+   * vara static. Vid lagring i nivåer läses kundens konton in från disk vid
+   * behov.
    *
    * @param pNo
    * @return pekare till kundens post om den finns.
@@ -197,7 +510,20 @@ public class BankLogic implements Serializable {
       return null;
     }
 
-    return customers.stream().filter(c -> pNo.equals(c.getPersonalNumber())).findFirst().orElse(null);
+    var customer = customerIndex.get(pNo);
+    if (customer != null && cache != null) {
+      cache.access(customer);
+    }
+    return customer;
+  }
+
+  /**
+   * Bankens serie med kontonummer
+   *
+   * @return accountNumbers
+   */
+  protected AccountNumbers getAccountNumbers() {
+    return accountNumbers;
   }
 
   /**
@@ -208,12 +534,12 @@ public class BankLogic implements Serializable {
    * @return om accountid = kundens konto
    */
   public String getAccount(String pNo, int accountId) {
-    var customer = findCustomer(pNo);
+    var customer = view.getCustomer(pNo);
     if (customer == null) {
       return null;
     }
 
-    var account = findAccount(customer.getAccounts(), accountId);
+    var account = customer.getAccount(accountId);
     return account == null ? null : account.toString();
   }
 
@@ -224,12 +550,12 @@ public class BankLogic implements Serializable {
    * @return
    */
   public List<String> getAccountList(String pNo) {
-    var customer = findCustomer(pNo);
+    var customer = view.getCustomer(pNo);
     if (customer == null) {
       return Collections.emptyList();
     }
 
-    return customer.getAccounts().stream().map(a -> String.valueOf(a.getAccountNumber())).collect(Collectors.toList());
+    return customer.accounts().stream().map(a -> String.valueOf(a.accountNumber())).collect(Collectors.toList());
   }
 
   /**
@@ -238,7 +564,7 @@ public class BankLogic implements Serializable {
    * @return , finns inga kunder blir den tom lista []
    */
   public List<String> getAllCustomers() {
-    return customers.stream().map(Customer::toString).collect(Collectors.toUnmodifiableList());
+    return view.getCustomers().stream().map(BankView.CustomerView::toString).collect(Collectors.toUnmodifiableList());
   }
 
   /**
@@ -251,6 +577,36 @@ public class BankLogic implements Serializable {
     return customers;
   }
 
+  /**
+   * Hämtar bankens id, äldre bankfiler saknar id och får ett nytt.
+   *
+   * @return bankId
+   */
+  protected String getBankId() {
+    if (bankId == null) {
+      bankId = UUID.randomUUID().toString();
+    }
+    return bankId;
+  }
+
+  /**
+   * Cachet vid lagring i nivåer
+   *
+   * @return cachet eller null
+   */
+  protected CustomerCache getCache() {
+    return cache;
+  }
+
+  /**
+   * Nyckeltal för lagring i nivåer
+   *
+   * @return en rad per nyckeltal, tom om allt ligger i minnet
+   */
+  public List<String> getCacheMetrics() {
+    return cache == null ? List.of() : cache.metrics();
+  }
+
   /**
    * Rutin som tar fram en kunds information och denns konton.
    *
@@ -258,15 +614,88 @@ public class BankLogic implements Serializable {
    * @return lista på bortagna poster.
    */
   public List<String> getCustomer(String pNo) {
-    var customer = findCustomer(pNo);
+    var customer = view.getCustomer(pNo);
     if (customer == null) {
       return null;
     }
 
-    return Stream.concat(Stream.of(customer.toString()), customer.getAccounts().stream().map(Account::toString))
+    return Stream
+        .concat(Stream.of(customer.toString()), customer.accounts().stream().map(BankView.AccountView::toString))
         .collect(Collectors.toUnmodifiableList());
   }
 
+  /**
+   * Katalogen där bankens filer sparas
+   *
+   * @return katalogen, BankFileIO.BASE_PATH om ingen är satt
+   */
+  protected Path getDirectory() {
+    return directory == null ? Path.of(BankFileIO.BASE_PATH) : directory;
+  }
+
+  /**
+   * Hämtar händelseströmmen, för att prenumerera på ändringar
+   *
+   * @return events
+   */
+  protected BankEvents getEvents() {
+    return events;
+  }
+
+  /**
+   * Hämtar journalen som banken skriver till
+   *
+   * @return journal eller null
+   */
+  protected BankJournal getJournal() {
+    return journal;
+  }
+
+  /**
+   * Hämtar löpnummer för senaste journalpost
+   *
+   * @return journalSequence
+   */
+  protected long getJournalSequence() {
+    return journalSequence;
+  }
+
+  /**
+   * Hämtar sökindex på namn, för indexfilen
+   *
+   * @return nameIndex
+   */
+  protected CustomerNameIndex getNameIndex() {
+    return nameIndex;
+  }
+
+  /**
+   * Hämtar bankens lager för kontonas tillstånd
+   *
+   * @return lagret eller null
+   */
+  protected MappedAccountStore getRecords() {
+    return records;
+  }
+
+  /**
+   * Hämtar bankens löpande summeringar. Läsningarna tar konstant tid.
+   *
+   * @return statistics
+   */
+  public BankStatistics getStatistics() {
+    return statistics;
+  }
+
+  /**
+   * Hämtar sökindexet över alla transaktioner
+   *
+   * @return transactionIndex
+   */
+  protected TransactionIndex getTransactionIndex() {
+    return transactionIndex;
+  }
+
   /**
    * Hämtar en lista som innehåller presentation av alla transaktioner
    *
@@ -275,17 +704,385 @@ public class BankLogic implements Serializable {
    * @return null or List<>
    */
   public List<String> getTransactions(String pNo, int accountId) {
-    var customer = findCustomer(pNo);
+    var customer = view.getCustomer(pNo);
     if (customer == null) {
       return null;
     }
 
+    var account = customer.getAccount(accountId);
+    return account == null ? null : account.getTransactions();
+  }
+
+  /**
+   * Lägger in kunder med konton från en massimport, se BankImport. Personnumren
+   * är redan kontrollerade mot banken och mot varandra och kontona har
+   * reserverade nummer. Journalen får samma poster som när kunder och konton
+   * skapas en i taget, så en omstart spelar upp importen som vanligt. Sökindex
+   * och läsvy får alla kunder på en gång, vyerna skapas parallellt. Vid lagring
+   * i nivåer läggs kunderna i cachet sist, när inget mer behöver läsa kontona. Posterna kodas i en buffert och
+   * skrivs med en fsync per full buffert, som i BankPipeline. En ny
+   * ögonblicksbild tas först när alla poster är skrivna, annars skulle en kunds
+   * konton spelas upp en gång till.
+   *
+   * @param imported Nya kunder med sina konton
+   */
+  protected void importCustomers(List<Customer> imported) {
+    if (customers instanceof ArrayList<Customer> list) {
+      list.ensureCapacity(customers.size() + imported.size());
+    }
+    for (var customer : imported) {
+      customers.add(customer);
+      customerIndex.put(customer.getPersonalNumber(), customer);
+      statistics.customerAdded();
+      customer.getAccounts().forEach(this::attach);
+      customer.getAccounts().forEach(statistics::accountOpened);
+    }
+    var first = viewOrder;
+    viewOrder += imported.size();
+    nameIndex.addAll(imported);
+    // Vyerna skapas innan cachet får kunderna, kontona finns då i minnet och
+    // inget sidas ut från andra trådar medan vyn byggs
+    view = view.withAll(IntStream.range(0, imported.size()).parallel()
+        .mapToObj(i -> BankView.CustomerView.of(first + i, imported.get(i))).toList());
+
+    var batch = journal == null ? null : ByteBuffer.allocate(IMPORT_BUFFER_SIZE);
+    var crc = new CRC32();
+    var count = 0;
+    for (var customer : imported) {
+      var pNo = customer.getPersonalNumber();
+      events.publish(BankEvents.Type.CUSTOMER_CREATED, pNo, 0, 0, 0);
+      count = logBatched(batch, crc, count, OP_CREATE_CUSTOMER, customer.getFirstName(), customer.getLastName(), pNo);
+      for (var account : customer.getAccounts()) {
+        events.publish(BankEvents.Type.ACCOUNT_OPENED, pNo, account, 0);
+        count = logBatched(batch, crc, count, account instanceof CreditAccount ? OP_CREATE_CREDIT : OP_CREATE_SAVINGS,
+            pNo, String.valueOf(account.getAccountNumber()));
+      }
+    }
+    if (batch != null) {
+      flushBatch(batch, count);
+    }
+    if (cache != null) {
+      imported.forEach(cache::changed); // Kan sida ut kunder, vyn uppdateras då i denna tråd
+    }
+    checkpointIfDue();
+  }
+
+  /**
+   * Hjälprutin som gör kunderna sökbara på personnummer och räknar in dem i
+   * statistiken, första steget när index byggs eller läses in. Vyerna av
+   * kunderna skapas parallellt.
+   *
+   * @return vyerna i samma ordning som kunderna
+   */
+  private BankView.CustomerView[] indexCustomers() {
+    customerIndex = HashMap.newHashMap(customers.size());
+    statistics = new BankStatistics();
+    for (var customer : customers) {
+      customerIndex.put(customer.getPersonalNumber(), customer);
+      statistics.customerAdded();
+      customer.getAccounts().forEach(statistics::accountOpened);
+    }
+    viewOrder = customers.size();
+    return IntStream.range(0, customers.size()).parallel()
+        .mapToObj(i -> BankView.CustomerView.of(i, customers.get(i))).toArray(BankView.CustomerView[]::new);
+  }
+
+  /**
+   * Hjälprutin som lägger en lyckad ändring i journalens kö, se durable. Efter
+   * ett visst antal poster sparas en ny ögonblicksbild så att uppspelningen vid
+   * start hålls kort.
+   *
+   * @param op   Operation
+   * @param args Argument
+   */
+  private void log(String op, String... args) {
+    if (journal == null) {
+      return;
+    }
+    journalSequence++;
+    lastWrite = journal.appendAsync(journalSequence, op, args);
+    checkpointIfDue();
+  }
+
+  /**
+   * Hjälprutin som kodar en ändring in i en buffert med journalposter och skriver
+   * bufferten när den är full. Ingen ögonblicksbild tas, se importCustomers.
+   *
+   * @param batch Bufferten, null om banken saknar journal
+   * @param crc   Återanvänd kontrollsumma
+   * @param count Antal poster i bufferten
+   * @param op    Operation
+   * @param args  Argument
+   * @return antal poster i bufferten efteråt
+   */
+  private int logBatched(ByteBuffer batch, CRC32 crc, int count, String op, String... args) {
+    if (batch == null) {
+      return count;
+    }
+    if (!BankJournal.encodeInto(batch, crc, journalSequence + 1, op, args, args.length)) {
+      flushBatch(batch, count);
+      count = 0;
+      if (!BankJournal.encodeInto(batch, crc, journalSequence + 1, op, args, args.length)) {
+        throw new IllegalArgumentException("För stor journalpost: " + op);
+      }
+    }
+    journalSequence++;
+    return count + 1;
+  }
+
+  /**
+   * Hjälprutin som lägger kundens nya tillstånd i en ny läsvy. Bara kunden som
+   * har ändrats kopieras, resten delas med den förra vyn.
+   *
+   * @param customer
+   */
+  private void publish(Customer customer) {
+    if (cache != null) {
+      cache.changed(customer);
+    }
+    view = view.with(BankView.CustomerView.of(viewOrder(customer), customer));
+  }
+
+  /**
+   * Hjälprutin som anropas när en kunds konton har skrivits till disk. Vyn får
+   * konton som läses från disk, så att kontona inte hålls kvar i minnet av vyn.
+   * Anropas av cachet med cachet låst.
+   *
+   * @param customer
+   * @param accounts Kontona på disk
+   */
+  private void publishPaged(Customer customer, List<BankView.AccountView> accounts) {
+    view = view.with(BankView.CustomerView.of(viewOrder(customer), customer, accounts));
+  }
+
+  /**
+   * Återskapar det som inte sparas med banken, tomt. Sökindex, statistik och
+   * läsvy fylls sedan i med restoreIndexes eller rebuildIndexes.
+   *
+   * @param in
+   * @throws IOException
+   * @throws ClassNotFoundException
+   */
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    accountNumbers = new AccountNumbers();
+    nameIndex = new CustomerNameIndex();
+    customerIndex = new HashMap<>();
+    statistics = new BankStatistics();
+    transactionIndex = new TransactionIndex();
+    events = new BankEvents();
+    view = BankView.EMPTY;
+  }
+
+  /**
+   * Öppnar lagret för kontonas tillstånd i bankens katalog, om systemegenskapen
+   * handan.accounts är "mapped", och flyttar kontona dit. Stängdes filen
+   * ordentligt vid samma löpnummer som banken lästes in med tar kontona
+   * tillbaka sina platser, annars skrivs de in på nytt. Anropas när banken har
+   * lästs in och fått sin katalog, innan journalen spelas upp och innan
+   * lagring i nivåer slås på.
+   *
+   * @throws IllegalStateException om filen används av en annan process
+   */
+  protected void openRecords() {
+    records = MappedAccountStore.open(directory);
+    if (records == null) {
+      return;
+    }
+    var remapped = records.remap(bankId, journalSequence);
+    for (var customer : customers) {
+      customer.getAccounts().forEach(account -> account.attach(records, remapped));
+    }
+    records.endRemap();
+  }
+
+  /**
+   * Bygger upp det som inte sparas med banken: sökindex, statistik och läsvy.
+   * Anropas efter inläsning när indexfilen saknas eller inte passar. Kunderna
+   * sorteras parallellt och träden byggs direkt från den ordningen.
+   */
+  protected void rebuildIndexes() {
+    var views = indexCustomers();
+    var sorted = views.clone();
+    Arrays.parallelSort(sorted, Comparator.comparing(BankView.CustomerView::personalNumber));
+    view = BankView.ofSorted(Arrays.asList(sorted));
+    if (view == null) {
+      // Samma personnummer två gånger, läggs in en i taget som tidigare
+      view = BankView.EMPTY;
+      for (var customer : views) {
+        view = view.with(customer);
+      }
+    }
+    nameIndex = CustomerNameIndex.build(customers);
+    transactionIndex = TransactionIndex.build(customers);
+  }
+
+  /**
+   * Återför ett uttag som gjorts med withdrawReversible. Exakt det som drogs
+   * sätts tillbaka och var det kontots första uttag blir nästa uttag fritt igen.
+   *
+   * @param pNo
+   * @param accountId
+   * @param withdrawal Uttaget
+   * @return false om kontot inte finns kvar
+   */
+  protected boolean reverseWithdrawal(String pNo, int accountId, Withdrawal withdrawal) {
+    var customer = findCustomer(pNo);
+    if (customer == null) {
+      return false;
+    }
+
     var account = findAccount(customer.getAccounts(), accountId);
     if (account == null) {
-      return null;
+      return false;
+    }
+    var before = account.getAccountBalance();
+    if (!account.reverseWithdrawal(Account.fromMinor(withdrawal.debited()), withdrawal.first())) {
+      return false;
+    }
+    statistics.balanceChanged(account, before, account.getAccountBalance());
+    transactionIndex.added(customer, account);
+    publish(customer);
+    events.publish(BankEvents.Type.DEPOSIT, pNo, account, withdrawal.debited());
+    log(OP_REVERSE_WITHDRAWAL, pNo, String.valueOf(accountId), String.valueOf(withdrawal.debited()),
+        String.valueOf(withdrawal.first()));
+    return true;
+  }
+
+  /**
+   * Spelar upp en post från journalen. Journalen är frånkopplad under
+   * uppspelningen så att posten inte skrivs igen.
+   *
+   * @param rec Posten
+   */
+  protected void replay(BankJournal.JournalRecord rec) {
+    var saved = journal;
+    journal = null;
+    try {
+      var args = rec.args();
+      switch (rec.op()) {
+      case OP_CHANGE_NAME -> changeCustomerName(args.get(0), args.get(1), args.get(2));
+      case OP_CLOSE_ACCOUNT -> closeAccount(args.get(0), Integer.parseInt(args.get(1)));
+      case OP_CREATE_CREDIT -> {
+        accountNumbers.set(Integer.parseInt(args.get(1)) - 1);
+        createCreditAccount(args.get(0));
+      }
+      case OP_CREATE_CUSTOMER -> createCustomer(args.get(0), args.get(1), args.get(2));
+      case OP_CREATE_SAVINGS -> {
+        accountNumbers.set(Integer.parseInt(args.get(1)) - 1);
+        createSavingsAccount(args.get(0));
+      }
+      case OP_DELETE_CUSTOMER -> deleteCustomer(args.get(0));
+      case OP_DEPOSIT -> deposit(args.get(0), Integer.parseInt(args.get(1)), Integer.parseInt(args.get(2)));
+      case OP_REVERSE_WITHDRAWAL -> reverseWithdrawal(args.get(0), Integer.parseInt(args.get(1)),
+          new Withdrawal(Long.parseLong(args.get(2)), Boolean.parseBoolean(args.get(3))));
+      case OP_WITHDRAW -> withdraw(args.get(0), Integer.parseInt(args.get(1)), Integer.parseInt(args.get(2)));
+      default -> System.err.println("Journal: okänd operation " + rec.op());
+      }
+    } finally {
+      journal = saved;
+      journalSequence = rec.seq();
     }
+  }
+
+  /**
+   * Tar in sökindex och ordningen på kunderna från indexfilen i stället för att
+   * bygga dem. Bara vyerna av kunderna och statistiken tas fram, inget sorteras.
+   * Passar indexen inte banken ska rebuildIndexes anropas.
+   *
+   * @param index Från indexfilen
+   * @return true om indexen passade banken
+   * @throws IllegalArgumentException om transaktionsindexet inte hänger ihop
+   */
+  protected boolean restoreIndexes(BankIndexFile.Index index) {
+    var views = indexCustomers();
+    var accounts = 0L;
+    var transactions = 0L;
+    for (var customer : views) {
+      accounts += customer.accounts().size();
+      for (var account : customer.accounts()) {
+        transactions += account.transactions().size();
+      }
+    }
+    if (accounts != index.accounts() || transactions != index.transactions()) {
+      return false;
+    }
+
+    var sorted = Arrays.stream(index.byPersonalNumber()).mapToObj(i -> views[i]).toList();
+    var restoredView = BankView.ofSorted(sorted);
+    var restoredNames = CustomerNameIndex.ofSorted(
+        Arrays.stream(index.byLastName()).mapToObj(customers::get).toList(),
+        Arrays.stream(index.byFirstName()).mapToObj(customers::get).toList());
+    if (restoredView == null || restoredNames == null) {
+      return false;
+    }
+    transactionIndex = TransactionIndex.read(index.transactionData(), customers);
+    view = restoredView;
+    nameIndex = restoredNames;
+    return true;
+  }
+
+  /**
+   * Söker kunder vars efternamn eller förnamn börjar med prefix, en sida i taget.
+   *
+   * @param prefix   Början på namnet, t.ex. "Dan"
+   * @param page     Sidnummer, från 0
+   * @param pageSize Antal kunder per sida
+   * @return "pNr f-Namn E-namn" för kunderna på sidan
+   */
+  public List<String> searchCustomers(String prefix, int page, int pageSize) {
+    return nameIndex.search(prefix, page, pageSize).stream().map(Customer::toString)
+        .collect(Collectors.toUnmodifiableList());
+  }
+
+  /**
+   * Hämtar en ögonblicksbild av hela banken i konstant tid. Vyn ändras aldrig,
+   * så en läsare kan gå igenom den medan banken fortsätter att ändras.
+   *
+   * @return vyn
+   */
+  public BankView snapshot() {
+    return view;
+  }
+
+  /**
+   * Hämtar en ögonblicksbild av en kund och dess konton
+   *
+   * @param pNo
+   * @return vyn eller null om kunden inte finns
+   */
+  public BankView.CustomerView snapshot(String pNo) {
+    return view.getCustomer(pNo);
+  }
 
-    return List.copyOf(account.getAccountTransactions());
+  /**
+   * Sätter katalogen där bankens filer sparas, t.ex. en katalog per bank i
+   * BankRegistry
+   *
+   * @param directory
+   */
+  protected void setDirectory(Path directory) {
+    this.directory = directory;
+  }
+
+  /**
+   * Kopplar in journalen som alla lyckade ändringar skrivs till
+   *
+   * @param journal
+   */
+  protected void setJournal(BankJournal journal) {
+    this.journal = journal;
+  }
+
+  /**
+   * Hjälprutin som ger kundens ordning i vyn, nya kunder hamnar sist
+   *
+   * @param customer
+   * @return ordning
+   */
+  private long viewOrder(Customer customer) {
+    var old = view.getCustomer(customer.getPersonalNumber());
+    return old == null ? viewOrder++ : old.order();
   }
 
   /**
@@ -311,6 +1108,39 @@ public class BankLogic implements Serializable {
       return false;
     }
 
-    return account.withdraw(amount);
+    var before = account.getAccountBalance();
+    if (!account.withdraw(amount)) {
+      return false;
+    }
+    statistics.balanceChanged(account, before, account.getAccountBalance());
+    transactionIndex.added(customer, account);
+    publish(customer);
+    events.publish(BankEvents.Type.WITHDRAWAL, pNo, account,
+        Account.toMinor(account.getAccountBalance().subtract(before)));
+    log(OP_WITHDRAW, pNo, String.valueOf(accountId), String.valueOf(amount));
+    return true;
+  }
+
+  /**
+   * Gör ett uttag som withdraw och returnerar vad som drogs, så att uttaget kan
+   * återföras med reverseWithdrawal.
+   *
+   * @param pNo
+   * @param accountId
+   * @param amount
+   * @return uttaget, eller null om det inte gick
+   */
+  protected Withdrawal withdrawReversible(String pNo, int accountId, int amount) {
+    var customer = findCustomer(pNo);
+    var account = customer == null ? null : findAccount(customer.getAccounts(), accountId);
+    if (account == null) {
+      return null;
+    }
+    var first = account instanceof SavingsAccount savings && !savings.hasMadeWithdrawal();
+    var before = account.getAccountBalance();
+    if (!withdraw(pNo, accountId, amount)) {
+      return null;
+    }
+    return new Withdrawal(Account.toMinor(before.subtract(account.getAccountBalance())), first);
   }
-}
\ No newline at end of file
+}
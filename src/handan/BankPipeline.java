@@ -0,0 +1,469 @@
+/**
+ * Klass som definierar en kommandokedja med ringbuffert framför banken.
+ * @author Hans Danielsson, handan-2
+ */
+package handan;
+
+/**
+ * Importsatser
+ */
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongSupplier;
+import java.util.zip.CRC32;
+
+/**
+ * Kommandokedja för insättningar och uttag i höga volymer, i stil med
+ * Disruptor. Kommandona läggs i en ringbuffert med platser som skapas en gång
+ * och återanvänds. Fyra steg, var och ett med en egen tråd, går igenom
+ * ringbufferten efter varandra:
+ *
+ * 1. Avkodning: kontrollerar kommandot, ger det ett löpnummer och kodar
+ * journalposten i platsens egen buffert.
+ *
+ * 2. Journal: skriver alla poster som är klara med en skrivning och en fsync.
+ *
+ * 3. Affärslogik: den enda tråd som ändrar banken. Tar bara kommandon som
+ * journalen har skrivit, så banken ändras aldrig innan ändringen ligger på disk.
+ * Kunde posten inte skrivas görs ingen ändring. Medan affärslogiken arbetar med
+ * en batch skriver journalen nästa.
+ *
+ * 4. Svar: meddelar resultatet när affärslogiken är klar.
+ *
+ * Varje steg tar alla platser som är klara på en gång, så batcharna växer av
+ * sig själva när trafiken ökar. Medan kedjan körs ska alla ändringar i banken
+ * gå genom den.
+ */
+public class BankPipeline implements AutoCloseable {
+
+  /**
+   * Kommandon som kedjan hanterar
+   */
+  public enum Command {
+    DEPOSIT(BankLogic.OP_DEPOSIT), WITHDRAW(BankLogic.OP_WITHDRAW);
+
+    private final String op;
+
+    Command(String op) {
+      this.op = op;
+    }
+  }
+
+  /**
+   * Tar emot svaret för ett kommando, anropas från svarstråden
+   */
+  @FunctionalInterface
+  public interface Replier {
+
+    /**
+     * @param correlationId Id som skickades med kommandot
+     * @param success       true om kommandot är utfört och journalfört
+     */
+    void reply(long correlationId, boolean success);
+  }
+
+  /**
+   * Hur ett steg väntar när det inte finns något att göra. BUSY_SPIN ger lägst
+   * fördröjning men tar en hel kärna per steg, SLEEPING sparar processorn.
+   */
+  public enum WaitStrategy {
+    BUSY_SPIN, YIELDING, SLEEPING;
+
+    private static final int SPIN_TRIES = 100;
+    private static final int YIELD_TRIES = 200;
+    private static final long SLEEP_NANOS = 50_000;
+
+    /**
+     * Väntar en stund
+     *
+     * @param counter Antal försök hittills
+     * @return nytt antal försök
+     */
+    private int idle(int counter) {
+      if (this == BUSY_SPIN || counter < SPIN_TRIES) {
+        Thread.onSpinWait();
+      } else if (this == YIELDING || counter < YIELD_TRIES) {
+        Thread.yield();
+      } else {
+        LockSupport.parkNanos(SLEEP_NANOS);
+      }
+      return counter + 1;
+    }
+  }
+
+  /**
+   * En plats i ringbufferten, skapas en gång och återanvänds
+   */
+  private static final class Slot {
+    private final ByteBuffer record = ByteBuffer.allocate(MAX_RECORD_SIZE); // Kodad journalpost
+    private Command command;
+    private String pNo;
+    private int accountId;
+    private int amount;
+    private long correlationId;
+    private long seq; // Löpnummer i journalen, 0 om kommandot är ogiltigt
+    private boolean result;
+    private boolean journalFailed;
+  }
+
+  /**
+   * Ett steg i kedjan: en tråd som hanterar platser upp till det gate släpper
+   * fram
+   */
+  private final class Stage implements Runnable {
+    private final String name;
+    private final AtomicLong cursor = new AtomicLong(-1); // Senast färdiga plats
+    private final LongSupplier gate;
+    private final BatchHandler handler;
+    private final Thread thread;
+
+    // Mätvärden, skrivs bara av stegets tråd
+    private volatile long events;
+    private volatile long batches;
+    private volatile long maxBatch;
+    private volatile long waitNanos;
+
+    /**
+     * @param name
+     * @param gate    Högsta plats som steget får hantera
+     * @param handler Hanterar platserna from..to
+     */
+    private Stage(String name, LongSupplier gate, BatchHandler handler) {
+      this.name = name;
+      this.gate = gate;
+      this.handler = handler;
+      this.thread = new Thread(this, "pipeline-" + name);
+      this.thread.setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+      var next = cursor.get() + 1;
+      var counter = 0;
+      while (running || next <= gate.getAsLong()) {
+        var available = gate.getAsLong();
+        if (available < next) {
+          var start = System.nanoTime();
+          counter = waitStrategy.idle(counter);
+          waitNanos += System.nanoTime() - start;
+          continue;
+        }
+        handler.handle(next, available);
+        var size = available - next + 1;
+        events += size;
+        batches++;
+        maxBatch = Math.max(maxBatch, size);
+        cursor.set(available);
+        next = available + 1;
+        counter = 0;
+      }
+    }
+
+    /**
+     * Mätvärden för steget
+     *
+     * @return "namn: antal, batchar, snitt, störst, väntan"
+     */
+    private String report() {
+      var count = batches;
+      return String.format("%s: %d kommandon, %d batchar, snitt %.1f, störst %d, väntat %d ms", name, events, count,
+          count == 0 ? 0.0 : (double) events / count, maxBatch, waitNanos / 1_000_000);
+    }
+  }
+
+  /**
+   * Hanterar platserna from..to, båda inklusive
+   */
+  @FunctionalInterface
+  private interface BatchHandler {
+    void handle(long from, long to);
+  }
+
+  private static final int DEFAULT_SIZE = 1024;
+  private static final int MAX_RECORD_SIZE = 256; // Räcker för insättning och uttag
+  private static final int JOURNAL_BUFFER_SIZE = 256 * 1024;
+
+  private final BankLogic bank;
+  private final BankJournal journal;
+  private final Replier replier;
+  private final WaitStrategy waitStrategy;
+  private final Slot[] slots;
+  private final int mask;
+  private final AtomicLong claimed = new AtomicLong(-1); // Senast tagna plats
+  private final AtomicLongArray published; // Vilket varv varje plats senast publicerades i
+  private final Stage decodeStage;
+  private final Stage journalStage;
+  private final Stage businessStage;
+  private final Stage replyStage;
+  private volatile boolean running = true;
+  private final AtomicLong producerWaits = new AtomicLong();
+
+  // Ägs av avkodningen
+  private long nextSeq;
+  private final CRC32 crc = new CRC32();
+  private final StringBuilder accountText = new StringBuilder(12);
+  private final StringBuilder amountText = new StringBuilder(12);
+  private final CharSequence[] args = new CharSequence[3];
+
+  // Ägs av journalsteget
+  private final ByteBuffer journalBuffer = ByteBuffer.allocateDirect(JOURNAL_BUFFER_SIZE);
+
+  /**
+   * Skapa en kedja med standardstorlek och SLEEPING
+   *
+   * @param bank    Banken, dess journal används för journalsteget
+   * @param replier Tar emot svaren
+   */
+  public BankPipeline(BankLogic bank, Replier replier) {
+    this(bank, replier, DEFAULT_SIZE, WaitStrategy.SLEEPING);
+  }
+
+  /**
+   * Skapa och starta en kedja
+   *
+   * @param bank         Banken, dess journal används för journalsteget
+   * @param replier      Tar emot svaren
+   * @param size         Antal platser, avrundas uppåt till en tvåpotens
+   * @param waitStrategy Hur stegen väntar
+   */
+  public BankPipeline(BankLogic bank, Replier replier, int size, WaitStrategy waitStrategy) {
+    this.bank = bank;
+    this.journal = bank.getJournal();
+    this.replier = replier;
+    this.waitStrategy = waitStrategy;
+    this.nextSeq = bank.getJournalSequence();
+
+    var capacity = Integer.highestOneBit(Math.max(2, size - 1)) << 1;
+    slots = new Slot[capacity];
+    for (var i = 0; i < capacity; i++) {
+      slots[i] = new Slot();
+    }
+    mask = capacity - 1;
+    published = new AtomicLongArray(capacity);
+    for (var i = 0; i < capacity; i++) {
+      published.set(i, -1);
+    }
+    if (journal != null) {
+      journal.sync(); // Tidigare poster först
+    }
+
+    decodeStage = new Stage("avkodning", this::highestPublished, this::decode);
+    journalStage = new Stage("journal", decodeStage.cursor::get, this::writeJournal);
+    businessStage = new Stage("affärslogik", journalStage.cursor::get, this::apply);
+    replyStage = new Stage("svar", businessStage.cursor::get, this::reply);
+    for (var stage : List.of(decodeStage, journalStage, businessStage, replyStage)) {
+      stage.thread.start();
+    }
+  }
+
+  /**
+   * Affärslogiken: utför kommandona mot banken, en i taget i ordning. Kommandon
+   * vars post inte kunde skrivas till journalen hoppas över.
+   *
+   * @param from
+   * @param to
+   */
+  private void apply(long from, long to) {
+    for (var seq = from; seq <= to; seq++) {
+      var slot = slot(seq);
+      try {
+        slot.result = slot.seq != 0 && !slot.journalFailed
+            && bank.applyJournaled(slot.seq, slot.command.op, slot.pNo, slot.accountId, slot.amount);
+      } catch (RuntimeException e) {
+        e.printStackTrace();
+        slot.result = false;
+      }
+    }
+  }
+
+  /**
+   * Väntar tills alla publicerade kommandon är besvarade och stoppar stegen.
+   */
+  @Override
+  public void close() {
+    var last = claimed.get();
+    var counter = 0;
+    while (replyStage.cursor.get() < last) {
+      counter = WaitStrategy.SLEEPING.idle(counter);
+    }
+    running = false;
+    try {
+      for (var stage : List.of(decodeStage, journalStage, businessStage, replyStage)) {
+        stage.thread.join();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Avkodningen: kontrollerar kommandona och kodar journalposterna
+   *
+   * @param from
+   * @param to
+   */
+  private void decode(long from, long to) {
+    for (var seq = from; seq <= to; seq++) {
+      var slot = slot(seq);
+      slot.seq = 0;
+      slot.journalFailed = false;
+      slot.record.clear();
+      // Ogiltiga kommandon får inget löpnummer och besvaras med false
+      if (slot.command != null && slot.pNo != null && !slot.pNo.isBlank() && slot.amount > 0) {
+        accountText.setLength(0);
+        amountText.setLength(0);
+        args[0] = slot.pNo;
+        args[1] = accountText.append(slot.accountId);
+        args[2] = amountText.append(slot.amount);
+        if (BankJournal.encodeInto(slot.record, crc, nextSeq + 1, slot.command.op, args, args.length)) {
+          slot.seq = ++nextSeq;
+        }
+      }
+      slot.record.flip(); // Tom post om kommandot är ogiltigt
+    }
+  }
+
+  /**
+   * Hjälprutin som tar reda på hur långt i följd kommandona är publicerade
+   *
+   * @return högsta plats där alla före också är publicerade
+   */
+  private long highestPublished() {
+    var next = decodeStage.cursor.get() + 1;
+    var last = claimed.get();
+    while (next <= last && published.get((int) (next & mask)) == next) {
+      next++;
+    }
+    return next - 1;
+  }
+
+  /**
+   * Mätvärden för varje steg
+   *
+   * @return en rad per steg
+   */
+  public List<String> metrics() {
+    List<String> result = new ArrayList<>();
+    result.add(String.format("ringbuffert: %d platser, %d publicerade, producenter väntade %d gånger", slots.length,
+        claimed.get() + 1, producerWaits.get()));
+    for (var stage : List.of(decodeStage, journalStage, businessStage, replyStage)) {
+      result.add(stage.report());
+    }
+    return result;
+  }
+
+  /**
+   * Lägger ett kommando i ringbufferten. Får anropas från flera trådar. Är
+   * ringbufferten full väntar anroparen tills svarssteget har gjort plats.
+   *
+   * @param command       DEPOSIT eller WITHDRAW
+   * @param pNo
+   * @param accountId
+   * @param amount
+   * @param correlationId Skickas tillbaka med svaret
+   */
+  public void publish(Command command, String pNo, int accountId, int amount, long correlationId) {
+    if (!running) {
+      throw new IllegalStateException("Kedjan är stängd");
+    }
+    var seq = claimed.incrementAndGet();
+    var wrapPoint = seq - slots.length;
+    if (replyStage.cursor.get() < wrapPoint) {
+      producerWaits.incrementAndGet();
+      var counter = 0;
+      while (replyStage.cursor.get() < wrapPoint) {
+        counter = waitStrategy.idle(counter);
+      }
+    }
+    var slot = slot(seq);
+    slot.command = command;
+    slot.pNo = pNo;
+    slot.accountId = accountId;
+    slot.amount = amount;
+    slot.correlationId = correlationId;
+    published.set((int) (seq & mask), seq);
+  }
+
+  /**
+   * Svarssteget: meddelar resultaten i ordning
+   *
+   * @param from
+   * @param to
+   */
+  private void reply(long from, long to) {
+    for (var seq = from; seq <= to; seq++) {
+      var slot = slot(seq);
+      try {
+        replier.reply(slot.correlationId, slot.result);
+      } catch (RuntimeException e) {
+        e.printStackTrace();
+      }
+      slot.pNo = null;
+    }
+  }
+
+  /**
+   * Hjälprutin som hämtar platsen för ett nummer
+   *
+   * @param seq
+   * @return platsen
+   */
+  private Slot slot(long seq) {
+    return slots[(int) (seq & mask)];
+  }
+
+  /**
+   * Journalsteget: samlar de kodade posterna och skriver dem med en fsync per
+   * batch. Misslyckas skrivningen utförs inte kommandona och besvaras med false.
+   * Journalen tar sedan inte emot fler poster, så alla följande kommandon
+   * misslyckas också i stället för att lämna en lucka i journalen.
+   *
+   * @param from
+   * @param to
+   */
+  private void writeJournal(long from, long to) {
+    if (journal == null) {
+      return;
+    }
+    journalBuffer.clear();
+    var count = 0;
+    var first = from;
+    for (var seq = from; seq <= to; seq++) {
+      var record = slot(seq).record;
+      if (record.limit() > journalBuffer.remaining()) {
+        flushJournal(first, seq - 1, count);
+        first = seq;
+        count = 0;
+      }
+      if (record.limit() > 0) {
+        journalBuffer.put(record.array(), 0, record.limit());
+        count++;
+      }
+    }
+    flushJournal(first, to, count);
+  }
+
+  /**
+   * Hjälprutin som skriver det som samlats i journalbufferten
+   *
+   * @param from  Första platsen i bufferten
+   * @param to    Sista platsen i bufferten
+   * @param count Antal poster
+   */
+  private void flushJournal(long from, long to, int count) {
+    try {
+      journal.appendEncoded(journalBuffer.flip(), count);
+    } catch (IOException e) {
+      e.printStackTrace();
+      for (var seq = from; seq <= to; seq++) {
+        slot(seq).journalFailed = true; // Svaret blir false
+      }
+    }
+    journalBuffer.clear();
+  }
+}
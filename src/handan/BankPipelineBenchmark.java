@@ -0,0 +1,261 @@
+/**
+ * Klass som mäter BankPipeline mot en bank i BankRegistry.
+ * @author Hans Danielsson, handan-2
+ */
+package handan;
+
+/**
+ * Importsatser
+ */
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Kör samma blandning av insättningar och uttag genom BankPipeline med varje
+ * väntestrategi och, som jämförelse, genom BankRegistry.submit. Båda skriver
+ * varje ändring till journalen innan svaret ges. Efter varje körning stängs
+ * banken och återställs från sin katalog, den återställda banken ska ha samma
+ * saldon och antal transaktioner som banken hade. BUSY_SPIN körs bara när det
+ * finns en kärna per steg och producent. Körs med: java
+ * handan.BankPipelineBenchmark [kunder] [kommandon] [producenter]
+ */
+public class BankPipelineBenchmark {
+
+  private static final String BANK = "pipeline";
+  private static final int IN_FLIGHT = 1024; // Kommandon i luften per producent med submit
+  private static final int STAGES = 4;
+
+  /**
+   * Bankens saldon och transaktioner sammanfattade
+   *
+   * @param balance      Summan av alla saldon
+   * @param transactions Antal transaktioner
+   */
+  private record Totals(BigDecimal balance, long transactions) {
+
+    /**
+     * @param view
+     * @return summorna för vyn
+     */
+    private static Totals of(BankView view) {
+      var balance = BigDecimal.ZERO;
+      var transactions = 0L;
+      for (var customer : view.getCustomers()) {
+        for (var account : customer.accounts()) {
+          balance = balance.add(account.balance());
+          transactions += account.transactions().size();
+        }
+      }
+      return new Totals(balance, transactions);
+    }
+  }
+
+  /**
+   * Hjälprutin som tar bort katalogen med banken
+   *
+   * @param root
+   */
+  private static void delete(Path root) {
+    try (var files = Files.walk(root)) {
+      for (var file : files.sorted(Comparator.reverseOrder()).toList()) {
+        Files.deleteIfExists(file);
+      }
+    } catch (IOException e) {
+      System.err.println("Kan inte ta bort " + root + ": " + e);
+    }
+  }
+
+  /**
+   * Mäter en körning och kontrollerar banken efter återställning
+   *
+   * @param strategy      Väntestrategi, eller null för BankRegistry.submit
+   * @param customerCount
+   * @param commandCount  Kommandon per producent
+   * @param producers
+   * @return false om den återställda banken inte stämmer
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  private static boolean measure(BankPipeline.WaitStrategy strategy, int customerCount, int commandCount,
+      int producers) throws IOException, InterruptedException {
+    var root = Files.createTempDirectory("pipeline-");
+    try (var registry = new BankRegistry(root)) {
+      var pNos = new String[customerCount];
+      for (var i = 0; i < customerCount; i++) {
+        pNos[i] = BankWorkload.personalNumber(i);
+      }
+      var accounts = openBank(registry, pNos);
+      var bank = registry.get(BANK);
+
+      var ok = new AtomicLong();
+      var start = System.nanoTime();
+      List<String> metrics = List.of();
+      if (strategy == null) {
+        runClients(producers, () -> runSubmit(registry, pNos, accounts, commandCount, ok));
+      } else {
+        var replies = new CountDownLatch(producers * commandCount);
+        try (var pipeline = new BankPipeline(bank, (_, success) -> {
+          if (success) {
+            ok.incrementAndGet();
+          }
+          replies.countDown();
+        }, 1024, strategy)) {
+          runClients(producers, () -> runPipeline(pipeline, pNos, accounts, commandCount));
+          replies.await();
+          metrics = pipeline.metrics();
+        }
+      }
+      var seconds = (System.nanoTime() - start) / 1e9;
+
+      var before = Totals.of(bank.snapshot());
+      registry.close(BANK);
+      var after = Totals.of(registry.open(BANK).snapshot());
+      var same = before.equals(after);
+      System.out.printf("%-12s %11.0f  %9d  %s%n", strategy == null ? "submit" : strategy,
+          producers * commandCount / seconds, ok.get(), same ? "ok" : "FEL " + before + " / " + after);
+      metrics.forEach(line -> System.out.println("  " + line));
+      return same;
+    } finally {
+      delete(root);
+    }
+  }
+
+  /**
+   * Hjälprutin som öppnar banken och lägger in kunderna med en massimport
+   *
+   * @param registry
+   * @param pNos     Kundernas personnummer
+   * @return kontonummer per kund
+   * @throws IOException
+   */
+  private static int[] openBank(BankRegistry registry, String[] pNos) throws IOException {
+    var bank = registry.open(BANK);
+    var csv = new StringBuilder();
+    for (var i = 0; i < pNos.length; i++) {
+      csv.append(pNos[i]).append(";Förnamn").append(i).append(";Efternamn").append(i)
+          .append(i % 4 == 0 ? ";K\n" : ";S\n");
+    }
+    var file = bank.getDirectory().resolve("import.csv");
+    Files.writeString(file, csv, StandardCharsets.UTF_8);
+    registry.submit(BANK, b -> {
+      try {
+        return BankImport.importCsv(b, file);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }).join();
+
+    var accounts = new int[pNos.length];
+    for (var i = 0; i < pNos.length; i++) {
+      accounts[i] = bank.snapshot(pNos[i]).accounts().get(0).accountNumber();
+    }
+    return accounts;
+  }
+
+  /**
+   * Hjälprutin som kör client i producers trådar och väntar på dem
+   *
+   * @param producers
+   * @param client
+   * @throws InterruptedException
+   */
+  private static void runClients(int producers, Runnable client) throws InterruptedException {
+    var threads = new Thread[producers];
+    for (var t = 0; t < producers; t++) {
+      threads[t] = new Thread(client);
+      threads[t].start();
+    }
+    for (var thread : threads) {
+      thread.join();
+    }
+  }
+
+  /**
+   * Hjälprutin som lägger kommandon i kedjan från en producenttråd
+   *
+   * @param pipeline
+   * @param pNos
+   * @param accounts
+   * @param count
+   */
+  private static void runPipeline(BankPipeline pipeline, String[] pNos, int[] accounts, int count) {
+    var random = ThreadLocalRandom.current();
+    for (var i = 0; i < count; i++) {
+      var customer = random.nextInt(pNos.length);
+      var deposit = random.nextBoolean();
+      pipeline.publish(deposit ? BankPipeline.Command.DEPOSIT : BankPipeline.Command.WITHDRAW, pNos[customer],
+          accounts[customer], deposit ? 100 : 50, i);
+    }
+  }
+
+  /**
+   * Hjälprutin som kör samma kommandon genom BankRegistry.submit
+   *
+   * @param registry
+   * @param pNos
+   * @param accounts
+   * @param count
+   * @param ok       Räknar lyckade kommandon
+   */
+  private static void runSubmit(BankRegistry registry, String[] pNos, int[] accounts, int count, AtomicLong ok) {
+    var random = ThreadLocalRandom.current();
+    List<CompletableFuture<Boolean>> pending = new ArrayList<>(IN_FLIGHT);
+    for (var i = 0; i < count; i++) {
+      var customer = random.nextInt(pNos.length);
+      var pNo = pNos[customer];
+      var account = accounts[customer];
+      if (random.nextBoolean()) {
+        pending.add(registry.submit(BANK, bank -> bank.deposit(pNo, account, 100)));
+      } else {
+        pending.add(registry.submit(BANK, bank -> bank.withdraw(pNo, account, 50)));
+      }
+      if (pending.size() == IN_FLIGHT) {
+        pending.forEach(f -> ok.addAndGet(f.join() ? 1 : 0));
+        pending.clear();
+      }
+    }
+    pending.forEach(f -> ok.addAndGet(f.join() ? 1 : 0));
+  }
+
+  /**
+   * Startrutin
+   *
+   * @param args [kunder] [kommandon per producent] [producenter]
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  public static void main(String[] args) throws IOException, InterruptedException {
+    var customerCount = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+    var commandCount = args.length > 1 ? Integer.parseInt(args[1]) : 50_000;
+    var producers = args.length > 2 ? Integer.parseInt(args[2]) : 2;
+
+    measure(BankPipeline.WaitStrategy.SLEEPING, customerCount / 10, commandCount / 10, producers); // Uppvärmning
+    System.out.printf("%d kunder, %d producenter med %d kommandon var%n", customerCount, producers, commandCount);
+    System.out.println("Väg           Kommandon/s  Lyckade    Återställd");
+    var failed = false;
+    for (var strategy : BankPipeline.WaitStrategy.values()) {
+      if (strategy == BankPipeline.WaitStrategy.BUSY_SPIN
+          && Runtime.getRuntime().availableProcessors() < STAGES + producers) {
+        continue;
+      }
+      failed |= !measure(strategy, customerCount, commandCount, producers);
+    }
+    failed |= !measure(null, customerCount, commandCount, producers);
+    System.exit(failed ? 1 : 0);
+  }
+
+  protected BankPipelineBenchmark() {
+    // Privat konstruktor för att förhindra instansiering
+  }
+}
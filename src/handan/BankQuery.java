@@ -0,0 +1,188 @@
+/**
+ * Klass som definierar frågor över saldon och transaktioner i hela banken.
+ * @author Hans Danielsson, handan-2
+ */
+package handan;
+
+/**
+ * Importsatser
+ */
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.function.Predicate;
+import java.util.stream.Collector;
+import java.util.stream.Collectors;
+
+import handan.BankView.AccountView;
+import handan.BankView.CustomerView;
+
+/**
+ * Frågor som "de 100 största saldona" eller "alla kreditkonton under -4000 kr".
+ * Frågorna på konton går mot en läsvy från bank.snapshot(), som aldrig ändras,
+ * och kan därför köras i vilken tråd som helst medan banken ändras. Kunderna gås
+ * igenom parallellt och de N bästa hålls i en begränsad heap per tråd. Bara de
+ * konton som kommer med i svaret formateras till text.
+ *
+ * Frågor på transaktioner, som "alla uttag över 50 000 kr", går mot bankens
+ * TransactionIndex och behöver varken gå igenom kontona eller tolka texterna.
+ * Indexet ändras av bankens tråd och de frågorna körs därför där.
+ */
+public class BankQuery {
+
+  /**
+   * Ett konto tillsammans med kunden som äger det
+   *
+   * @param customer
+   * @param account
+   */
+  private record Hit(CustomerView customer, AccountView account) {
+
+    /**
+     * Formaterar träffen, "pNr kontonr saldo kontotyp ränta"
+     *
+     * @return texten
+     */
+    private String format() {
+      return customer.personalNumber() + " " + account;
+    }
+  }
+
+  private static final Comparator<Hit> BY_BALANCE = Comparator.comparing(h -> h.account().balance());
+  private static final String CREDIT = Account.AccountType.CREDIT.toString();
+  private static final String SAVINGS = Account.AccountType.SAVINGS.toString();
+
+  /**
+   * Alla konton som uppfyller villkoret, i bankens ordning.
+   *
+   * @param view   Läsvy från bank.snapshot()
+   * @param filter Villkor på kontot
+   * @return formaterade konton
+   */
+  protected static List<String> accountsWhere(BankView view, Predicate<AccountView> filter) {
+    return view.getCustomers().parallelStream()
+        .flatMap(c -> c.accounts().stream().filter(filter).map(a -> new Hit(c, a))).map(Hit::format)
+        .collect(Collectors.toList());
+  }
+
+  /**
+   * Kreditkonton med saldo under gränsen, t.ex. -4000 kr.
+   *
+   * @param view  Läsvy från bank.snapshot()
+   * @param limit Gräns i kronor
+   * @return formaterade konton
+   */
+  protected static List<String> creditAccountsBelow(BankView view, int limit) {
+    var threshold = BigDecimal.valueOf(limit);
+    return accountsWhere(view, a -> CREDIT.equals(a.accountType()) && a.balance().compareTo(threshold) < 0);
+  }
+
+  /**
+   * Sparkonton där inget uttag har gjorts ännu.
+   *
+   * @param view Läsvy från bank.snapshot()
+   * @return formaterade konton
+   */
+  protected static List<String> savingsWithoutWithdrawal(BankView view) {
+    return accountsWhere(view, a -> SAVINGS.equals(a.accountType()) && !a.hasMadeWithdrawal());
+  }
+
+  /**
+   * De n konton med störst saldo, störst först.
+   *
+   * @param view Läsvy från bank.snapshot()
+   * @param n    Antal konton
+   * @return formaterade konton
+   */
+  protected static List<String> topBalances(BankView view, int n) {
+    return topWhere(view, n, BY_BALANCE, _ -> true);
+  }
+
+  /**
+   * De n konton som är störst enligt ordningen, bland dem som uppfyller villkoret.
+   * Varje tråd håller en heap med högst n träffar, heaparna slås sedan ihop.
+   *
+   * @param view   Läsvy från bank.snapshot()
+   * @param n      Antal konton
+   * @param order  Ordning, störst först i svaret
+   * @param filter Villkor på kontot
+   * @return formaterade konton
+   */
+  private static List<String> topWhere(BankView view, int n, Comparator<Hit> order, Predicate<AccountView> filter) {
+    if (n <= 0) {
+      return List.of();
+    }
+
+    Collector<Hit, PriorityQueue<Hit>, List<String>> bounded = Collector.of(() -> new PriorityQueue<>(order),
+        (heap, hit) -> {
+          heap.offer(hit);
+          if (heap.size() > n) {
+            heap.poll(); // Minsta åker ut
+          }
+        }, (left, right) -> {
+          right.forEach(hit -> {
+            left.offer(hit);
+            if (left.size() > n) {
+              left.poll();
+            }
+          });
+          return left;
+        }, heap -> {
+          var hits = new ArrayList<>(heap);
+          hits.sort(order.reversed());
+          return hits.stream().map(Hit::format).toList();
+        });
+
+    return view.getCustomersByPersonalNumber().parallelStream()
+        .flatMap(c -> c.accounts().stream().filter(filter).map(a -> new Hit(c, a))).collect(bounded);
+  }
+
+  /**
+   * Alla transaktioner mellan from och to.
+   *
+   * @param bank Banken, anropas i bankens tråd
+   * @param from Inklusive
+   * @param to   Inklusive
+   * @return "pNr kontonr datum belopp Saldo: saldo", i tidsordning
+   */
+  protected static List<String> transactionsBetween(BankLogic bank, Instant from, Instant to) {
+    return bank.getTransactionIndex().byTime(from.getEpochSecond(), to.getEpochSecond()).stream()
+        .map(TransactionIndex.Match::format).toList();
+  }
+
+  /**
+   * Transaktioner med exakt beloppet mellan from och to, t.ex. 9 999 kr senaste
+   * veckan. Insättningar har positivt belopp och uttag negativt.
+   *
+   * @param bank   Banken, anropas i bankens tråd
+   * @param amount Belopp i kronor
+   * @param from   Inklusive
+   * @param to     Inklusive
+   * @return "pNr kontonr datum belopp Saldo: saldo", i tidsordning
+   */
+  protected static List<String> transactionsOfAmount(BankLogic bank, BigDecimal amount, Instant from, Instant to) {
+    var minor = Account.toMinor(amount);
+    return bank.getTransactionIndex().byAmount(minor, minor, from.getEpochSecond(), to.getEpochSecond()).stream()
+        .map(TransactionIndex.Match::format).toList();
+  }
+
+  /**
+   * Uttag större än gränsen, t.ex. 50 000 kr. Uttagsavgiften räknas med i
+   * beloppet.
+   *
+   * @param bank  Banken, anropas i bankens tråd
+   * @param limit Gräns i kronor
+   * @return "pNr kontonr datum belopp Saldo: saldo", största uttaget först
+   */
+  protected static List<String> withdrawalsOver(BankLogic bank, int limit) {
+    return bank.getTransactionIndex().byAmount(Long.MIN_VALUE, -Account.toMinor(BigDecimal.valueOf(limit)) - 1,
+        Long.MIN_VALUE, Long.MAX_VALUE).stream().map(TransactionIndex.Match::format).toList();
+  }
+
+  protected BankQuery() {
+    // Privat konstruktor för att förhindra instansiering
+  }
+}
@@ -0,0 +1,158 @@
+/**
+ * Klass som definierar flera oberoende banker i samma program.
+ * @author Hans Danielsson, handan-2
+ */
+package handan;
+
+/**
+ * Importsatser
+ */
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Håller flera banker i samma JVM, var och en med ett namn. Varje bank har en
+ * egen katalog under root med ögonblicksbilder och journal, en egen serie
+ * kontonummer och en egen tråd som ensam ändrar banken, som en partition i
+ * BankEngine. Journalen med sin skrivtråd och, med -Dhandan.accounts=mapped,
+ * kontofilen hör också till banken och stängs med den. Ändringar i olika banker
+ * delar därför inga lås eller köer, med N banker på N kärnor går de parallellt.
+ * Läsningar går direkt mot bankens ögonblicksbild.
+ *
+ * Delat mellan bankerna är fortfarande poolen i BankAsyncIO, där
+ * ögonblicksbilder och export skrivs, och den gemensamma ForkJoinPool som
+ * massimport, frågor och export räknar parallellt i. En bank som skriver eller
+ * räknar mycket kan alltså göra en annan banks ögonblicksbild eller import
+ * långsammare, men ändringarna väntar inte på varandra. Main visar en bank i
+ * taget och använder inte registret.
+ */
+public class BankRegistry implements AutoCloseable {
+
+  /**
+   * En bank i registret: banken och den enda tråd som får ändra den
+   *
+   * @param bank
+   * @param worker
+   */
+  private record Entry(BankLogic bank, ExecutorService worker) {
+  }
+
+  private static final String VALID_NAME = "[\\p{Alnum}_-]+"; // Namnet blir en katalog
+
+  private final Path root;
+  private final Map<String, Entry> banks = new ConcurrentHashMap<>();
+
+  /**
+   * Skapa ett register med bankernas kataloger under root
+   *
+   * @param root Katalog för bankerna, t.ex. BankFileIO.BASE_PATH
+   */
+  public BankRegistry(Path root) {
+    this.root = root;
+  }
+
+  /**
+   * Stänger alla banker
+   */
+  @Override
+  public void close() {
+    for (var name : names()) {
+      close(name);
+    }
+  }
+
+  /**
+   * Stänger en bank efter att köade kommandon är utförda, se
+   * BankFileIO.closeBank. Banken återställs från sin katalog nästa gång den
+   * öppnas.
+   *
+   * @param name
+   * @return false om banken inte var öppen
+   */
+  public boolean close(String name) {
+    var entry = banks.remove(name);
+    if (entry == null) {
+      return false;
+    }
+    entry.worker().shutdown();
+    try {
+      entry.worker().awaitTermination(1, TimeUnit.MINUTES);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    BankFileIO.closeBank(entry.bank());
+    return true;
+  }
+
+  /**
+   * Hämtar en öppen bank, för läsningar mot ögonblicksbilden. Ändringar ska gå
+   * genom submit.
+   *
+   * @param name
+   * @return banken eller null om den inte är öppen
+   */
+  public BankLogic get(String name) {
+    var entry = banks.get(name);
+    return entry == null ? null : entry.bank();
+  }
+
+  /**
+   * Namnen på de öppna bankerna
+   *
+   * @return namnen i bokstavsordning
+   */
+  public Set<String> names() {
+    return new TreeSet<>(banks.keySet());
+  }
+
+  /**
+   * Öppnar en bank. Banken återställs från katalogen root/name, som skapas om
+   * den saknas. Är banken redan öppen returneras den.
+   *
+   * @param name Bokstäver, siffror, - och _
+   * @return banken
+   */
+  public BankLogic open(String name) {
+    if (name == null || !name.matches(VALID_NAME)) {
+      throw new IllegalArgumentException("Ogiltigt banknamn: " + name);
+    }
+    return banks.computeIfAbsent(name, n -> {
+      var bank = BankFileIO.recoverBank(root.resolve(n));
+      return new Entry(bank, Executors.newSingleThreadExecutor(r -> {
+        var t = new Thread(r, "bank-" + n);
+        t.setDaemon(true);
+        return t;
+      }));
+    }).bank();
+  }
+
+  /**
+   * Lägger ett kommando i kön för banken name. Kommandot körs av bankens tråd
+   * och får därför ändra banken fritt. Resultatet blir klart först när
+   * ändringarna ligger i journalen, tråden fortsätter under tiden med nästa
+   * kommando så att flera kommandon delar en fsync.
+   *
+   * @param name    Bankens namn
+   * @param command Anropet mot banken
+   * @return resultatet när kommandot är utfört
+   */
+  public <T> CompletableFuture<T> submit(String name, Function<BankLogic, T> command) {
+    var entry = banks.get(name);
+    if (entry == null) {
+      return CompletableFuture.failedFuture(new IllegalStateException("Banken är inte öppen: " + name));
+    }
+    var bank = entry.bank();
+    return CompletableFuture.supplyAsync(() -> {
+      var result = command.apply(bank);
+      return bank.durable().thenApply(_ -> result);
+    }, entry.worker()).thenCompose(done -> done);
+  }
+}
@@ -0,0 +1,180 @@
+/**
+ * Klass som mäter hur BankRegistry skalar med antal banker.
+ * @author Hans Danielsson, handan-2
+ */
+package handan;
+
+/**
+ * Importsatser
+ */
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Kör samma blandning av insättningar och uttag mot 1, 2, 4 ... banker upp till
+ * antalet kärnor, med en klienttråd per bank, och skriver ut kommandon per
+ * sekund för alla banker tillsammans. Varje bank har egen katalog, journal och
+ * tråd, så med oberoende banker ska summan växa med antal banker. Bankerna
+ * skapas i en temporär katalog som tas bort efteråt. Körs med: java
+ * handan.BankRegistryBenchmark [kunder per bank] [kommandon per bank] [banker]
+ */
+public class BankRegistryBenchmark {
+
+  private static final int IN_FLIGHT = 1024; // Kommandon i luften per klient
+
+  /**
+   * Hjälprutin som tar bort katalogen med bankerna
+   *
+   * @param root
+   */
+  private static void delete(Path root) {
+    try (var files = Files.walk(root)) {
+      for (var file : files.sorted(Comparator.reverseOrder()).toList()) {
+        Files.deleteIfExists(file);
+      }
+    } catch (IOException e) {
+      System.err.println("Kan inte ta bort " + root + ": " + e);
+    }
+  }
+
+  /**
+   * Hjälprutin som öppnar en bank och lägger in kunderna med en massimport, en
+   * kund i taget skulle ge en fsync per kund
+   *
+   * @param registry
+   * @param name
+   * @param pNos     Kundernas personnummer
+   * @return kontonummer per kund
+   * @throws IOException
+   */
+  private static int[] openBank(BankRegistry registry, String name, String[] pNos) throws IOException {
+    var bank = registry.open(name);
+    var csv = new StringBuilder();
+    for (var i = 0; i < pNos.length; i++) {
+      csv.append(pNos[i]).append(";Förnamn").append(i).append(";Efternamn").append(i)
+          .append(i % 4 == 0 ? ";K\n" : ";S\n");
+    }
+    var file = bank.getDirectory().resolve("import.csv");
+    Files.writeString(file, csv, StandardCharsets.UTF_8);
+    registry.submit(name, b -> {
+      try {
+        return BankImport.importCsv(b, file);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }).join();
+
+    var accounts = new int[pNos.length];
+    for (var i = 0; i < pNos.length; i++) {
+      accounts[i] = bank.snapshot(pNos[i]).accounts().get(0).accountNumber();
+    }
+    return accounts;
+  }
+
+  /**
+   * Hjälprutin som kör kommandon mot en bank från en klienttråd
+   *
+   * @param registry
+   * @param name     Bankens namn
+   * @param pNos     Kundernas personnummer
+   * @param accounts Kontonummer per kund
+   * @param count    Antal kommandon
+   */
+  private static void runClient(BankRegistry registry, String name, String[] pNos, int[] accounts, int count) {
+    var random = ThreadLocalRandom.current();
+    List<CompletableFuture<Boolean>> pending = new ArrayList<>(IN_FLIGHT);
+    for (var i = 0; i < count; i++) {
+      var customer = random.nextInt(pNos.length);
+      var pNo = pNos[customer];
+      var account = accounts[customer];
+      if (random.nextBoolean()) {
+        pending.add(registry.submit(name, bank -> bank.deposit(pNo, account, 100)));
+      } else {
+        pending.add(registry.submit(name, bank -> bank.withdraw(pNo, account, 50)));
+      }
+      if (pending.size() == IN_FLIGHT) {
+        pending.forEach(CompletableFuture::join);
+        pending.clear();
+      }
+    }
+    pending.forEach(CompletableFuture::join);
+  }
+
+  /**
+   * Mäter bankCount banker som körs samtidigt
+   *
+   * @param bankCount
+   * @param customerCount Kunder per bank
+   * @param commandCount  Kommandon per bank
+   * @return kommandon per sekund för alla banker tillsammans
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  private static double measure(int bankCount, int customerCount, int commandCount)
+      throws IOException, InterruptedException {
+    var root = Files.createTempDirectory("registry-");
+    try (var registry = new BankRegistry(root)) {
+      var pNos = new String[customerCount];
+      for (var i = 0; i < customerCount; i++) {
+        pNos[i] = BankWorkload.personalNumber(i);
+      }
+      var accounts = new int[bankCount][];
+      for (var b = 0; b < bankCount; b++) {
+        accounts[b] = openBank(registry, "bank" + b, pNos);
+      }
+
+      var clients = new Thread[bankCount];
+      var start = System.nanoTime();
+      for (var b = 0; b < clients.length; b++) {
+        var name = "bank" + b;
+        var bankAccounts = accounts[b];
+        clients[b] = new Thread(() -> runClient(registry, name, pNos, bankAccounts, commandCount));
+        clients[b].start();
+      }
+      for (var client : clients) {
+        client.join();
+      }
+      var seconds = (System.nanoTime() - start) / 1e9;
+      return (double) bankCount * commandCount / seconds;
+    } finally {
+      delete(root);
+    }
+  }
+
+  /**
+   * Startrutin
+   *
+   * @param args [kunder per bank] [kommandon per bank] [största antal banker]
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  public static void main(String[] args) throws IOException, InterruptedException {
+    var customerCount = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+    var commandCount = args.length > 1 ? Integer.parseInt(args[1]) : 50_000;
+    var maxBanks = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+
+    measure(1, customerCount / 10, commandCount / 10); // Uppvärmning
+    System.out.printf("%d kunder och %d kommandon per bank%n", customerCount, commandCount);
+    System.out.println("Banker  Kommandon/s  Skalning");
+    double base = 0;
+    for (var n = 1; n <= maxBanks; n *= 2) {
+      var rate = measure(n, customerCount, commandCount);
+      if (n == 1) {
+        base = rate;
+      }
+      System.out.printf("%6d  %11.0f  %7.2fx%n", n, rate, rate / base);
+    }
+  }
+
+  protected BankRegistryBenchmark() {
+    // Privat konstruktor för att förhindra instansiering
+  }
+}
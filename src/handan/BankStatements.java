@@ -0,0 +1,173 @@
+/**
+ * Klass som definierar kontoutdrag för alla kunder i banken.
+ * @author Hans Danielsson, handan-2
+ */
+package handan;
+
+/**
+ * Importsatser
+ */
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.concurrent.atomic.LongAdder;
+
+import handan.BankView.AccountView;
+import handan.BankView.CustomerView;
+
+/**
+ * Skriver ett kontoutdrag per kund för en period, med alla kundens konton:
+ * ingående och utgående saldo, periodens transaktioner och räntan på utgående
+ * saldo. Utdragen skrivs från en läsvy av banken, så banken kan användas under
+ * tiden, och kunderna fördelas på alla kärnor med en parallell ström.
+ *
+ * Varje utdrag skrivs direkt till sin egen fil rad för rad. Filen skrivs först
+ * som pNr.tmp och byter sedan namn till pNr.txt, så en .txt-fil är alltid hel.
+ * Avbryts körningen kan den startas om för samma period och mapp, kunder som
+ * redan har en .txt-fil hoppas över. Filerna synkas inte en och en, det skulle
+ * ta längre tid än att skriva dem. En tom fil efter ett strömavbrott skrivs om.
+ */
+public class BankStatements {
+
+  /**
+   * Resultatet av en körning
+   *
+   * @param dir     Mappen med utdragen
+   * @param written Antal skrivna utdrag
+   * @param skipped Antal utdrag som fanns sedan en tidigare körning
+   * @param millis  Tid för körningen
+   */
+  protected record Result(Path dir, long written, long skipped, long millis) {
+
+    @Override
+    public String toString() {
+      return String.format("%,d kontoutdrag skrivna, %,d fanns redan (%,d ms)", written, skipped, millis);
+    }
+  }
+
+  private static final String SEPARATOR = "====================================";
+  private static final String LINE = "------------------------------------";
+
+  /**
+   * Hjälprutin som skriver en rad
+   *
+   * @param out
+   * @param text
+   * @throws IOException
+   */
+  private static void line(Writer out, String text) throws IOException {
+    out.write(text);
+    out.write(System.lineSeparator());
+  }
+
+  /**
+   * Skriver utdrag för alla kunder i vyn. Utdrag som redan finns i mappen
+   * skrivs inte om.
+   *
+   * @param view Banken
+   * @param dir  Mappen, skapas om den inte finns
+   * @param from Första dagen i perioden
+   * @param to   Sista dagen i perioden
+   * @return resultatet
+   * @throws IOException om mappen inte kan skapas
+   */
+  protected static Result write(BankView view, Path dir, LocalDate from, LocalDate to) throws IOException {
+    var start = System.nanoTime();
+    Files.createDirectories(dir);
+    var zone = ZoneId.systemDefault();
+    var fromSecond = from.atStartOfDay(zone).toEpochSecond();
+    var toSecond = to.plusDays(1).atStartOfDay(zone).toEpochSecond() - 1;
+    var written = new LongAdder();
+    var skipped = new LongAdder();
+
+    view.getCustomers().parallelStream().forEach(customer -> {
+      var file = dir.resolve(customer.personalNumber() + ".txt");
+      var tmp = dir.resolve(customer.personalNumber() + ".tmp");
+      try {
+        if (Files.exists(file) && Files.size(file) > 0) {
+          skipped.increment();
+          return;
+        }
+        try (var out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+          writeStatement(out, customer, from, to, fromSecond, toSecond);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      written.increment();
+    });
+    return new Result(dir, written.sum(), skipped.sum(), (System.nanoTime() - start) / 1_000_000);
+  }
+
+  /**
+   * Hjälprutin som skriver ett kontos del av utdraget
+   *
+   * @param out
+   * @param account
+   * @param fromSecond Periodens början, epoch-sekunder
+   * @param toSecond   Periodens slut, epoch-sekunder
+   * @throws IOException
+   */
+  private static void writeAccount(Writer out, AccountView account, long fromSecond, long toSecond)
+      throws IOException {
+    var log = account.transactions();
+    var opening = 0L;
+    var i = 0;
+    while (i < log.size() && log.getTime(i) < fromSecond) {
+      opening = log.getBalance(i++);
+    }
+    line(out, account.accountNumber() + " " + account.accountType());
+    line(out, "Ingående saldo: " + Account.formatCurrency(Account.fromMinor(opening)));
+    var closing = opening;
+    for (; i < log.size() && log.getTime(i) <= toSecond; i++) {
+      line(out, Account.formatTransaction(log, i));
+      closing = log.getBalance(i);
+    }
+
+    var closingBalance = Account.fromMinor(closing);
+    var rate = account.rateFor(closingBalance);
+    var interest = closingBalance.multiply(rate).divide(BigDecimal.valueOf(100), 2, RoundingMode.HALF_UP);
+    line(out, "Utgående saldo: " + Account.formatCurrency(closingBalance));
+    line(out, "Ränta " + rate.toPlainString() + " %: " + Account.formatCurrency(interest));
+  }
+
+  /**
+   * Hjälprutin som skriver en kunds utdrag
+   *
+   * @param out
+   * @param customer
+   * @param from
+   * @param to
+   * @param fromSecond
+   * @param toSecond
+   * @throws IOException
+   */
+  private static void writeStatement(Writer out, CustomerView customer, LocalDate from, LocalDate to,
+      long fromSecond, long toSecond) throws IOException {
+    line(out, "Kontoutdrag " + from + " - " + to);
+    line(out, customer.toString());
+    line(out, SEPARATOR);
+    var first = true;
+    for (var account : customer.accounts()) {
+      if (!first) {
+        line(out, LINE);
+      }
+      writeAccount(out, account, fromSecond, toSecond);
+      first = false;
+    }
+    line(out, SEPARATOR);
+  }
+
+  protected BankStatements() {
+    // Privat konstruktor för att förhindra instansiering
+  }
+}
@@ -0,0 +1,205 @@
+/**
+ * Klass som definierar löpande summeringar för hela banken.
+ * @author Hans Danielsson, handan-2
+ */
+package handan;
+
+/**
+ * Importsatser
+ */
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Summeringar som uppdateras vid varje ändring i banken, så att frågor som
+ * "totalt insatt" eller "utnyttjad kredit" besvaras utan att gå igenom alla
+ * konton. Beloppen hålls i öre i LongAdder, som sprider uppdateringarna på flera
+ * celler och därför inte blir en flaskhals när flera trådar ändrar samtidigt.
+ */
+public class BankStatistics {
+
+  /**
+   * Summeringar för en kontotyp
+   */
+  private static class TypeTotals {
+    private final LongAdder count = new LongAdder();
+    private final LongAdder balance = new LongAdder(); // Öre
+  }
+
+  private final LongAdder customers = new LongAdder();
+  private final LongAdder accounts = new LongAdder();
+  private final LongAdder deposits = new LongAdder(); // Summan av alla positiva saldon, öre
+  private final LongAdder creditDrawn = new LongAdder(); // Summan av alla negativa saldon, öre
+  private final LongAdder creditLimits = new LongAdder(); // Summan av alla kreditgränser, öre
+  private final Map<String, TypeTotals> types = new ConcurrentHashMap<>();
+
+  /**
+   * Ett nytt konto har skapats, eller ett befintligt läses in.
+   *
+   * @param account
+   */
+  protected void accountOpened(Account account) {
+    accounts.increment();
+    totals(account).count.increment();
+    if (account instanceof CreditAccount credit) {
+      creditLimits.add(Account.toMinor(credit.getCreditLimit()));
+    }
+    balanceChanged(account, BigDecimal.ZERO, account.getAccountBalance());
+  }
+
+  /**
+   * Ett konto har tagits bort
+   *
+   * @param account
+   */
+  protected void accountClosed(Account account) {
+    balanceChanged(account, account.getAccountBalance(), BigDecimal.ZERO);
+    accounts.decrement();
+    totals(account).count.decrement();
+    if (account instanceof CreditAccount credit) {
+      creditLimits.add(-Account.toMinor(credit.getCreditLimit()));
+    }
+  }
+
+  /**
+   * Saldot på ett konto har ändrats. Bara skillnaden läggs till, O(1).
+   *
+   * @param account
+   * @param before  Saldo före
+   * @param after   Saldo efter
+   */
+  protected void balanceChanged(Account account, BigDecimal before, BigDecimal after) {
+    var oldMinor = Account.toMinor(before);
+    var newMinor = Account.toMinor(after);
+    if (oldMinor == newMinor) {
+      return;
+    }
+    totals(account).balance.add(newMinor - oldMinor);
+    deposits.add(Math.max(newMinor, 0) - Math.max(oldMinor, 0));
+    creditDrawn.add(Math.max(-newMinor, 0) - Math.max(-oldMinor, 0));
+  }
+
+  /**
+   * Tömmer alla summeringar
+   */
+  protected void clear() {
+    customers.reset();
+    accounts.reset();
+    deposits.reset();
+    creditDrawn.reset();
+    creditLimits.reset();
+    types.clear();
+  }
+
+  /**
+   * En kund har lagts till
+   */
+  protected void customerAdded() {
+    customers.increment();
+  }
+
+  /**
+   * En kund har tagits bort
+   */
+  protected void customerRemoved() {
+    customers.decrement();
+  }
+
+  /**
+   * Antal konton i banken
+   *
+   * @return antal
+   */
+  public long getAccountCount() {
+    return accounts.sum();
+  }
+
+  /**
+   * Antal konton av en typ
+   *
+   * @param accountType Sparkonto eller Kreditkonto
+   * @return antal
+   */
+  public long getAccountCount(String accountType) {
+    var totals = types.get(accountType);
+    return totals == null ? 0 : totals.count.sum();
+  }
+
+  /**
+   * Summan av alla negativa saldon, dvs utnyttjad kredit
+   *
+   * @return kronor
+   */
+  public BigDecimal getCreditDrawn() {
+    return Account.fromMinor(creditDrawn.sum());
+  }
+
+  /**
+   * Summan av alla kreditgränser
+   *
+   * @return kronor
+   */
+  public BigDecimal getCreditLimitTotal() {
+    return Account.fromMinor(creditLimits.sum());
+  }
+
+  /**
+   * Antal kunder i banken
+   *
+   * @return antal
+   */
+  public long getCustomerCount() {
+    return customers.sum();
+  }
+
+  /**
+   * Summan av saldot för en kontotyp
+   *
+   * @param accountType Sparkonto eller Kreditkonto
+   * @return kronor
+   */
+  public BigDecimal getTotalBalance(String accountType) {
+    var totals = types.get(accountType);
+    return Account.fromMinor(totals == null ? 0 : totals.balance.sum());
+  }
+
+  /**
+   * Summan av alla positiva saldon, dvs insatta pengar i banken
+   *
+   * @return kronor
+   */
+  public BigDecimal getTotalDeposits() {
+    return Account.fromMinor(deposits.sum());
+  }
+
+  /**
+   * Rapport som visas i fönstret
+   *
+   * @return rader med summeringar
+   */
+  public List<String> report() {
+    List<String> result = new ArrayList<>();
+    result.add("Kunder: " + getCustomerCount());
+    result.add("Konton: " + getAccountCount());
+    types.keySet().stream().sorted().forEach(type -> result.add(String.format("%s: %d st, saldo %s", type,
+        getAccountCount(type), Account.formatCurrency(getTotalBalance(type)))));
+    result.add("Totalt insatt: " + Account.formatCurrency(getTotalDeposits()));
+    result.add("Utnyttjad kredit: " + Account.formatCurrency(getCreditDrawn()) + " av "
+        + Account.formatCurrency(getCreditLimitTotal()));
+    return result;
+  }
+
+  /**
+   * Hjälprutin som hämtar summeringen för kontots typ
+   *
+   * @param account
+   * @return summeringen
+   */
+  private TypeTotals totals(Account account) {
+    return types.computeIfAbsent(account.getAccountType(), _ -> new TypeTotals());
+  }
+}
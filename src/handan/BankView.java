@@ -0,0 +1,443 @@
+/**
+ * Klass som definierar en oföränderlig ögonblicksbild av banken för läsning.
+ * @author Hans Danielsson, handan-2
+ */
+package handan;
+
+/**
+ * Importsatser
+ */
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * En läsvy som aldrig ändras. Banken byter ut sin vy efter varje ändring och en
+ * läsare som har hämtat vyn kan gå igenom den i lugn och ro medan insättningar
+ * och uttag fortsätter. Kunderna ligger i ett persistent binärt sökträd (treap)
+ * på personnummer: en ny vy kopierar bara vägen ner till den ändrade kunden,
+ * O(log n), och delar resten med den gamla vyn.
+ *
+ * Prioriteten i trädet bestäms av personnumret, så trädets form beror bara på
+ * vilka kunder som finns. När banken läses in byggs trädet direkt från kunderna
+ * sorterade på personnummer, O(n).
+ */
+public final class BankView {
+
+  /**
+   * Ett kontos tillstånd när vyn skapades. Texten formateras först när den
+   * hämtas, så en ändring kostar inte mer än att kopiera några referenser.
+   *
+   * @param accountNumber     Kontonummer
+   * @param balance           Saldo
+   * @param accountType       Sparkonto eller Kreditkonto
+   * @param interestRate      Räntan på insatta pengar
+   * @param debtRate          Räntan när saldot är negativt
+   * @param transactions      Transaktionerna fram till dess
+   * @param hasMadeWithdrawal Om ett uttag har gjorts på ett sparkonto
+   */
+  public record AccountView(int accountNumber, BigDecimal balance, String accountType, BigDecimal interestRate,
+      BigDecimal debtRate, TransactionLog transactions, boolean hasMadeWithdrawal) {
+
+    /**
+     * Skapar en vy av kontot som det ser ut nu
+     *
+     * @param account
+     * @return vyn
+     */
+    protected static AccountView of(Account account) {
+      return new AccountView(account.getAccountNumber(), account.getAccountBalance(), account.getAccountType(),
+          account.getInterestRate(), account.getDebtRate(), account.getTransactionLog().freeze(),
+          account instanceof SavingsAccount savings && savings.hasMadeWithdrawal());
+    }
+
+    /**
+     * Transaktionerna som text
+     *
+     * @return "datum belopp Saldo: saldo"
+     */
+    public List<String> getTransactions() {
+      List<String> result = new ArrayList<>(transactions.size());
+      for (var i = 0; i < transactions.size(); i++) {
+        result.add(Account.formatTransaction(transactions, i));
+      }
+      return List.copyOf(result);
+    }
+
+    /**
+     * Räntan som gäller till saldot
+     *
+     * @return procent
+     */
+    public BigDecimal rate() {
+      return rateFor(balance);
+    }
+
+    /**
+     * Räntan som gäller till ett annat saldo, t.ex. utgående saldo på ett
+     * kontoutdrag
+     *
+     * @param amount Saldo
+     * @return procent
+     */
+    public BigDecimal rateFor(BigDecimal amount) {
+      return amount.signum() >= 0 ? interestRate : debtRate;
+    }
+
+    /**
+     * Vid utskrift av kontot med kontonummer saldo kontotyp, percent.
+     *
+     * @return "kontonr saldo kontotyp procent %"
+     */
+    @Override
+    public String toString() {
+      return Account.formatAccountInfo(accountNumber, balance, accountType, rate());
+    }
+  }
+
+  /**
+   * En kunds tillstånd när vyn skapades
+   *
+   * @param order          Ordning i banken, för att lista kunderna i tur och
+   *                       ordning
+   * @param personalNumber Personnummer
+   * @param firstName      Förnamn
+   * @param lastName       Efternamn
+   * @param accounts       Kundens konton
+   */
+  public record CustomerView(long order, String personalNumber, String firstName, String lastName,
+      List<AccountView> accounts) {
+
+    /**
+     * Skapar en vy av kunden som den ser ut nu
+     *
+     * @param order
+     * @param customer
+     * @return vyn
+     */
+    protected static CustomerView of(long order, Customer customer) {
+      return of(order, customer, customer.getAccounts().stream().map(AccountView::of).toList());
+    }
+
+    /**
+     * Skapar en vy av kunden med färdiga kontovyer, t.ex. konton som läses från
+     * disk
+     *
+     * @param order
+     * @param customer
+     * @param accounts
+     * @return vyn
+     */
+    protected static CustomerView of(long order, Customer customer, List<AccountView> accounts) {
+      return new CustomerView(order, customer.getPersonalNumber(), customer.getFirstName(), customer.getLastName(),
+          accounts);
+    }
+
+    /**
+     * Letar upp ett konto
+     *
+     * @param accountId
+     * @return kontot eller null
+     */
+    public AccountView getAccount(int accountId) {
+      return accounts.stream().filter(a -> a.accountNumber() == accountId).findFirst().orElse(null);
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%s %s %s", personalNumber, firstName, lastName);
+    }
+  }
+
+  /**
+   * Nod i trädet. Noderna ändras aldrig, en ändring skapar nya noder.
+   */
+  private record Node(String key, CustomerView value, int priority, Node left, Node right) {
+  }
+
+  protected static final BankView EMPTY = new BankView(null, 0);
+  private static final int BULK_RATIO = 16; // Färre nya kunder än size / 16 läggs in en i taget
+
+  /**
+   * Hjälprutin som skapar noderna i ett delträd från byggets länkar
+   *
+   * @param customers
+   * @param priorities
+   * @param left
+   * @param right
+   * @param i          Delträdets rot, -1 för tomt
+   * @return delträdet
+   */
+  private static Node build(List<CustomerView> customers, int[] priorities, int[] left, int[] right, int i) {
+    if (i < 0) {
+      return null;
+    }
+    var value = customers.get(i);
+    return new Node(value.personalNumber(), value, priorities[i], build(customers, priorities, left, right, left[i]),
+        build(customers, priorities, left, right, right[i]));
+  }
+
+  /**
+   * Hjälprutin som lägger in eller byter ut en kund
+   *
+   * @param node
+   * @param value
+   * @param priority
+   * @return ny rot för delträdet
+   */
+  private static Node insert(Node node, CustomerView value, int priority) {
+    var key = value.personalNumber();
+    if (node == null) {
+      return new Node(key, value, priority, null, null);
+    }
+    var cmp = key.compareTo(node.key());
+    if (cmp == 0) {
+      return new Node(key, value, node.priority(), node.left(), node.right());
+    }
+    if (cmp < 0) {
+      var left = insert(node.left(), value, priority);
+      if (left.priority() > node.priority()) {
+        // Rotera höger
+        return new Node(left.key(), left.value(), left.priority(), left.left(),
+            new Node(node.key(), node.value(), node.priority(), left.right(), node.right()));
+      }
+      return new Node(node.key(), node.value(), node.priority(), left, node.right());
+    }
+    var right = insert(node.right(), value, priority);
+    if (right.priority() > node.priority()) {
+      // Rotera vänster
+      return new Node(right.key(), right.value(), right.priority(),
+          new Node(node.key(), node.value(), node.priority(), node.left(), right.left()), right.right());
+    }
+    return new Node(node.key(), node.value(), node.priority(), node.left(), right);
+  }
+
+  /**
+   * Hjälprutin som slår ihop två delträd där alla nycklar i a är mindre än i b
+   *
+   * @param a
+   * @param b
+   * @return ny rot
+   */
+  private static Node merge(Node a, Node b) {
+    if (a == null) {
+      return b;
+    }
+    if (b == null) {
+      return a;
+    }
+    if (a.priority() > b.priority()) {
+      return new Node(a.key(), a.value(), a.priority(), a.left(), merge(a.right(), b));
+    }
+    return new Node(b.key(), b.value(), b.priority(), merge(a, b.left()), b.right());
+  }
+
+  /**
+   * Hjälprutin som ger en slumpmässig men bestämd prioritet för nyckeln
+   *
+   * @param key
+   * @return prioritet
+   */
+  private static int priority(String key) {
+    var h = key.hashCode() * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+
+  /**
+   * Skapar en vy från kunder sorterade på personnummer, O(n). Noden med högst
+   * prioritet hittills hålls på en stack längs trädets högra kant.
+   *
+   * @param customers Kunderna sorterade på personnummer
+   * @return vyn, eller null om kunderna inte är sorterade eller har dubbletter
+   */
+  protected static BankView ofSorted(List<CustomerView> customers) {
+    var n = customers.size();
+    var priorities = new int[n];
+    var left = new int[n];
+    var right = new int[n];
+    Arrays.fill(left, -1);
+    Arrays.fill(right, -1);
+    var stack = new int[n];
+    var top = 0;
+    for (var i = 0; i < n; i++) {
+      var key = customers.get(i).personalNumber();
+      if (i > 0 && key.compareTo(customers.get(i - 1).personalNumber()) <= 0) {
+        return null;
+      }
+      priorities[i] = priority(key);
+      var last = -1;
+      while (top > 0 && priorities[stack[top - 1]] < priorities[i]) {
+        last = stack[--top];
+      }
+      left[i] = last;
+      if (top > 0) {
+        right[stack[top - 1]] = i;
+      }
+      stack[top++] = i;
+    }
+    return new BankView(build(customers, priorities, left, right, top > 0 ? stack[0] : -1), n);
+  }
+
+  /**
+   * Hjälprutin som tar bort en kund
+   *
+   * @param node
+   * @param key
+   * @return ny rot för delträdet
+   */
+  private static Node remove(Node node, String key) {
+    if (node == null) {
+      return null;
+    }
+    var cmp = key.compareTo(node.key());
+    if (cmp < 0) {
+      return new Node(node.key(), node.value(), node.priority(), remove(node.left(), key), node.right());
+    }
+    if (cmp > 0) {
+      return new Node(node.key(), node.value(), node.priority(), node.left(), remove(node.right(), key));
+    }
+    return merge(node.left(), node.right());
+  }
+
+  private final Node root;
+  private final int size;
+
+  /**
+   * Skapa en vy med trädet root
+   *
+   * @param root
+   * @param size Antal kunder
+   */
+  private BankView(Node root, int size) {
+    this.root = root;
+    this.size = size;
+  }
+
+  /**
+   * Letar upp en kund, O(log n)
+   *
+   * @param pNo
+   * @return kunden eller null
+   */
+  public CustomerView getCustomer(String pNo) {
+    if (pNo == null) {
+      return null;
+    }
+    var node = root;
+    while (node != null) {
+      var cmp = pNo.compareTo(node.key());
+      if (cmp == 0) {
+        return node.value();
+      }
+      node = cmp < 0 ? node.left() : node.right();
+    }
+    return null;
+  }
+
+  /**
+   * Alla kunder i den ordning de lades till i banken
+   *
+   * @return kunderna
+   */
+  public List<CustomerView> getCustomers() {
+    var result = getCustomersByPersonalNumber();
+    result.sort(Comparator.comparingLong(CustomerView::order));
+    return result;
+  }
+
+  /**
+   * Alla kunder sorterade på personnummer, i trädets ordning
+   *
+   * @return kunderna
+   */
+  protected List<CustomerView> getCustomersByPersonalNumber() {
+    List<CustomerView> result = new ArrayList<>(size);
+    var stack = new ArrayList<Node>();
+    var node = root;
+    while (node != null || !stack.isEmpty()) {
+      while (node != null) {
+        stack.add(node);
+        node = node.left();
+      }
+      node = stack.remove(stack.size() - 1);
+      result.add(node.value());
+      node = node.right();
+    }
+    return result;
+  }
+
+  /**
+   * Antal kunder i vyn
+   *
+   * @return size
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Ny vy där kunden är tillagd eller utbytt
+   *
+   * @param customer
+   * @return ny vy, den här vyn är oförändrad
+   */
+  protected BankView with(CustomerView customer) {
+    var exists = getCustomer(customer.personalNumber()) != null;
+    return new BankView(insert(root, customer, priority(customer.personalNumber())), exists ? size : size + 1);
+  }
+
+  /**
+   * Ny vy med många kunder tillagda eller utbytta på en gång, t.ex. efter en
+   * massimport. De nya kunderna sorteras parallellt och slås ihop med vyns
+   * kunder i ordning, och trädet byggs om med ofSorted, O(n), i stället för att
+   * en väg kopieras per kund.
+   *
+   * @param customers
+   * @return ny vy, den här vyn är oförändrad
+   */
+  protected BankView withAll(List<CustomerView> customers) {
+    if (customers.size() < size / BULK_RATIO) {
+      var result = this;
+      for (var customer : customers) {
+        result = result.with(customer);
+      }
+      return result;
+    }
+    var added = customers.toArray(CustomerView[]::new);
+    Arrays.parallelSort(added, Comparator.comparing(CustomerView::personalNumber));
+    var old = getCustomersByPersonalNumber();
+    var merged = new ArrayList<CustomerView>(old.size() + added.length);
+    var i = 0;
+    for (var customer : added) {
+      var key = customer.personalNumber();
+      while (i < old.size() && old.get(i).personalNumber().compareTo(key) < 0) {
+        merged.add(old.get(i++));
+      }
+      if (i < old.size() && old.get(i).personalNumber().equals(key)) {
+        i++; // Utbytt
+      }
+      if (!merged.isEmpty() && merged.get(merged.size() - 1).personalNumber().equals(key)) {
+        merged.set(merged.size() - 1, customer); // Samma kund två gånger, den sista gäller
+      } else {
+        merged.add(customer);
+      }
+    }
+    merged.addAll(old.subList(i, old.size()));
+    return ofSorted(merged);
+  }
+
+  /**
+   * Ny vy där kunden är borttagen
+   *
+   * @param pNo
+   * @return ny vy, den här vyn är oförändrad
+   */
+  protected BankView without(String pNo) {
+    if (getCustomer(pNo) == null) {
+      return this;
+    }
+    return new BankView(remove(root, pNo), size - 1);
+  }
+}
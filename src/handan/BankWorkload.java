@@ -0,0 +1,377 @@
+/**
+ * Klass som definierar en syntetisk belastning och skalningsrapport för banken.
+ * @author Hans Danielsson, handan-2
+ */
+package handan;
+
+/**
+ * Importsatser
+ */
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+/**
+ * Bygger banker med 10 000, 1 000 000 ... kunder och kör en blandning av
+ * operationer mot dem. Personnumren har rätt format (ÅÅÅÅMMDD-NNNK med
+ * kontrollsiffra), kunderna har spar- och kreditkonton och aktiviteten är
+ * Zipf-fördelad, så att ett fåtal kunder står för det mesta. För varje steg
+ * skrivs byggtid, heap, ögonblicksbildens storlek, tid för kundlistan i
+ * fönstret, genomströmning och fördröjning i percentiler.
+ *
+ * Körs med: java -Xmx8g handan.BankWorkload [kunder,kunder,...] [operationer]
+ * [mix], t.ex. 10000,1000000 500000 deposit=40,withdraw=30,customer=20,
+ * transactions=1,search=5,open=4. Zipf-exponenten sätts med
+ * -Dhandan.workload.zipf=1.1. Nya konton öppnas hos slumpvis valda kunder, inte
+ * Zipf-fördelat, annars får den mest aktiva kunden tusentals konton.
+ */
+public class BankWorkload {
+
+  /**
+   * Operationerna som kan blandas
+   */
+  private enum Operation {
+    DEPOSIT, WITHDRAW, CUSTOMER, TRANSACTIONS, SEARCH, OPEN
+  }
+
+  /**
+   * Zipf-fördelning med rejection-inversion (Hörmann och Derflinger). Tar
+   * konstant minne oavsett antal kunder.
+   */
+  private static final class ZipfSampler {
+    private final int count;
+    private final double exponent;
+    private final double hIntegralX1;
+    private final double hIntegralCount;
+    private final double s;
+
+    /**
+     * @param count    Antal element, rang 1..count
+     * @param exponent Större exponent ger skevare fördelning
+     */
+    private ZipfSampler(int count, double exponent) {
+      this.count = count;
+      this.exponent = exponent;
+      hIntegralX1 = hIntegral(1.5) - 1;
+      hIntegralCount = hIntegral(count + 0.5);
+      s = 2 - hIntegralInverse(hIntegral(2.5) - h(2));
+    }
+
+    private static double helper1(double x) {
+      return Math.abs(x) > 1e-8 ? Math.log1p(x) / x : 1 - x * (0.5 - x * (1.0 / 3 - 0.25 * x));
+    }
+
+    private static double helper2(double x) {
+      return Math.abs(x) > 1e-8 ? Math.expm1(x) / x : 1 + x * 0.5 * (1 + x / 3 * (1 + 0.25 * x));
+    }
+
+    private double h(double x) {
+      return Math.exp(-exponent * Math.log(x));
+    }
+
+    private double hIntegral(double x) {
+      var logX = Math.log(x);
+      return helper2((1 - exponent) * logX) * logX;
+    }
+
+    private double hIntegralInverse(double x) {
+      var t = Math.max(-1, x * (1 - exponent));
+      return Math.exp(helper1(t) * x);
+    }
+
+    /**
+     * Drar ett index, 0 är vanligast
+     *
+     * @param random
+     * @return 0..count-1
+     */
+    private int next(SplittableRandom random) {
+      while (true) {
+        var u = hIntegralCount + random.nextDouble() * (hIntegralX1 - hIntegralCount);
+        var x = hIntegralInverse(u);
+        var k = (int) Math.min(count, Math.max(1, (long) (x + 0.5)));
+        if (k - x <= s || u >= hIntegral(k + 0.5) - h(k)) {
+          return k - 1;
+        }
+      }
+    }
+  }
+
+  private static final String DEFAULT_SCALES = "10000,100000,1000000";
+  private static final int DEFAULT_OPERATIONS = 500_000;
+  private static final String DEFAULT_MIX = "deposit=40,withdraw=30,customer=20,transactions=1,search=5,open=4";
+  private static final double ZIPF_EXPONENT = Double.parseDouble(System.getProperty("handan.workload.zipf", "1.1"));
+  private static final int CREDIT_PERCENT = 30; // Andel kreditkonton
+  private static final LocalDate FIRST_BIRTH = LocalDate.of(1940, 1, 1);
+  private static final int BIRTH_DAYS = 65 * 365; // Födda 1940 - 2005
+  private static final int SERIALS = 1000; // Födelsenummer per dag
+  private static final String[] FIRST_NAMES = { "Anna", "Eva", "Maria", "Karin", "Sara", "Lena", "Emma", "Kerstin",
+      "Lars", "Karl", "Erik", "Anders", "Per", "Johan", "Mikael", "Hans", "Åsa", "Örjan" };
+  private static final String[] LAST_NAMES = { "Andersson", "Johansson", "Karlsson", "Nilsson", "Eriksson",
+      "Larsson", "Olsson", "Persson", "Svensson", "Gustafsson", "Pettersson", "Danielsson", "Lindqvist", "Öberg",
+      "Åberg", "Berg", "Lindberg", "Holm" };
+
+  /**
+   * Hjälprutin som ger heapen som används efter skräpsamling
+   *
+   * @return bytes
+   */
+  private static long usedHeap() {
+    var runtime = Runtime.getRuntime();
+    for (var i = 0; i < 3; i++) {
+      System.gc();
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+
+  /**
+   * Startrutin
+   *
+   * @param args [kunder,kunder,...] [operationer] [mix]
+   */
+  public static void main(String[] args) {
+    var scales = Arrays.stream((args.length > 0 ? args[0] : DEFAULT_SCALES).split(",")).map(String::strip)
+        .mapToInt(Integer::parseInt).toArray();
+    var operations = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_OPERATIONS;
+    var mix = parseMix(args.length > 2 ? args[2] : DEFAULT_MIX);
+
+    System.out.printf("Operationer per steg: %d, mix: %s, Zipf-exponent %.1f, max heap %d MB%n", operations, mix,
+        ZIPF_EXPONENT, Runtime.getRuntime().maxMemory() >> 20);
+    for (var customers : scales) {
+      try {
+        new BankWorkload(customers, operations, mix).run().forEach(System.out::println);
+      } catch (OutOfMemoryError e) {
+        System.out.printf("%n== %,d kunder: slut på minne (%s), större steg hoppas över%n", customers,
+            e.getMessage());
+        break;
+      }
+    }
+  }
+
+  /**
+   * Hjälprutin som tolkar "deposit=40,withdraw=25,..."
+   *
+   * @param text
+   * @return vikt per operation
+   */
+  private static Map<Operation, Integer> parseMix(String text) {
+    Map<Operation, Integer> mix = new EnumMap<>(Operation.class);
+    for (var part : text.split(",")) {
+      var pair = part.split("=");
+      mix.put(Operation.valueOf(pair[0].strip().toUpperCase()), Integer.parseInt(pair[1].strip()));
+    }
+    return mix;
+  }
+
+  /**
+   * Hjälprutin som skapar det i:te personnumret. Numren är unika för i upp till
+   * BIRTH_DAYS * SERIALS och sprids över datum med en permutation.
+   *
+   * @param i
+   * @return "ÅÅÅÅMMDD-NNNK"
+   */
+  protected static String personalNumber(long i) {
+    final long total = (long) BIRTH_DAYS * SERIALS;
+    var j = (i * 7_919_993L) % total; // Primtal som inte delar total, ger en permutation
+    var birth = FIRST_BIRTH.plusDays(j / SERIALS);
+    var serial = (int) (j % SERIALS);
+    var digits = String.format("%02d%02d%02d%03d", birth.getYear() % 100, birth.getMonthValue(),
+        birth.getDayOfMonth(), serial);
+    return String.format("%04d%02d%02d-%03d%d", birth.getYear(), birth.getMonthValue(), birth.getDayOfMonth(),
+        serial, BankImport.checkDigit(digits));
+  }
+
+  private final int customerCount;
+  private final int operationCount;
+  private final Map<Operation, Integer> mix;
+  private final SplittableRandom random = new SplittableRandom(611114);
+  private BankLogic bank = new BankLogic();
+  private String[] pNos;
+  private int[] accounts; // Ett konto per kund som operationerna använder
+
+  /**
+   * Skapa ett steg
+   *
+   * @param customerCount
+   * @param operationCount
+   * @param mix
+   */
+  private BankWorkload(int customerCount, int operationCount, Map<Operation, Integer> mix) {
+    this.customerCount = customerCount;
+    this.operationCount = operationCount;
+    this.mix = mix;
+  }
+
+  /**
+   * Hjälprutin som bygger banken
+   */
+  private void build() {
+    pNos = new String[customerCount];
+    accounts = new int[customerCount];
+    for (var i = 0; i < customerCount; i++) {
+      var pNo = personalNumber(i);
+      pNos[i] = pNo;
+      bank.createCustomer(FIRST_NAMES[random.nextInt(FIRST_NAMES.length)],
+          LAST_NAMES[random.nextInt(LAST_NAMES.length)], pNo);
+      var accountCount = 1 + random.nextInt(3);
+      for (var a = 0; a < accountCount; a++) {
+        var credit = random.nextInt(100) < CREDIT_PERCENT;
+        var number = credit ? bank.createCreditAccount(pNo) : bank.createSavingsAccount(pNo);
+        bank.deposit(pNo, number, 100 + random.nextInt(10_000));
+        if (a == 0) {
+          accounts[i] = number;
+        }
+      }
+    }
+  }
+
+  /**
+   * Hjälprutin som formaterar percentiler för en operation
+   *
+   * @param name
+   * @param samples Fördröjningar i ns
+   * @param count   Antal mätningar
+   * @return rad i rapporten
+   */
+  private static String percentiles(String name, long[] samples, int count) {
+    if (count == 0) {
+      return String.format("  %-13s -", name);
+    }
+    Arrays.sort(samples, 0, count);
+    return String.format("  %-13s %9d st  p50 %8.1f  p90 %8.1f  p99 %8.1f  p99.9 %9.1f  max %10.1f µs", name, count,
+        samples[(int) (count * 0.50)] / 1e3, samples[(int) (count * 0.90)] / 1e3, samples[(int) (count * 0.99)] / 1e3,
+        samples[(int) (count * 0.999)] / 1e3, samples[count - 1] / 1e3);
+  }
+
+  /**
+   * Hjälprutin som kör en operation mot en Zipf-vald kund
+   *
+   * @param op
+   * @param customer
+   */
+  private void perform(Operation op, int customer) {
+    var pNo = pNos[customer];
+    switch (op) {
+    case DEPOSIT -> bank.deposit(pNo, accounts[customer], 1 + random.nextInt(1000));
+    case WITHDRAW -> bank.withdraw(pNo, accounts[customer], 1 + random.nextInt(500));
+    case CUSTOMER -> bank.getCustomer(pNo);
+    case TRANSACTIONS -> bank.getTransactions(pNo, accounts[customer]);
+    case SEARCH -> bank.searchCustomers(LAST_NAMES[customer % LAST_NAMES.length].substring(0, 3), 0, 20);
+    case OPEN -> bank.createSavingsAccount(pNos[random.nextInt(pNos.length)]);
+    }
+  }
+
+  /**
+   * Kör steget och skapar rapporten
+   *
+   * @return rader i rapporten
+   */
+  private List<String> run() {
+    List<String> report = new ArrayList<>();
+    report.add(String.format("%n== %,d kunder", customerCount));
+
+    var heapBefore = usedHeap();
+    var start = System.nanoTime();
+    build();
+    var buildSeconds = (System.nanoTime() - start) / 1e9;
+    var heap = usedHeap() - heapBefore;
+    var accountCount = bank.getStatistics().getAccountCount();
+    report.add(String.format("Bygga: %.1f s (%,.0f kunder/s), %,d konton", buildSeconds, customerCount / buildSeconds,
+        accountCount));
+    report.add(String.format("Heap: %,d MB, %,d bytes per kund, %,d bytes per konto (inklusive kunden)", heap >> 20,
+        heap / customerCount, heap / accountCount));
+
+    // Blandningen av operationer
+    var ops = mix.keySet().toArray(Operation[]::new);
+    var weights = ops.length == 0 ? new int[0] : mix.values().stream().mapToInt(Integer::intValue).toArray();
+    var totalWeight = Arrays.stream(weights).sum();
+    var zipf = new ZipfSampler(customerCount, ZIPF_EXPONENT);
+    Map<Operation, long[]> samples = new EnumMap<>(Operation.class);
+    Map<Operation, Integer> counts = new EnumMap<>(Operation.class);
+    for (var op : ops) {
+      samples.put(op, new long[operationCount]);
+      counts.put(op, 0);
+    }
+    start = System.nanoTime();
+    for (var i = 0; i < operationCount && totalWeight > 0; i++) {
+      var pick = random.nextInt(totalWeight);
+      var index = 0;
+      while (pick >= weights[index]) {
+        pick -= weights[index++];
+      }
+      var op = ops[index];
+      var customer = zipf.next(random);
+      var t0 = System.nanoTime();
+      perform(op, customer);
+      var n = counts.get(op);
+      samples.get(op)[n] = System.nanoTime() - t0;
+      counts.put(op, n + 1);
+    }
+    var opSeconds = (System.nanoTime() - start) / 1e9;
+    report.add(String.format("Operationer: %,d på %.2f s, %,.0f op/s", operationCount, opSeconds,
+        operationCount / opSeconds));
+    for (var op : ops) {
+      report.add(percentiles(op.name().toLowerCase(), samples.get(op), counts.get(op)));
+    }
+    samples.clear();
+
+    // Listan med alla kunder i fönstret
+    start = System.nanoTime();
+    var listSize = bank.getAllCustomers().size();
+    report.add(String.format("Kundlistan (getAllCustomers): %,d rader på %.0f ms", listSize,
+        (System.nanoTime() - start) / 1e6));
+
+    snapshot(report);
+    return report;
+  }
+
+  /**
+   * Hjälprutin som skriver och läser en ögonblicksbild som BankFileIO gör och
+   * mäter storlek och tider.
+   *
+   * @param report
+   */
+  private void snapshot(List<String> report) {
+    try {
+      var file = Files.createTempFile("workload-", ".dat");
+      try {
+        var start = System.nanoTime();
+        try (var oos = new ObjectOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+          oos.writeInt(bank.getAccountNumbers().get());
+          oos.writeObject(bank);
+        }
+        var writeSeconds = (System.nanoTime() - start) / 1e9;
+
+        // Släpp banken innan den läses in igen så att båda inte ryms samtidigt
+        bank = null;
+        pNos = null;
+        accounts = null;
+        start = System.nanoTime();
+        try (var ois = new ObjectInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+          var lastNumber = ois.readInt();
+          bank = (BankLogic) ois.readObject();
+          bank.getAccountNumbers().set(lastNumber);
+        }
+        bank.rebuildIndexes();
+        var readSeconds = (System.nanoTime() - start) / 1e9;
+        report.add(String.format("Ögonblicksbild: %,d MB, skriva %.1f s, läsa %.1f s", Files.size(file) >> 20,
+            writeSeconds, readSeconds));
+      } finally {
+        Files.deleteIfExists(file);
+      }
+    } catch (IOException | ClassNotFoundException e) {
+      e.printStackTrace();
+      report.add("Ögonblicksbild: misslyckades, " + e);
+    }
+  }
+}
@@ -8,6 +8,9 @@ package handan;
 /**
  * Importsatser
  */
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.math.BigDecimal;
 import java.math.RoundingMode;
 
@@ -19,28 +22,23 @@ public class CreditAccount extends Account {
   private static final long serialVersionUID = 611114L;
 
   // Variabler för enskilt kreditkonto
-  private final BigDecimal creditLimit; // Max kredit, t.ex. -5000 kr
-  private final BigDecimal debtInterest; // Skuldränta, t.ex. 5%
-
-  protected CreditAccount() {
-    this(0, 1.1, 5000, 5.0, false);
-  }
+  private BigDecimal creditLimit; // Max kredit, t.ex. -5000 kr, delad mellan konton
+  private BigDecimal debtInterest; // Skuldränta, t.ex. 5%, delad mellan konton
 
   /**
    * Skapa ett Kreditkonto
    *
-   * @param initialBalance  Startsaldo
-   * @param theInterestRate Räntan 1.1% på insatta pengar > 0
-   * @param theCreditLimit  Kreditgräns på 5000, kan ta ut pengar till belopp
-   *                        -5000 kr
-   * @param theDeptInterest Skuldränta 5% om saldo < 0
-   * @param addNumber       Öka kontonummer med 1
+   * @param accountNumber  Från bankens AccountNumbers
+   * @param initialBalance Startsaldo
+   * @param interestRate   Räntan på insatta pengar
+   * @param creditLimit    Kreditgräns
+   * @param debtInterest   Skuldränta om saldo < 0
    */
-  protected CreditAccount(int initialBalance, double interestRate, int creditLimit, double debtInterest,
-      boolean addNumber) {
-    super("Kreditkonto", initialBalance, interestRate, addNumber);
-    this.creditLimit = BigDecimal.valueOf(creditLimit);
-    this.debtInterest = BigDecimal.valueOf(debtInterest);
+  protected CreditAccount(int accountNumber, int initialBalance, double interestRate, int creditLimit,
+      double debtInterest) {
+    super(accountNumber, initialBalance, interestRate);
+    this.creditLimit = sharedValue(BigDecimal.valueOf(creditLimit));
+    this.debtInterest = sharedValue(BigDecimal.valueOf(debtInterest));
   }
 
   /**
@@ -50,16 +48,72 @@ public class CreditAccount extends Account {
    */
   @Override
   protected String calculateInterest() {
-    var balance = getAccountBalance();
-    var rate = balance.signum() >= 0 ? getInterestRate() : debtInterest;
-    var interest = balance.multiply(rate).divide(BigDecimal.valueOf(100), 2, RoundingMode.HALF_UP);
+    var interest = getAccountBalance().multiply(getCurrentRate()).divide(BigDecimal.valueOf(100), 2,
+        RoundingMode.HALF_UP);
     return formatCurrency(interest);
   }
 
+  /**
+   * Hämtar kreditgränsen
+   *
+   * @return creditLimit, t.ex. 5000
+   */
+  protected BigDecimal getCreditLimit() {
+    return records == null ? creditLimit : records.getCreditLimit(getSlot());
+  }
+
+  /**
+   * Räntan på insatta pengar, eller skuldräntan om saldot är negativt
+   *
+   * @return procent
+   */
+  @Override
+  protected BigDecimal getCurrentRate() {
+    return getAccountBalance().signum() >= 0 ? getInterestRate() : getDebtRate();
+  }
+
+  /**
+   * Hämtar skuldräntan
+   *
+   * @return procent
+   */
+  @Override
+  protected BigDecimal getDebtRate() {
+    return records == null ? debtInterest : records.getRate(getSlot(), MappedAccountStore.SECOND_RATE);
+  }
+
   @Override
-  public String toString() {
-    var rate = getAccountBalance().signum() >= 0 ? getInterestRate() : debtInterest;
-    return makeAccountInfo(rate);
+  protected AccountType getType() {
+    return AccountType.CREDIT;
+  }
+
+  /**
+   * Flyttar också gräns och skuldränta till kontots post
+   *
+   * @param write false om posten redan har värdena
+   */
+  @Override
+  protected void moveToRecord(boolean write) {
+    super.moveToRecord(write);
+    if (write) {
+      records.setCreditLimit(getSlot(), creditLimit);
+      records.setRate(getSlot(), MappedAccountStore.SECOND_RATE, debtInterest);
+    }
+    creditLimit = null;
+    debtInterest = null;
+  }
+
+  /**
+   * Läser in kontot och byter gräns och skuldränta mot de delade instanserna
+   *
+   * @param in
+   * @throws IOException
+   * @throws ClassNotFoundException
+   */
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    creditLimit = sharedValue(creditLimit);
+    debtInterest = sharedValue(debtInterest);
   }
 
   /**
@@ -79,6 +133,19 @@ public class CreditAccount extends Account {
     var newBalance = getAccountBalance().subtract(withdrawal);
 
     // Kontrollerar att nya saldot inte underskrider kreditgränsen
-    return newBalance.compareTo(creditLimit.negate()) >= 0 && balanceSubtract(withdrawal);
+    return newBalance.compareTo(getCreditLimit().negate()) >= 0 && balanceSubtract(withdrawal);
+  }
+
+  /**
+   * Sparar kontot med värdena från posten om lagret används
+   *
+   * @param out
+   * @throws IOException
+   */
+  private void writeObject(ObjectOutputStream out) throws IOException {
+    var fields = out.putFields();
+    fields.put("creditLimit", getCreditLimit());
+    fields.put("debtInterest", getDebtRate());
+    out.writeFields();
   }
 }
\ No newline at end of file
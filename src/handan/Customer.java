@@ -7,6 +7,9 @@ package handan;
 /**
  * Importsatser
  */
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
@@ -16,12 +19,14 @@ public class Customer implements Serializable {
    * Versionshanterings variabel till deserialisering
    */
   private static final long serialVersionUID = 611114L;
+  private static final int INITIAL_ACCOUNTS = 2; // De flesta kunder har ett eller två konton
 
   // Privata variabler till kund.
-  private String firstName;
+  private String firstName; // Internerade, samma namn delas mellan kunder
   private String lastName;
   private String personalNumber;
-  private List<Account> accounts; // Lista med konton
+  private List<Account> accounts; // Lista med konton, null när de ligger på disk
+  private transient CustomerCache cache; // Var kontona finns när de ligger på disk
 
   /**
    * Default konstruktor för en kund.
@@ -38,10 +43,10 @@ public class Customer implements Serializable {
    * @param thePersonalNumber Personnummer
    */
   protected Customer(String firstName, String lastName, String personalNumber) {
-    this.firstName = firstName;
-    this.lastName = lastName;
+    this.firstName = intern(firstName);
+    this.lastName = intern(lastName);
     this.personalNumber = personalNumber;
-    this.accounts = new ArrayList<>();
+    this.accounts = new ArrayList<>(INITIAL_ACCOUNTS);
   }
 
   /**
@@ -55,11 +60,11 @@ public class Customer implements Serializable {
     var updated = false;
     // Byter endast om det är någon information att byta till
     if (newFirstName != null && !newFirstName.isBlank()) {
-      firstName = newFirstName;
+      firstName = intern(newFirstName);
       updated = true;
     }
     if (newLastName != null && !newLastName.isBlank()) {
-      lastName = newLastName;
+      lastName = intern(newLastName);
       updated = true;
     }
     return updated;
@@ -70,16 +75,38 @@ public class Customer implements Serializable {
    * bortagna
    */
   protected void deleteAccounts() {
-    accounts.clear();
+    var list = getAccounts();
+    list.forEach(Account::release);
+    list.clear();
   }
 
   /**
-   * Rutin som ger ut den privata listan men konton, accounts
+   * Rutin som ger ut den privata listan men konton, accounts. Ligger kontona på
+   * disk läses de in först.
    *
    * @return pekare till listan
    */
   protected List<Account> getAccounts() {
-    return accounts;
+    var result = accounts;
+    return result != null || cache == null ? result : cache.pageIn(this);
+  }
+
+  /**
+   * Hämtar förnamn
+   *
+   * @return firstName
+   */
+  protected String getFirstName() {
+    return firstName;
+  }
+
+  /**
+   * Hämtar efternamn
+   *
+   * @return lastName
+   */
+  protected String getLastName() {
+    return lastName;
   }
 
   /**
@@ -91,6 +118,83 @@ public class Customer implements Serializable {
     return personalNumber;
   }
 
+  /**
+   * Om kontona ligger på disk
+   *
+   * @return true om kontona inte finns i minnet
+   */
+  protected boolean isPagedOut() {
+    return accounts == null && cache != null;
+  }
+
+  /**
+   * Hjälprutin som internerar ett namn. Många kunder heter likadant och delar
+   * då samma String.
+   *
+   * @param name
+   * @return den gemensamma instansen
+   */
+  private static String intern(String name) {
+    return name == null ? null : name.intern();
+  }
+
+  /**
+   * Kontona har lästs in från disk
+   *
+   * @param loaded
+   */
+  protected void pageIn(List<Account> loaded) {
+    accounts = loaded;
+  }
+
+  /**
+   * Kontona har skrivits till disk och släpps ur minnet
+   *
+   * @param owner Cachet som läser in dem igen
+   */
+  protected void pageOut(CustomerCache owner) {
+    cache = owner;
+    accounts.forEach(Account::release);
+    accounts = null;
+  }
+
+  /**
+   * Läser in kunden och internerar namnen. Låg kontona på disk när banken
+   * sparades följer de efter kunden, se writeObject.
+   *
+   * @param in
+   * @throws IOException
+   * @throws ClassNotFoundException
+   */
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    firstName = intern(firstName);
+    lastName = intern(lastName);
+    if (accounts == null) {
+      accounts = CustomerCache.toAccounts(in.readNBytes(in.readInt()));
+    }
+  }
+
+  /**
+   * Sparar kunden. Ligger kontona på disk skrivs de sparade byten direkt efter
+   * kunden, utan att kontona läses in i minnet.
+   *
+   * @param out
+   * @throws IOException
+   */
+  private void writeObject(ObjectOutputStream out) throws IOException {
+    var stored = accounts;
+    out.defaultWriteObject();
+    if (stored == null) {
+      var data = cache == null ? null : cache.readStored(personalNumber);
+      if (data == null) {
+        data = CustomerCache.toBytes(List.of());
+      }
+      out.writeInt(data.length);
+      out.write(data);
+    }
+  }
+
   @Override
   public String toString() {
     return String.format("%s %s %s", personalNumber, firstName, lastName);
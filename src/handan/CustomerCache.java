@@ -0,0 +1,273 @@
+/**
+ * Klass som definierar ett LRU-cache med kunder i minnet och resten på disk.
+ * @author Hans Danielsson, handan-2
+ */
+package handan;
+
+/**
+ * Importsatser
+ */
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.UncheckedIOException;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+import handan.BankView.AccountView;
+
+/**
+ * Lagring i nivåer. De senast använda kunderna har sina konton i minnet, övriga
+ * kunder har bara namn och personnummer kvar medan konton och transaktioner
+ * ligger i ett CustomerStore på disk. När en kund hämtas med findCustomer och
+ * kontona ligger på disk läses de in igen och den kund som använts minst
+ * nyligen skrivs ut i stället. En kund skrivs bara om den har ändrats sedan den
+ * lästes in.
+ *
+ * Läsvyn får för en kund på disk en lista som läser kontona från lagret när den
+ * används. Listan håller kundens post i lagret, som aldrig skrivs över, så en
+ * äldre läsvy visar kontona som de var när den skapades. Läsningen flyttar inte
+ * in kunden i minnet.
+ */
+public class CustomerCache implements Closeable {
+
+  /**
+   * Kontona för en kund på disk, som de ser ut i läsvyn. Håller posten i
+   * lagret från när kunden skrevs ut, så att listan visar samma konton även om
+   * kunden senare sparas igen eller tas bort. Kontona läses från posten vid
+   * varje genomgång och hålls inte kvar i minnet.
+   */
+  private final class PagedAccounts extends AbstractList<AccountView> {
+    private final CustomerStore.Entry entry;
+    private final int size;
+
+    private PagedAccounts(CustomerStore.Entry entry, int size) {
+      this.entry = entry;
+      this.size = size;
+    }
+
+    @Override
+    public AccountView get(int index) {
+      return load().get(index);
+    }
+
+    @Override
+    public Iterator<AccountView> iterator() {
+      return load().iterator();
+    }
+
+    /**
+     * Hjälprutin som läser kontona från posten
+     *
+     * @return kontona
+     */
+    private List<AccountView> load() {
+      coldReads.incrementAndGet();
+      var accounts = toAccounts(store.read(entry));
+      return accounts.stream().map(AccountView::of).toList();
+    }
+
+    @Override
+    public int size() {
+      return size;
+    }
+  }
+
+  /**
+   * Gör om serialiserade konton till en lista
+   *
+   * @param data
+   * @return kontona
+   */
+  @SuppressWarnings("unchecked")
+  protected static List<Account> toAccounts(byte[] data) {
+    if (data.length == 0) {
+      return new ArrayList<>();
+    }
+    try (var in = new ObjectInputStream(new ByteArrayInputStream(data))) {
+      return (List<Account>) in.readObject();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    } catch (ClassNotFoundException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Serialiserar en kunds konton
+   *
+   * @param accounts
+   * @return bytes
+   */
+  protected static byte[] toBytes(List<Account> accounts) {
+    var buffer = new ByteArrayOutputStream();
+    try (var out = new ObjectOutputStream(buffer)) {
+      out.writeObject(new ArrayList<>(accounts));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return buffer.toByteArray();
+  }
+
+  private final CustomerStore store;
+  private final int capacity;
+  private final MappedAccountStore records; // Bankens lager för kontona, eller null
+  private final BiConsumer<Customer, List<AccountView>> onPagedOut;
+  private final LinkedHashMap<String, Customer> hot = new LinkedHashMap<>(16, 0.75f, true); // Äldst först
+  private final Set<Customer> dirty = new HashSet<>(); // Ändrade sedan de lästes in
+  private long hits;
+  private long misses;
+  private long evictions;
+  private long writes;
+  private final AtomicLong coldReads = new AtomicLong(); // Läsvyns läsningar från disk
+
+  /**
+   * Skapa ett cache
+   *
+   * @param store      Lagret på disk
+   * @param capacity   Antal kunder som har sina konton i minnet
+   * @param records    Bankens lager som inlästa konton flyttas till, eller null
+   * @param onPagedOut Anropas när en kund har skrivits ut, med kontona för
+   *                   läsvyn
+   */
+  protected CustomerCache(CustomerStore store, int capacity, MappedAccountStore records,
+      BiConsumer<Customer, List<AccountView>> onPagedOut) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("Antal kunder i minnet måste vara större än 0");
+    }
+    this.store = store;
+    this.capacity = capacity;
+    this.records = records;
+    this.onPagedOut = onPagedOut;
+  }
+
+  /**
+   * Anropas när en kund används. Ligger kontona på disk läses de in.
+   *
+   * @param customer
+   */
+  protected synchronized void access(Customer customer) {
+    if (hot.get(customer.getPersonalNumber()) != null) {
+      hits++;
+    } else if (customer.isPagedOut()) {
+      pageIn(customer);
+    } else {
+      hot.put(customer.getPersonalNumber(), customer);
+      evict();
+    }
+  }
+
+  /**
+   * Anropas efter att en kund har ändrats, kunden skrivs till disk nästa gång
+   * den skrivs ut.
+   *
+   * @param customer
+   */
+  protected synchronized void changed(Customer customer) {
+    dirty.add(customer);
+    if (hot.get(customer.getPersonalNumber()) == null) {
+      hot.put(customer.getPersonalNumber(), customer);
+      evict();
+    }
+  }
+
+  /**
+   * Stänger och tar bort lagret på disk. Kunder som ligger på disk går inte att
+   * läsa efter detta.
+   */
+  @Override
+  public synchronized void close() {
+    store.close();
+  }
+
+  /**
+   * Hjälprutin som skriver ut de kunder som använts minst nyligen tills högst
+   * capacity kunder har sina konton i minnet.
+   */
+  private void evict() {
+    var iterator = hot.values().iterator();
+    while (hot.size() > capacity) {
+      var eldest = iterator.next();
+      iterator.remove();
+      var pNo = eldest.getPersonalNumber();
+      var accounts = eldest.getAccounts();
+      if (dirty.remove(eldest) || !store.contains(pNo)) {
+        store.put(pNo, toBytes(accounts));
+        writes++;
+      }
+      eldest.pageOut(this);
+      evictions++;
+      onPagedOut.accept(eldest, new PagedAccounts(store.entry(pNo), accounts.size()));
+    }
+  }
+
+  /**
+   * Nyckeltal för cachet
+   *
+   * @return en rad per nyckeltal
+   */
+  public synchronized List<String> metrics() {
+    var lookups = hits + misses;
+    return List.of(
+        String.format("Cache: %d av högst %d kunder i minnet, %d på disk (%,d bytes)", hot.size(), capacity,
+            store.size(), store.getFileSize()),
+        String.format("Träffar: %d, missar: %d (%.1f%% träffar)", hits, misses,
+            lookups == 0 ? 0.0 : 100.0 * hits / lookups),
+        String.format("Utskrivna: %d, varav %d skrivna till disk, läsvyns läsningar från disk: %d", evictions,
+            writes, coldReads.get()));
+  }
+
+  /**
+   * Läser in kontona för en kund som ligger på disk och gör kunden till den
+   * senast använda.
+   *
+   * @param customer
+   * @return kontona
+   */
+  protected synchronized List<Account> pageIn(Customer customer) {
+    if (!customer.isPagedOut()) {
+      return customer.getAccounts(); // Redan inläst av en annan tråd
+    }
+    var data = store.read(customer.getPersonalNumber());
+    var accounts = data == null ? new ArrayList<Account>() : toAccounts(data);
+    if (records != null) {
+      accounts.forEach(account -> account.attach(records, false));
+    }
+    customer.pageIn(accounts);
+    hot.put(customer.getPersonalNumber(), customer);
+    misses++;
+    evict();
+    return accounts;
+  }
+
+  /**
+   * Läser de sparade kontona för en kund på disk, t.ex. när banken sparas
+   *
+   * @param pNo
+   * @return serialiserade konton, eller null
+   */
+  protected byte[] readStored(String pNo) {
+    return store.read(pNo);
+  }
+
+  /**
+   * Tar bort en kund helt
+   *
+   * @param customer
+   */
+  protected synchronized void remove(Customer customer) {
+    hot.remove(customer.getPersonalNumber());
+    dirty.remove(customer);
+    store.remove(customer.getPersonalNumber());
+  }
+}
@@ -0,0 +1,289 @@
+/**
+ * Klass som definierar ett sökindex på kundernas namn.
+ * @author Hans Danielsson, handan-2
+ */
+package handan;
+
+/**
+ * Importsatser
+ */
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+/**
+ * Sorterat index där varje kund finns med både efternamn och förnamn som nyckel.
+ * En sökning på "Dan" går direkt till intervallet "dan" - "dan￿" i stället
+ * för att gå igenom alla kunder. Nyckeln innehåller även personnumret så att
+ * kunder med samma namn får olika nycklar.
+ *
+ * När banken läses in byggs träden direkt från nycklarna i ordning, antingen
+ * ordningen från indexfilen eller efter en parallell sortering.
+ */
+public class CustomerNameIndex {
+
+  /**
+   * Nyckel i indexet. Namnet är internerat så att alla kunder med samma namn
+   * delar samma String, i stället för en ny "namn\0pNr" per kund.
+   *
+   * @param name Namnet med små bokstäver
+   * @param pNo  Personnummer, "" som gräns vid sökning
+   */
+  private record Key(String name, String pNo) {
+  }
+
+  private static final Locale SWEDISH_LOCALE = Locale.forLanguageTag("sv-SE");
+  private static final Comparator<Key> KEY_ORDER = Comparator.comparing(Key::name)
+      .thenComparing(Key::pNo, Comparator.nullsFirst(Comparator.naturalOrder()));
+  private static final Comparator<Map.Entry<Key, Customer>> ENTRY_ORDER = Map.Entry.comparingByKey(KEY_ORDER);
+  private static final int BULK_RATIO = 16; // Färre nya kunder än size / 16 läggs in en i taget
+
+  /**
+   * Bygger ett index över kunderna. Nycklarna tas fram och sorteras parallellt.
+   *
+   * @param customers
+   * @return indexet
+   */
+  protected static CustomerNameIndex build(List<Customer> customers) {
+    var lastNames = entries(customers.parallelStream(), Customer::getLastName);
+    var firstNames = entries(customers.parallelStream(), Customer::getFirstName);
+    Arrays.parallelSort(lastNames, ENTRY_ORDER);
+    Arrays.parallelSort(firstNames, ENTRY_ORDER);
+    if (!isSorted(lastNames) || !isSorted(firstNames)) {
+      // Samma personnummer två gånger, läggs in en i taget som tidigare
+      var index = new CustomerNameIndex();
+      customers.forEach(index::add);
+      return index;
+    }
+    return of(lastNames, firstNames);
+  }
+
+  /**
+   * Hjälprutin som tar fram nycklarna för ett av namnen
+   *
+   * @param customers
+   * @param name      Förnamn eller efternamn
+   * @return nycklar och kunder i samma ordning som kunderna
+   */
+  @SuppressWarnings("unchecked")
+  private static Map.Entry<Key, Customer>[] entries(Stream<Customer> customers, Function<Customer, String> name) {
+    return customers.map(c -> Map.entry(new Key(normalize(name.apply(c)).intern(), c.getPersonalNumber()), c))
+        .toArray(Map.Entry[]::new);
+  }
+
+  /**
+   * Hjälprutin som kontrollerar att nycklarna är i ordning utan dubbletter
+   *
+   * @param entries
+   * @return true om de är sorterade
+   */
+  private static boolean isSorted(Map.Entry<Key, Customer>[] entries) {
+    for (var i = 1; i < entries.length; i++) {
+      if (ENTRY_ORDER.compare(entries[i - 1], entries[i]) >= 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Hjälprutin som slår ihop ett träd med nya nycklar och bygger ett nytt träd
+   * från ordningen. En ny nyckel som redan finns ersätter den gamla, som med put.
+   *
+   * @param map
+   * @param added Nya nycklar, sorteras här
+   * @return det nya trädet
+   */
+  private static NavigableMap<Key, Customer> merge(NavigableMap<Key, Customer> map,
+      Map.Entry<Key, Customer>[] added) {
+    Arrays.parallelSort(added, ENTRY_ORDER);
+    var merged = new ArrayList<Map.Entry<Key, Customer>>(map.size() + added.length);
+    var old = map.entrySet().iterator();
+    var next = old.hasNext() ? old.next() : null;
+    for (var entry : added) {
+      while (next != null && ENTRY_ORDER.compare(next, entry) < 0) {
+        merged.add(Map.entry(next.getKey(), next.getValue()));
+        next = old.hasNext() ? old.next() : null;
+      }
+      if (next != null && ENTRY_ORDER.compare(next, entry) == 0) {
+        next = old.hasNext() ? old.next() : null;
+      }
+      if (!merged.isEmpty() && ENTRY_ORDER.compare(merged.get(merged.size() - 1), entry) == 0) {
+        merged.set(merged.size() - 1, entry);
+      } else {
+        merged.add(entry);
+      }
+    }
+    while (next != null) {
+      merged.add(Map.entry(next.getKey(), next.getValue()));
+      next = old.hasNext() ? old.next() : null;
+    }
+    return new TreeMap<>(new SortedEntries<>(KEY_ORDER, merged));
+  }
+
+  /**
+   * Hjälprutin som gör om ett namn till en söknyckel.
+   *
+   * @param name
+   * @return namnet med små bokstäver
+   */
+  private static String normalize(String name) {
+    return name == null ? "" : name.strip().toLowerCase(SWEDISH_LOCALE);
+  }
+
+  /**
+   * Hjälprutin som bygger indexet från sorterade nycklar
+   *
+   * @param lastNames
+   * @param firstNames
+   * @return indexet
+   */
+  private static CustomerNameIndex of(Map.Entry<Key, Customer>[] lastNames, Map.Entry<Key, Customer>[] firstNames) {
+    var index = new CustomerNameIndex();
+    index.lastNames = new TreeMap<>(new SortedEntries<>(KEY_ORDER, Arrays.asList(lastNames)));
+    index.firstNames = new TreeMap<>(new SortedEntries<>(KEY_ORDER, Arrays.asList(firstNames)));
+    return index;
+  }
+
+  /**
+   * Bygger ett index från kunderna i den ordning de sparades i indexfilen.
+   * Ordningen kontrolleras, har ett namn ändrats sedan dess passar den inte.
+   *
+   * @param byLastName  Kunderna sorterade på efternamn
+   * @param byFirstName Kunderna sorterade på förnamn
+   * @return indexet, eller null om ordningen inte stämmer
+   */
+  protected static CustomerNameIndex ofSorted(List<Customer> byLastName, List<Customer> byFirstName) {
+    var lastNames = entries(byLastName.parallelStream(), Customer::getLastName);
+    var firstNames = entries(byFirstName.parallelStream(), Customer::getFirstName);
+    if (!isSorted(lastNames) || !isSorted(firstNames)) {
+      return null;
+    }
+    return of(lastNames, firstNames);
+  }
+
+  private NavigableMap<Key, Customer> lastNames = new TreeMap<>(KEY_ORDER);
+  private NavigableMap<Key, Customer> firstNames = new TreeMap<>(KEY_ORDER);
+
+  /**
+   * Lägger till en kund i indexet
+   *
+   * @param customer
+   */
+  protected void add(Customer customer) {
+    lastNames.put(key(customer.getLastName(), customer), customer);
+    firstNames.put(key(customer.getFirstName(), customer), customer);
+  }
+
+  /**
+   * Lägger till många kunder på en gång, t.ex. efter en massimport. Nycklarna
+   * tas fram och sorteras parallellt och träden byggs om från ordningen, i
+   * stället för att växa en nyckel i taget.
+   *
+   * @param customers
+   */
+  protected void addAll(List<Customer> customers) {
+    if (customers.size() < lastNames.size() / BULK_RATIO) {
+      customers.forEach(this::add);
+      return;
+    }
+    lastNames = merge(lastNames, entries(customers.parallelStream(), Customer::getLastName));
+    firstNames = merge(firstNames, entries(customers.parallelStream(), Customer::getFirstName));
+  }
+
+  /**
+   * Kunderna sorterade på förnamn, för indexfilen
+   *
+   * @return kunderna
+   */
+  protected Collection<Customer> byFirstName() {
+    return Collections.unmodifiableCollection(firstNames.values());
+  }
+
+  /**
+   * Kunderna sorterade på efternamn, för indexfilen
+   *
+   * @return kunderna
+   */
+  protected Collection<Customer> byLastName() {
+    return Collections.unmodifiableCollection(lastNames.values());
+  }
+
+  /**
+   * Hjälprutin som skapar nyckeln för ett namn och en kund
+   *
+   * @param name
+   * @param customer
+   * @return nyckeln
+   */
+  private Key key(String name, Customer customer) {
+    return new Key(normalize(name).intern(), customer.getPersonalNumber());
+  }
+
+  /**
+   * Tar bort en kund ur indexet, anropas innan namnet ändras.
+   *
+   * @param customer
+   */
+  protected void remove(Customer customer) {
+    lastNames.remove(key(customer.getLastName(), customer));
+    firstNames.remove(key(customer.getFirstName(), customer));
+  }
+
+  /**
+   * Söker kunder vars efternamn eller förnamn börjar med prefix. Träffar på
+   * efternamn kommer först, sorterade på namn. Bara den begärda sidan gås igenom.
+   *
+   * @param prefix   Början på namnet
+   * @param page     Sidnummer, från 0
+   * @param pageSize Antal kunder per sida
+   * @return kunderna på sidan
+   */
+  protected List<Customer> search(String prefix, int page, int pageSize) {
+    var from = normalize(prefix);
+    List<Customer> result = new ArrayList<>(pageSize);
+    if (from.isEmpty() || page < 0 || pageSize <= 0) {
+      return result;
+    }
+
+    var fromKey = new Key(from, "");
+    var toKey = new Key(from + Character.MAX_VALUE, "");
+    var seen = new HashSet<Customer>();
+    var skip = (long) page * pageSize;
+
+    for (var map : List.of(lastNames, firstNames)) {
+      for (var customer : map.subMap(fromKey, true, toKey, false).values()) {
+        if (!seen.add(customer)) {
+          continue; // Både för- och efternamn matchar
+        }
+        if (skip > 0) {
+          skip--;
+        } else if (result.size() < pageSize) {
+          result.add(customer);
+        } else {
+          return result;
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Antal kunder i indexet
+   *
+   * @return antal
+   */
+  protected int size() {
+    return lastNames.size();
+  }
+}
@@ -0,0 +1,272 @@
+/**
+ * Klass som definierar ett lager på disk för kunder som inte används just nu.
+ * @author Hans Danielsson, handan-2
+ */
+package handan;
+
+/**
+ * Importsatser
+ */
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.ref.Cleaner;
+import java.lang.ref.Reference;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * En fil där varje post är en kunds konton i serialiserad form. Nya poster
+ * läggs alltid sist i filen och bara positionen hålls i minnet. En post skrivs
+ * aldrig över, så den som har hämtat en post med entry kan läsa den senare även
+ * om kunden har sparats igen eller tagits bort, se CustomerCache.
+ *
+ * En post som ersätts eller tas bort blir kvar som skräp tills skräpet är
+ * större än de levande posterna, då skrivs de levande posterna till en ny fil
+ * (path.1, path.2 ...). Den gamla filen får vara kvar så länge någon post i den
+ * kan nås och stängs och tas bort av en Cleaner när ingen längre gör det.
+ *
+ * Lagret är bara en förlängning av minnet. Ögonblicksbild och journal är det
+ * som gäller vid en krasch, så filerna synkas aldrig och töms vid start.
+ */
+public class CustomerStore implements Closeable {
+
+  /**
+   * En av lagrets filer. Stängs och tas bort när den inte längre kan nås.
+   */
+  private static final class Generation {
+    private final FileChannel channel;
+    private final Cleaner.Cleanable cleanable;
+
+    private Generation(Path path) throws IOException {
+      channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+          StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+      cleanable = CLEANER.register(this, new Release(path, channel));
+    }
+  }
+
+  /**
+   * Stänger och tar bort en fil. Får inte referera till Generation, då kan den
+   * aldrig städas bort.
+   *
+   * @param path
+   * @param channel
+   */
+  private record Release(Path path, FileChannel channel) implements Runnable {
+    @Override
+    public void run() {
+      try {
+        channel.close();
+        Files.deleteIfExists(path);
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  /**
+   * Var en post ligger, i vilken fil och var i filen
+   *
+   * @param file
+   * @param position
+   * @param length
+   */
+  protected record Entry(Generation file, long position, int length) {
+  }
+
+  private static final Cleaner CLEANER = Cleaner.create();
+  private static final long MIN_COMPACT_SIZE = 16L << 20; // Skriv inte om små filer
+
+  private final Path path;
+  private final Map<String, Entry> entries = new HashMap<>();
+  private final List<Cleaner.Cleanable> older = new ArrayList<>(); // Tidigare filer, städas vid close
+  private Generation current; // Filen som nya poster skrivs till
+  private int generation; // Antal gånger lagret har skrivits om
+  private long end; // Filens längd
+  private long liveBytes; // Bytes i poster som fortfarande gäller
+
+  /**
+   * Skapa ett tomt lager, en befintlig fil töms och filer som blivit kvar från
+   * en tidigare körning tas bort
+   *
+   * @param path
+   * @throws IOException
+   */
+  protected CustomerStore(Path path) throws IOException {
+    this.path = path;
+    var name = Pattern.quote(path.getFileName().toString()) + "\\.\\d+";
+    try (var files = Files.list(path.toAbsolutePath().getParent())) {
+      for (var file : files.filter(f -> f.getFileName().toString().matches(name)).toList()) {
+        Files.deleteIfExists(file);
+      }
+    }
+    this.current = new Generation(path);
+  }
+
+  /**
+   * Stänger och tar bort filerna. Poster som hämtats med entry går inte att
+   * läsa efter detta.
+   */
+  @Override
+  public synchronized void close() {
+    current.cleanable.clean();
+    older.forEach(Cleaner.Cleanable::clean);
+    older.clear();
+    entries.clear();
+  }
+
+  /**
+   * Hjälprutin som skriver de levande posterna till en ny fil och gör den till
+   * lagrets fil. Misslyckas det behålls den gamla filen och posterna, som då
+   * fortfarande gäller. Den gamla filen lämnas åt Cleaner, poster som hämtats
+   * med entry läser den tills de släpps.
+   *
+   * @throws IOException
+   */
+  private void compact() throws IOException {
+    var target = new Generation(Path.of(path + "." + (generation + 1)));
+    var moved = new HashMap<String, Entry>(entries.size() * 2);
+    long position = 0;
+    try {
+      for (var entry : entries.entrySet()) {
+        var old = entry.getValue();
+        var copied = 0L;
+        while (copied < old.length()) {
+          copied += old.file().channel.transferTo(old.position() + copied, old.length() - copied,
+              target.channel);
+        }
+        moved.put(entry.getKey(), new Entry(target, position, old.length()));
+        position += old.length();
+      }
+    } catch (IOException e) {
+      target.cleanable.clean();
+      throw e;
+    }
+    generation++;
+    older.add(current.cleanable);
+    current = target;
+    entries.clear();
+    entries.putAll(moved);
+    end = position;
+  }
+
+  /**
+   * Om kunden har en post i lagret
+   *
+   * @param pNo
+   * @return true om posten finns
+   */
+  protected synchronized boolean contains(String pNo) {
+    return entries.containsKey(pNo);
+  }
+
+  /**
+   * Filens storlek, inklusive skräp
+   *
+   * @return bytes
+   */
+  protected synchronized long getFileSize() {
+    return end;
+  }
+
+  /**
+   * Sparar kundens konton, en tidigare post för kunden blir skräp
+   *
+   * @param pNo
+   * @param data Serialiserade konton
+   */
+  protected synchronized void put(String pNo, byte[] data) {
+    try {
+      var buffer = ByteBuffer.wrap(data);
+      while (buffer.hasRemaining()) {
+        current.channel.write(buffer, end + buffer.position());
+      }
+      var old = entries.put(pNo, new Entry(current, end, data.length));
+      liveBytes += data.length - (old == null ? 0 : old.length());
+      end += data.length;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    if (end > MIN_COMPACT_SIZE && end > 2 * liveBytes) {
+      try {
+        compact();
+      } catch (IOException e) {
+        // Posten är redan sparad, filen skrivs om nästa gång
+        System.err.println("Kan inte skriva om " + path + ": " + e);
+      }
+    }
+  }
+
+  /**
+   * Hämtar kundens post som den ser ut nu. Posten går att läsa med read även
+   * efter att kunden har sparats igen eller tagits bort.
+   *
+   * @param pNo
+   * @return posten, eller null om kunden inte finns i lagret
+   */
+  protected synchronized Entry entry(String pNo) {
+    return entries.get(pNo);
+  }
+
+  /**
+   * Läser en post
+   *
+   * @param entry
+   * @return serialiserade konton
+   */
+  protected byte[] read(Entry entry) {
+    try {
+      var buffer = ByteBuffer.allocate(entry.length());
+      while (buffer.hasRemaining()) {
+        if (entry.file().channel.read(buffer, entry.position() + buffer.position()) < 0) {
+          throw new IOException("Lagret är kortare än väntat: " + path);
+        }
+      }
+      return buffer.array();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    } finally {
+      Reference.reachabilityFence(entry); // Filen får inte städas bort under läsningen
+    }
+  }
+
+  /**
+   * Läser kundens konton
+   *
+   * @param pNo
+   * @return serialiserade konton, eller null om kunden inte finns i lagret
+   */
+  protected byte[] read(String pNo) {
+    var entry = entry(pNo);
+    return entry == null ? null : read(entry);
+  }
+
+  /**
+   * Tar bort kundens post
+   *
+   * @param pNo
+   */
+  protected synchronized void remove(String pNo) {
+    var old = entries.remove(pNo);
+    if (old != null) {
+      liveBytes -= old.length();
+    }
+  }
+
+  /**
+   * Antal kunder i lagret
+   *
+   * @return antal
+   */
+  protected synchronized int size() {
+    return entries.size();
+  }
+}
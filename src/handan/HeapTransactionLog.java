@@ -0,0 +1,116 @@
+/**
+ * Klass som definierar lagring av transaktioner på Java-heapen.
+ * @author Hans Danielsson, handan-2
+ */
+package handan;
+
+/**
+ * Importsatser
+ */
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Standardlagringen. Varje transaktion tar tre long i en gemensam array i
+ * stället för ett String-objekt per transaktion.
+ */
+public class HeapTransactionLog implements TransactionLog {
+
+  /**
+   * Versionshanterings variabel till deserialisering
+   */
+  private static final long serialVersionUID = 611114L;
+  private static final int FIELDS = 3; // tid, belopp, saldo
+  private static final long[] EMPTY = {}; // Delas av alla tomma lagringar
+
+  private long[] records = EMPTY;
+  private int size;
+  private transient boolean frozen; // Vy från freeze(), kan inte ändras
+
+  /**
+   * Skapa en tom lagring
+   */
+  public HeapTransactionLog() {
+    // Tom lagring
+  }
+
+  /**
+   * Skapa en fryst vy som delar arrayen
+   *
+   * @param records
+   * @param size
+   */
+  private HeapTransactionLog(long[] records, int size) {
+    this.records = records;
+    this.size = size;
+    this.frozen = true;
+  }
+
+  @Override
+  public void add(long time, long amount, long balance) {
+    checkWritable();
+    if ((size + 1) * FIELDS > records.length) {
+      records = Arrays.copyOf(records, Math.max(4 * FIELDS, records.length * 2));
+    }
+    var pos = size * FIELDS;
+    records[pos] = time;
+    records[pos + 1] = amount;
+    records[pos + 2] = balance;
+    size++;
+  }
+
+  @Override
+  public void clear() {
+    checkWritable();
+    records = EMPTY;
+    size = 0;
+  }
+
+  /**
+   * Arrayen skrivs bara efter size och byts ut vid clear(), därför räcker
+   * det att vyn kommer ihåg arrayen och antalet.
+   */
+  @Override
+  public TransactionLog freeze() {
+    return frozen ? this : new HeapTransactionLog(records, size);
+  }
+
+  @Override
+  public long getAmount(int index) {
+    return records[checkIndex(index) * FIELDS + 1];
+  }
+
+  @Override
+  public long getBalance(int index) {
+    return records[checkIndex(index) * FIELDS + 2];
+  }
+
+  @Override
+  public long getTime(int index) {
+    return records[checkIndex(index) * FIELDS];
+  }
+
+  /**
+   * Hjälprutin som kontrollerar index
+   *
+   * @param index
+   * @return index
+   */
+  private int checkIndex(int index) {
+    return Objects.checkIndex(index, size);
+  }
+
+  /**
+   * Hjälprutin som hindrar ändringar i en fryst vy
+   */
+  private void checkWritable() {
+    if (frozen) {
+      throw new UnsupportedOperationException("Transaktionerna är frysta");
+    }
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+}
@@ -0,0 +1,158 @@
+/**
+ * Klass som definierar uppdatering av en lista i gränssnittet med minsta möjliga ändringar.
+ * @author Hans Danielsson, handan-2
+ */
+package handan;
+
+/**
+ * Importsatser
+ */
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.stream.IntStream;
+
+/**
+ * Importsatser för JavaFX med olika API rutiner
+ */
+import javafx.collections.ObservableList;
+
+/**
+ * En ListView ritar om och räknar om sin layout för varje ändring i listan den
+ * visar. Att tömma och fylla listan igen gör att alla rader byts ut, även när
+ * bara en rad har ändrats. Här jämförs den nya listan med den som visas och
+ * bara skillnaden läggs in: först hoppas lika början och slut över, sedan tas
+ * de minsta ändringarna fram för resten med Myers diff-algoritm. Blir
+ * skillnaden för stor byts den olika delen ut i ett svep.
+ */
+public class ListDiff {
+
+  private static final int MAX_EDITS = 100; // Fler ändringar än så byter ut mitten i ett svep
+
+  /**
+   * Uppdaterar target så att den blir lika med source. Anropas i JavaFX-tråden.
+   *
+   * @param <T>
+   * @param target Listan som visas
+   * @param source Det nya innehållet
+   */
+  protected static <T> void apply(ObservableList<T> target, List<? extends T> source) {
+    var n = target.size();
+    var m = source.size();
+    var prefix = 0;
+    while (prefix < n && prefix < m && Objects.equals(target.get(prefix), source.get(prefix))) {
+      prefix++;
+    }
+    var suffix = 0;
+    while (suffix < n - prefix && suffix < m - prefix
+        && Objects.equals(target.get(n - 1 - suffix), source.get(m - 1 - suffix))) {
+      suffix++;
+    }
+
+    var removed = new ArrayList<T>(target.subList(prefix, n - suffix));
+    var added = source.subList(prefix, m - suffix);
+    if (removed.isEmpty() && added.isEmpty()) {
+      return;
+    }
+    if (removed.isEmpty()) {
+      target.addAll(prefix, added);
+    } else if (added.isEmpty()) {
+      target.remove(prefix, n - suffix);
+    } else if (!applyEdits(target, prefix, removed, added)) {
+      replace(target, prefix, removed, added);
+    }
+  }
+
+  /**
+   * Hjälprutin som tar fram de minsta ändringarna med Myers algoritm och lägger
+   * in dem bakifrån, så att positionerna framför inte flyttas.
+   *
+   * @param <T>
+   * @param target
+   * @param offset Var den olika delen börjar i target
+   * @param a      Den olika delen som visas nu
+   * @param b      Den olika delen som ska visas
+   * @return false om det behövs fler än MAX_EDITS ändringar, target är då
+   *         oförändrad
+   */
+  private static <T> boolean applyEdits(ObservableList<T> target, int offset, List<T> a, List<? extends T> b) {
+    var n = a.size();
+    var m = b.size();
+    var max = Math.min(n + m, MAX_EDITS);
+    var v = new int[2 * max + 2]; // Längst x på diagonal k, index k + max
+    var trace = new ArrayList<int[]>();
+    var found = -1;
+    for (var d = 0; d <= max && found < 0; d++) {
+      trace.add(v.clone());
+      for (var k = -d; k <= d; k += 2) {
+        int x;
+        if (k == -d || (k != d && v[k - 1 + max] < v[k + 1 + max])) {
+          x = v[k + 1 + max]; // Nedåt, en rad läggs till
+        } else {
+          x = v[k - 1 + max] + 1; // Åt höger, en rad tas bort
+        }
+        var y = x - k;
+        while (x < n && y < m && Objects.equals(a.get(x), b.get(y))) {
+          x++;
+          y++;
+        }
+        v[k + max] = x;
+        if (x >= n && y >= m) {
+          found = d;
+          break;
+        }
+      }
+    }
+    if (found < 0) {
+      return false;
+    }
+
+    // Gå tillbaka från slutet och lägg in ändringarna bakifrån
+    var x = n;
+    var y = m;
+    for (var d = found; d > 0; d--) {
+      var prev = trace.get(d);
+      var k = x - y;
+      var down = k == -d || (k != d && prev[k - 1 + max] < prev[k + 1 + max]);
+      var prevK = down ? k + 1 : k - 1;
+      var prevX = prev[prevK + max];
+      var prevY = prevX - prevK;
+      if (down) {
+        target.add(offset + prevX, b.get(prevY));
+      } else {
+        target.remove(offset + prevX);
+      }
+      x = prevX;
+      y = prevY;
+    }
+    return true;
+  }
+
+  /**
+   * Hjälprutin som byter ut den olika delen. Lika långa delar där få rader
+   * skiljer sig byts rad för rad så att bara de ändrade raderna ritas om.
+   *
+   * @param <T>
+   * @param target
+   * @param offset Var den olika delen börjar i target
+   * @param a      Den olika delen som visas nu
+   * @param b      Den olika delen som ska visas
+   */
+  private static <T> void replace(ObservableList<T> target, int offset, List<T> a, List<? extends T> b) {
+    if (a.size() == b.size() && IntStream.range(0, a.size())
+        .filter(i -> !Objects.equals(a.get(i), b.get(i))).limit(MAX_EDITS + 1).count() <= MAX_EDITS) {
+      for (var i = 0; i < b.size(); i++) {
+        if (!Objects.equals(a.get(i), b.get(i))) {
+          target.set(offset + i, b.get(i));
+        }
+      }
+      return;
+    }
+    target.remove(offset, offset + a.size());
+    target.addAll(offset, b);
+  }
+
+  protected ListDiff() {
+    // Privat konstruktor för att förhindra instansiering
+  }
+}
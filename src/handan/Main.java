@@ -7,15 +7,32 @@ package handan;
 /**
  * Importsatser
  */
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.stream.Stream;
 
 /**
  * Importsatser för JavaFX med olika API rutiner
  */
 import javafx.application.Application;
+import javafx.application.Platform;
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
+import javafx.concurrent.Task;
 import javafx.scene.Scene;
 import javafx.scene.control.Button;
 import javafx.scene.control.Label;
@@ -23,11 +40,13 @@ import javafx.scene.control.ListView;
 import javafx.scene.control.Menu;
 import javafx.scene.control.MenuBar;
 import javafx.scene.control.MenuItem;
+import javafx.scene.control.ProgressIndicator;
 import javafx.scene.control.SeparatorMenuItem;
 import javafx.scene.control.TextField;
 import javafx.scene.image.Image;
 import javafx.scene.image.ImageView;
 import javafx.scene.layout.BorderPane;
+import javafx.scene.layout.HBox;
 import javafx.scene.layout.VBox;
 import javafx.scene.paint.Color;
 import javafx.stage.Stage;
@@ -46,20 +65,29 @@ public class Main extends Application {
   private static Menu menuFile = new Menu("File");
 
   private static final String[] strMenuFile = { "Spara banken", "Läs in banken", "Spara transaktioner",
-      "Visa transaktioner", "Avsluta" };
+      "Visa transaktioner", "Exportera alla transaktioner", "Kontoutdrag förra månaden", "Importera kunder",
+      "Avsluta" };
 
   private static MenuItem[] menuItemFile = new MenuItem[strMenuFile.length];
   private static Menu menuCustomer = new Menu("Kund");
-  private static final String[] strMenuCustomer = { "Spara", "Hämta", "Byt namn", "Ta bort", "Lista" };
+  private static final String[] strMenuCustomer = { "Spara", "Hämta", "Byt namn", "Ta bort", "Lista", "Sök" };
 
   private static MenuItem[] menuItemCustomer = new MenuItem[strMenuCustomer.length];
   private static Menu menuAccount = new Menu("Konton");
   private static final String[] strMenuAccount = { "Spar", "Kredit", "Saldo", "Sätta in", "Ta ut", "Transaktioner",
-      "Ta bort" };
+      "Ta bort", "Statistik", "Kontrollera" };
 
   private static MenuItem[] menuItemAccount = new MenuItem[strMenuAccount.length];
+  private static Menu menuReport = new Menu("Rapporter");
+  private static final String[] strMenuReport = { "Största saldon", "Kreditkonton under -4000 kr",
+      "Sparkonton utan uttag", "Uttag över 50 000 kr" };
+
+  private static MenuItem[] menuItemReport = new MenuItem[strMenuReport.length];
+  private static final int REPORT_TOP_COUNT = 100;
+  private static final int REPORT_CREDIT_BELOW = -4000;
+  private static final int REPORT_WITHDRAWAL_OVER = 50_000;
   // Meny-hanterare, innehåller alla menyer
-  private static MenuBar menuBar = new MenuBar(menuFile, menuCustomer, menuAccount);
+  private static MenuBar menuBar = new MenuBar(menuFile, menuCustomer, menuAccount, menuReport);
   // Spara knappen till olika syften
   private static final String[] strButton = { "Spara", "Hämta", "Byt namn", "Ta bort", "Spar", "Kredit", "Saldo",
       "Sätt in", "Ta ut", "Transaktioner", "Ta bort" };
@@ -77,12 +105,19 @@ public class Main extends Application {
   private static TextField[] tfSurname = new TextField[strButton.length];
 
   /**
-   * Man behöver bara använda en tfKontoList som används för alla listor på alla
-   * "sidor"
+   * Varje "sida" har en egen kontolista, så att en ändring bara ritar om listan
+   * på den sidan. Raderna är kontonumren, de läses tillbaka när ett konto väljs.
    */
-  private static ObservableList<String> tfKontoList = FXCollections.observableArrayList();
+  private static List<ObservableList<String>> tfKontoList = new ArrayList<>(
+      Collections.nCopies(strButton.length, null));
+  private static String[] kontoListPNo = new String[strButton.length]; // Kunden vars konton visas på sidan
   private static ObservableList<String> tfResultList = FXCollections.observableArrayList();
 
+  // Prenumeration på bankens händelser, byts när banken byts. Sätts av bakgrundstråden.
+  private static final int EVENT_QUEUE_SIZE = 10_000;
+  private static final int EVENT_BATCH_SIZE = 1_000;
+  private static BankEvents.Subscription bankEvents;
+
   private static Label[] labelKontoNr = new Label[strButton.length];
 
   // Ignorerar varningen, det blir rätt kod ändå.
@@ -96,6 +131,13 @@ public class Main extends Application {
   private static Button[] saveButton = new Button[strButton.length];
   private static VBox[] vbox = new VBox[strButton.length];
 
+  // Sök kund på namn, en sida i taget
+  private static final int SEARCH_PAGE_SIZE = 50;
+  private static VBox searchVBox = new VBox(10);
+  private static TextField tfSearch = new TextField();
+  private static Label labelSearchPage = new Label();
+  private static int searchPage = 0;
+
   // Bilder att visa i högra delen
   private static final Image imageBag = new Image("file:src/handan/files/bag-96x96.png");
   private static final Image imagePiggy = new Image("file:src/handan/files/piggy-bank-96x96.png");
@@ -108,6 +150,24 @@ public class Main extends Application {
   private static ListView<String> centralResult = new ListView<>(tfResultList);
   private static Label statusText = new Label();
 
+  /**
+   * Alla anrop till banken görs av en bakgrundstråd så att fönstret aldrig låser
+   * sig. En enda tråd gör att banken aldrig anropas från två trådar samtidigt.
+   */
+  private static final ExecutorService bankExecutor = Executors.newSingleThreadExecutor(r -> {
+    var thread = new Thread(r, "bank-worker");
+    thread.setDaemon(true);
+    return thread;
+  });
+  private static int pendingTasks = 0; // Antal uppdrag som väntar eller körs
+  private static Task<?> longTask; // Pågående långt uppdrag, förloppet visas
+  private static AtomicBoolean cancelRequest; // Sätts av avbryt-knappen, null om uppdraget inte kan avbrytas
+
+  // Förlopp och avbryt-knapp som visas vid långa uppdrag
+  private static ProgressIndicator progress = new ProgressIndicator();
+  private static Button cancelButton = new Button("Avbryt");
+  private static HBox statusBox = new HBox(10, statusText, progress, cancelButton);
+
   /**
    * Hjälprutin som kollar att belopp är utan decimaler. Systemet är byggt på
    * modellen integer.
@@ -127,23 +187,6 @@ public class Main extends Application {
     tfBelopp[index].setText(str);
   }
 
-  /**
-   * Rutin som utför menyval under Konto
-   *
-   * @param index - Menyvalet
-   */
-  private static void bankMenuAccount(short index) {
-    switch (index) {
-    case 0, 1, 2, 3, 4, 5, 6: // Konton kommando
-      saveToFile = false;
-      borderPane.setLeft(vbox[index + 4]);
-      break;
-    default:
-      setStatusError("Konton, index = " + index);
-      break;
-    }
-  }
-
   public static void main(String[] args) {
     launch(args);
   }
@@ -155,8 +198,40 @@ public class Main extends Application {
    * @param strResult
    */
   private static void putCenterText(List<String> strResult) {
-    tfResultList.clear();
-    tfResultList.addAll(strResult);
+    // Bara de rader som skiljer sig byts ut
+    ListDiff.apply(tfResultList, strResult);
+  }
+
+  /**
+   * Rutin som spärrar knappar och menyer medan banken arbetar i bakgrunden. Vid
+   * långa uppdrag visas förlopp, och avbryt-knapp om uppdraget kan avbrytas.
+   *
+   * @param busy   - Om ett uppdrag startar eller är klart
+   * @param task   - Långt uppdrag, annars null
+   * @param cancel - Flagga som uppdraget läser mellan omgångar, eller null
+   */
+  private static void setBusy(boolean busy, Task<?> task, AtomicBoolean cancel) {
+    pendingTasks += busy ? 1 : -1;
+    if (task != null) {
+      longTask = task;
+      cancelRequest = cancel;
+    } else if (!busy && pendingTasks == 0) {
+      longTask = null;
+      cancelRequest = null;
+    }
+
+    var disable = pendingTasks > 0;
+    for (var button : saveButton) {
+      if (button != null) {
+        button.setDisable(disable);
+      }
+    }
+    menuFile.setDisable(disable);
+
+    var showProgress = longTask != null;
+    progress.setVisible(showProgress);
+    cancelButton.setVisible(showProgress && cancelRequest != null);
+    cancelButton.setDisable(cancelRequest != null && cancelRequest.get());
   }
 
   /**
@@ -188,8 +263,8 @@ public class Main extends Application {
     setStatusColor(str, Color.GREEN);
   }
 
-  // bank-hanteraren
-  private BankLogic bank = new BankLogic();
+  // bank-hanteraren, byts ut av bakgrundstråden vid inläsning
+  private volatile BankLogic bank = new BankLogic();
 
   /**
    * Rutin som fixar alla konton till ett pNr, Givet att pNr är ifyllt
@@ -199,17 +274,37 @@ public class Main extends Application {
   private void bankAccountList(short index) {
     switch (index) {
     case 6, 7, 8, 9, 10:
-      List<String> result = bank.getAccountList(tfPNo[index].getText());
-      tfKontoList.clear();
-      if (result != null) {
-        tfKontoList.addAll(result);
-      }
+      showAccountList(index, tfPNo[index].getText());
       break;
     default:
       break;
     }
   }
 
+  /**
+   * Rutin som utför menyval under Konto
+   *
+   * @param index - Menyvalet
+   */
+  private void bankMenuAccount(short index) {
+    switch (index) {
+    case 0, 1, 2, 3, 4, 5, 6: // Konton kommando
+      saveToFile = false;
+      borderPane.setLeft(vbox[index + 4]);
+      break;
+    case 7: // Statistik
+      runBankTask(false, () -> Stream.concat(bank.getStatistics().report().stream(), bank.getCacheMetrics().stream())
+          .toList(), Main::putCenterText);
+      break;
+    case 8: // Kontrollera att saldon och transaktioner stämmer
+      runCancellableTask(cancelled -> BankLedgerCheck.check(bank, cancelled).report(), Main::putCenterText);
+      break;
+    default:
+      setStatusError("Konton, index = " + index);
+      break;
+    }
+  }
+
   /**
    * Rutin som utför kommandon under Kund
    *
@@ -219,6 +314,7 @@ public class Main extends Application {
     switch (index) {
     case 0, 1, 2, 3 -> borderPane.setLeft(vbox[index]);
     case 4 -> getBankAllCustomers();
+    case 5 -> borderPane.setLeft(searchVBox);
     default -> setStatusError("Kund, index = " + index);
     }
   }
@@ -234,11 +330,31 @@ public class Main extends Application {
     case 1 -> loadBankFromFile();
     case 2 -> prepareTransactionSave();
     case 3 -> showTransactions();
-    case 4 -> System.exit(0);
+    case 4 -> exportAllTransactions();
+    case 5 -> writeStatements();
+    case 6 -> importCustomers();
+    case 7 -> System.exit(0);
     default -> setStatusError("File, index = " + index);
     }
   }
 
+  /**
+   * Rutin som utför rapporter under Rapporter. Frågorna på konton går mot
+   * bankens läsvy, uttagen mot transaktionsindexet i bakgrundstråden.
+   *
+   * @param index - Menyvalet
+   */
+  private void bankMenuReport(short index) {
+    var view = bank.snapshot();
+    switch (index) {
+    case 0 -> runBankTask(false, () -> BankQuery.topBalances(view, REPORT_TOP_COUNT), Main::putCenterText);
+    case 1 -> runBankTask(false, () -> BankQuery.creditAccountsBelow(view, REPORT_CREDIT_BELOW), Main::putCenterText);
+    case 2 -> runBankTask(false, () -> BankQuery.savingsWithoutWithdrawal(view), Main::putCenterText);
+    case 3 -> runBankTask(false, () -> BankQuery.withdrawalsOver(bank, REPORT_WITHDRAWAL_OVER), Main::putCenterText);
+    default -> setStatusError("Rapporter, index = " + index);
+    }
+  }
+
   /**
    * Rutin som anropas när användaren har tryckt på en Button-knapp
    *
@@ -265,11 +381,10 @@ public class Main extends Application {
    * Rutin som byte namn på en kund(pNr)
    */
   private void changeBankCustomerName() {
-    if (bank.changeCustomerName(tfName[2].getText(), tfSurname[2].getText(), tfPNo[2].getText())) {
-      setStatusOk(SAVED);
-    } else {
-      setStatusError(NOTSAVED);
-    }
+    var name = tfName[2].getText();
+    var surname = tfSurname[2].getText();
+    var pNo = tfPNo[2].getText();
+    runBankTask(false, () -> bank.changeCustomerName(name, surname, pNo), this::showSaved);
   }
 
   /**
@@ -288,10 +403,13 @@ public class Main extends Application {
     String strKonto = tfKontoNr[10].getSelectionModel().getSelectedItem();
     try {
       if (!strKonto.isBlank()) {
-        var str = bank.closeAccount(tfPNo[10].getText(), Integer.parseInt(strKonto));
-        if (str != null) {
-          putCenterText(List.of(str));
-        }
+        var pNo = tfPNo[10].getText();
+        var accountId = Integer.parseInt(strKonto);
+        runBankTask(false, () -> bank.closeAccount(pNo, accountId), str -> {
+          if (str != null) {
+            putCenterText(List.of(str));
+          }
+        });
       }
     } catch (Exception e) {
       setStatusError("Felaktigt kontonummer: " + strKonto);
@@ -302,46 +420,45 @@ public class Main extends Application {
    * Rutin som skapar ett kreditkonto för person(pNo)
    */
   private void createBankCreditAccount() {
-    var accountId = bank.createCreditAccount(tfPNo[5].getText());
-    if (accountId > 0) {
-      putCenterText(List.of("Kontonummer: " + accountId));
-    } else {
-      setStatusError(NOTSAVED);
-    }
+    var pNo = tfPNo[5].getText();
+    runBankTask(false, () -> bank.createCreditAccount(pNo), this::showAccountNumber);
   }
 
   /**
    * Rutin som skapar en kund med f-namn, e-namn och pNr
    */
   private void createBankCustomer() {
-    if (bank.createCustomer(tfName[0].getText(), tfSurname[0].getText(), tfPNo[0].getText())) {
-      getBankAllCustomers();
-      setStatusOk(SAVED);
-    } else {
-      setStatusError(NOTSAVED);
-    }
+    var name = tfName[0].getText();
+    var surname = tfSurname[0].getText();
+    var pNo = tfPNo[0].getText();
+    runBankTask(false, () -> bank.createCustomer(name, surname, pNo) ? bank.getAllCustomers() : null, result -> {
+      if (result != null) {
+        putCenterText(result);
+        setStatusOk(SAVED);
+      } else {
+        setStatusError(NOTSAVED);
+      }
+    });
   }
 
   /**
    * Rutin som skapar ett sparkonto för kund pNr
    */
   private void createBankSavingAccount() {
-    var accountId = bank.createSavingsAccount(tfPNo[4].getText());
-    if (accountId > 0) {
-      putCenterText(List.of("Kontonummer: " + accountId));
-    } else {
-      setStatusError(NOTSAVED);
-    }
+    var pNo = tfPNo[4].getText();
+    runBankTask(false, () -> bank.createSavingsAccount(pNo), this::showAccountNumber);
   }
 
   /**
    * Rutin som tar bort en kund(pNo)
    */
   private void deletBankCustomer() {
-    var result = bank.deleteCustomer(tfPNo[3].getText());
-    if (result != null) {
-      putCenterText(result);
-    }
+    var pNo = tfPNo[3].getText();
+    runBankTask(false, () -> bank.deleteCustomer(pNo), result -> {
+      if (result != null) {
+        putCenterText(result);
+      }
+    });
   }
 
   /**
@@ -351,16 +468,22 @@ public class Main extends Application {
     var strKonto = tfKontoNr[7].getSelectionModel().getSelectedItem();
     var strBelopp = tfBelopp[7].getText();
     try {
-      if (bank.deposit(tfPNo[7].getText(), Integer.parseInt(strKonto), Integer.parseInt(strBelopp))) {
-        setStatusOk(SAVED);
-      } else {
-        setStatusError(NOTSAVED);
-      }
+      var pNo = tfPNo[7].getText();
+      var accountId = Integer.parseInt(strKonto);
+      var amount = Integer.parseInt(strBelopp);
+      runBankTask(false, () -> bank.deposit(pNo, accountId, amount), this::showSaved);
     } catch (Exception e) {
       setStatusError("Felaktiga värden: " + strKonto + "/" + strBelopp);
     }
   }
 
+  /**
+   * Rutin som exporterar alla transaktioner i banken till en CSV-fil
+   */
+  private void exportAllTransactions() {
+    showFileResultLater(BankFileIO.putFileAllTransactions(bank));
+  }
+
   /**
    * Rutin som hämtar saldo för ett konto
    */
@@ -368,7 +491,9 @@ public class Main extends Application {
     var strKonto = tfKontoNr[6].getSelectionModel().getSelectedItem();
     try {
       if (!strKonto.isBlank()) {
-        var str = bank.getAccount(tfPNo[6].getText(), Integer.parseInt(strKonto));
+        var pNo = tfPNo[6].getText();
+        var accountId = Integer.parseInt(strKonto);
+        var str = bank.getAccount(pNo, accountId);
         if (str != null) {
           putCenterText(List.of(str));
         }
@@ -382,17 +507,19 @@ public class Main extends Application {
    * Rutin som hämtar alla kunder och visar det i fönster Center
    */
   private void getBankAllCustomers() {
-    var result = bank.getAllCustomers();
-    if (result != null) {
-      putCenterText(result);
-    }
+    runBankTask(false, bank::getAllCustomers, result -> {
+      if (result != null) {
+        putCenterText(result);
+      }
+    });
   }
 
   /**
    * Rutin som tar fram en kund med konton
    */
   private void getBankCustomer() {
-    var result = bank.getCustomer(tfPNo[1].getText());
+    var pNo = tfPNo[1].getText();
+    var result = bank.getCustomer(pNo);
     if (result != null) {
       putCenterText(result);
     }
@@ -406,32 +533,50 @@ public class Main extends Application {
     if (strKonto == null || strKonto.isBlank()) {
       return;
     }
+    int kontoNummer;
     try {
-      var kontoNummer = Integer.parseInt(strKonto);
-      var result = bank.getTransactions(tfPNo[9].getText(), kontoNummer);
+      kontoNummer = Integer.parseInt(strKonto);
+    } catch (NumberFormatException e) {
+      setStatusError("Felaktigt kontonummerformat: " + strKonto);
+      return;
+    }
 
+    var pNo = tfPNo[9].getText();
+    var toFile = saveToFile;
+    runBankTask(false, () -> {
+      var result = bank.getTransactions(pNo, kontoNummer);
       if (result == null || result.isEmpty()) {
-        setStatusOk("Inga transaktioner för konto: " + strKonto);
-        return;
+        return null;
       }
-      var newResult = Stream.concat(Stream.of("Transaktioner för konto: " + strKonto), result.stream()).toList();
-
-      if (saveToFile) {
-        var strFile = BankFileIO.putFileTransactions(newResult);
-        if (strFile.startsWith("Sparad")) {
-          setStatusOk(strFile);
-        } else {
-          setStatusError(strFile);
-        }
+      return Stream.concat(Stream.of("Transaktioner för konto: " + strKonto), result.stream()).toList();
+    }, result -> {
+      if (result == null) {
+        setStatusOk("Inga transaktioner för konto: " + strKonto);
+      } else if (toFile) {
+        showFileResultLater(BankFileIO.putFileTransactions(result));
       } else {
-        putCenterText(newResult);
+        putCenterText(result);
       }
-    } catch (NumberFormatException e) {
-      setStatusError("Felaktigt kontonummerformat: " + strKonto);
-    } catch (Exception e) {
-      setStatusError("Ett fel uppstod vid hämtning av transaktioner för konto: " + strKonto);
-      e.printStackTrace();
+    });
+  }
+
+  /**
+   * Rutin som importerar kunder och konton från en CSV-fil. Raderna som inte
+   * kunde importeras visas med radnummer och orsak.
+   */
+  private void importCustomers() {
+    // Filväljaren måste visas i JavaFX-tråden, importen görs i bakgrunden.
+    var file = BankFileIO.chooseImportFile();
+    if (file == null) {
+      return;
     }
+    runCancellableTask(cancelled -> {
+      try {
+        return BankImport.importCsv(bank, file, cancelled).report();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }, Main::putCenterText);
   }
 
   /**
@@ -465,7 +610,8 @@ public class Main extends Application {
 
     if (withAccountList) {
       labelKontoNr[index] = new Label("Kontonr: ");
-      tfKontoNr[index] = new ListView<>(tfKontoList);
+      tfKontoList.set(index, FXCollections.observableArrayList());
+      tfKontoNr[index] = new ListView<>(tfKontoList.get(index));
       vbox[index].getChildren().addAll(labelKontoNr[index], tfKontoNr[index]);
     }
 
@@ -485,6 +631,20 @@ public class Main extends Application {
     vbox[index].getChildren().add(saveButton[index]);
   }
 
+  /**
+   * Rutin som initierar sökningen på kundnamn. Sökningen görs medan man skriver.
+   */
+  private void initSearchVBox() {
+    var prevButton = new Button("Föregående");
+    var nextButton = new Button("Nästa");
+    tfSearch.setPromptText("Början på namnet");
+    tfSearch.textProperty().addListener(_ -> searchBankCustomers(0));
+    prevButton.setOnAction(_ -> searchBankCustomers(Math.max(0, searchPage - 1)));
+    nextButton.setOnAction(_ -> searchBankCustomers(searchPage + 1));
+    searchVBox.getChildren().addAll(new Label("Namn: "), tfSearch, new HBox(10, prevButton, nextButton),
+        labelSearchPage);
+  }
+
   /**
    * Rutin som läser in banken från en fil
    */
@@ -495,13 +655,48 @@ public class Main extends Application {
       return;
     }
 
-    var newBank = BankFileIO.getFileBank();
-    if (newBank != null) {
-      clearCurrentBank(); // Rensa banken
-      bank = newBank;
-      setStatusOk("Inläst från vald fil");
-    } else {
+    // Filväljaren måste visas i JavaFX-tråden, inläsningen görs i bakgrunden.
+    var file = BankFileIO.chooseBankFile();
+    if (file == null) {
       setStatusError("Fel vid inläsning av bankfil");
+      return;
+    }
+
+    runBankTask(true, () -> {
+      var newBank = BankFileIO.readBankFile(file);
+      if (newBank != null) {
+        clearCurrentBank(); // Rensa banken
+        BankFileIO.switchBank(bank, newBank);
+        bank = newBank;
+        subscribeToBankEvents();
+      }
+      return newBank != null;
+    }, loaded -> {
+      if (loaded) {
+        setStatusOk("Inläst från vald fil");
+      } else {
+        setStatusError("Fel vid inläsning av bankfil");
+      }
+    });
+  }
+
+  /**
+   * Rutin som tar emot en omgång händelser från banken, på JavaFX-tråden.
+   * Kontolistorna läses om när den visade kundens konton har ändrats, oavsett
+   * varifrån ändringen kom. Har händelser missats läses de om ändå.
+   *
+   * @param batch - Händelserna
+   */
+  private void onBankEvents(BankEvents.Batch batch) {
+    for (short index = 0; index < kontoListPNo.length; index++) {
+      var pNo = kontoListPNo[index];
+      if (pNo != null && (batch.missed() > 0 || batch.events().stream()
+          .anyMatch(e -> pNo.equals(e.personalNumber()) && switch (e.type()) {
+          case ACCOUNT_OPENED, ACCOUNT_CLOSED, CUSTOMER_DELETED -> true;
+          default -> false;
+          }))) {
+        showAccountList(index, pNo);
+      }
     }
   }
 
@@ -513,15 +708,134 @@ public class Main extends Application {
     borderPane.setLeft(vbox[9]);
   }
 
+  /**
+   * Rutin som kör ett anrop mot banken i bakgrundstråden och visar resultatet i
+   * JavaFX-tråden när det är klart. Knappar och filmenyn är spärrade under tiden.
+   * Resultatet visas först när ändringarna ligger i journalen.
+   *
+   * @param longRunning - Om förlopp ska visas
+   * @param work        - Anropet som görs i bakgrunden
+   * @param onDone      - Tar hand om resultatet i JavaFX-tråden
+   */
+  private <T> void runBankTask(boolean longRunning, Callable<T> work, Consumer<T> onDone) {
+    runBankTask(longRunning, work, onDone, null);
+  }
+
+  /**
+   * Rutin som kör ett anrop mot banken i bakgrundstråden, se ovan. Med cancel
+   * visas avbryt-knappen. Tråden avbryts aldrig, en avbruten kanal till journalen
+   * eller kontofilen skulle stängas. Uppdraget läser i stället flaggan mellan
+   * omgångar och slutar med CancellationException innan banken har ändrats,
+   * knapparna släpps först när det har slutat.
+   *
+   * @param longRunning - Om förlopp ska visas
+   * @param work        - Anropet som görs i bakgrunden
+   * @param onDone      - Tar hand om resultatet i JavaFX-tråden
+   * @param cancel      - Flagga som avbryt-knappen sätter, eller null
+   */
+  private <T> void runBankTask(boolean longRunning, Callable<T> work, Consumer<T> onDone, AtomicBoolean cancel) {
+    var task = new Task<T>() {
+      @Override
+      protected T call() throws Exception {
+        var result = work.call();
+        bank.durable().join();
+        return result;
+      }
+    };
+    task.setOnSucceeded(_ -> {
+      setBusy(false, null, null);
+      onDone.accept(task.getValue());
+    });
+    task.setOnFailed(_ -> {
+      setBusy(false, null, null);
+      if (task.getException() instanceof CancellationException) {
+        setStatusError("Avbrutet");
+        return;
+      }
+      setStatusError("Ett fel uppstod: " + task.getException().getMessage());
+      task.getException().printStackTrace();
+    });
+    setBusy(true, longRunning ? task : null, cancel);
+    bankExecutor.execute(task);
+  }
+
+  /**
+   * Rutin som kör ett långt anrop som kan avbrytas mellan omgångar, t.ex.
+   * kontroll av banken eller import innan kunderna läggs in
+   *
+   * @param work   - Anropet, får en funktion som svarar om avbryt är tryckt
+   * @param onDone - Tar hand om resultatet i JavaFX-tråden
+   */
+  private <T> void runCancellableTask(Function<BooleanSupplier, T> work, Consumer<T> onDone) {
+    var cancel = new AtomicBoolean();
+    runBankTask(true, () -> work.apply(cancel::get), onDone, cancel);
+  }
+
   /**
    * Rutin som sparar banken till en fil
    */
   private void saveBankToFile() {
-    if (bank.getAllCustomersList().isEmpty()) {
-      setStatusError("Inga kunder i banken");
-      return;
+    runBankTask(true, () -> bank.getAllCustomersList().isEmpty() ? null : BankFileIO.putFileBank(bank), strFile -> {
+      if (strFile == null) {
+        setStatusError("Inga kunder i banken");
+      } else {
+        showFileResultLater(strFile);
+      }
+    });
+  }
+
+  /**
+   * Rutin som söker kunder på namn och visar en sida med träffar
+   *
+   * @param page - Sidnummer, från 0
+   */
+  private void searchBankCustomers(int page) {
+    var prefix = tfSearch.getText();
+    runBankTask(false, () -> bank.searchCustomers(prefix, page, SEARCH_PAGE_SIZE), result -> {
+      if (result.isEmpty() && page > 0) {
+        setStatusOk("Inga fler träffar");
+        return;
+      }
+      searchPage = page;
+      labelSearchPage.setText("Sida " + (page + 1));
+      putCenterText(result);
+    });
+  }
+
+  /**
+   * Rutin som visar kundens konton i sidans kontolista. Läses från bankens
+   * ögonblicksbild, behöver inte vänta på bakgrundstråden. Bara skillnaden mot
+   * listan som visas läggs in.
+   *
+   * @param index - Sidan
+   * @param pNo   - Kunden
+   */
+  private void showAccountList(short index, String pNo) {
+    var customer = bank.snapshot(pNo);
+    var accounts = customer == null ? List.<BankView.AccountView>of() : customer.accounts();
+    kontoListPNo[index] = pNo;
+    ListDiff.apply(tfKontoList.get(index), accounts.stream().map(a -> String.valueOf(a.accountNumber())).toList());
+  }
+
+  /**
+   * Rutin som visar ett nytt kontonummer, eller fel om kunden saknas
+   *
+   * @param accountId - Kontonumret eller -1
+   */
+  private void showAccountNumber(int accountId) {
+    if (accountId > 0) {
+      putCenterText(List.of("Kontonummer: " + accountId));
+    } else {
+      setStatusError(NOTSAVED);
     }
-    var strFile = BankFileIO.putFileBank(bank);
+  }
+
+  /**
+   * Rutin som visar resultatet från en filåtgärd i status texten
+   *
+   * @param strFile - "Sparad till fil: ..." eller felmeddelande
+   */
+  private void showFileResult(String strFile) {
     if (strFile.startsWith("Sparad")) {
       setStatusOk(strFile);
     } else {
@@ -529,12 +843,45 @@ public class Main extends Application {
     }
   }
 
+  /**
+   * Rutin som visar resultatet av en filskrivning som pågår i bakgrunden. Under
+   * tiden går det att fortsätta arbeta, även med fler filer.
+   *
+   * @param result - Filnamnet när filen är skriven
+   */
+  private void showFileResultLater(CompletableFuture<String> result) {
+    setStatusOk("Sparar till fil...");
+    result.whenComplete((strFile, e) -> Platform
+        .runLater(() -> showFileResult(e == null ? strFile : "Fel vid skrivning: " + e.getMessage())));
+  }
+
+  /**
+   * Rutin som visar om en ändring sparades
+   *
+   * @param saved - Resultatet från banken
+   */
+  private void showSaved(boolean saved) {
+    if (saved) {
+      setStatusOk(SAVED);
+    } else {
+      setStatusError(NOTSAVED);
+    }
+  }
+
   /**
    * Rutin som visar transaktioner i en dialogruta
    */
   private void showTransactions() {
-    if (BankFileIO.getFileTransactions()) {
+    var file = BankFileIO.chooseTransactionFile();
+    if (file == null) {
+      return;
+    }
+    // Filen mappas in och läses bara där den visas, även stora filer öppnas direkt.
+    try {
+      TransactionViewer.show(file);
+    } catch (IOException e) {
       setStatusError("Fel vid visning av transaktioner");
+      e.printStackTrace();
     }
   }
 
@@ -545,6 +892,7 @@ public class Main extends Application {
       // Sätter en titel på fönstret till "BankSystem"
       primaryStage.setTitle("BankSystem");
 
+
       // === Meny: File ===
       for (i = 0; i < strMenuFile.length; i++) {
         menuItemFile[i] = new MenuItem(strMenuFile[i]);
@@ -572,6 +920,14 @@ public class Main extends Application {
         menuAccount.getItems().add(menuItemAccount[i]);
       }
 
+      // === Meny: Rapporter ===
+      for (i = 0; i < strMenuReport.length; i++) {
+        menuItemReport[i] = new MenuItem(strMenuReport[i]);
+        final short indexReport = i;
+        menuItemReport[i].setOnAction(_ -> bankMenuReport(indexReport));
+        menuReport.getItems().add(menuItemReport[i]);
+      }
+
       // === Initierar varje "sida" ===
       for (i = 0; i < strButton.length; i++) {
         switch (i) {
@@ -582,11 +938,23 @@ public class Main extends Application {
         }
       }
 
+      initSearchVBox();
       imageVBox.getChildren().addAll(bagImageView, piggyImageView, safeImageView);
 
       borderPane.setTop(menuBar);
       borderPane.setCenter(centralResult);
-      borderPane.setBottom(statusText);
+      progress.setPrefWidth(20);
+      progress.setPrefHeight(20);
+      cancelButton.setOnAction(_ -> {
+        if (cancelRequest != null) {
+          cancelRequest.set(true);
+          cancelButton.setDisable(true);
+          setStatusOk("Avbryter ...");
+        }
+      });
+      progress.setVisible(false);
+      cancelButton.setVisible(false);
+      borderPane.setBottom(statusBox);
       borderPane.setRight(imageVBox);
 
       // Skapar upp en scene med borderPane, bredd, höjd samt bakgrundsfärg som
@@ -599,11 +967,47 @@ public class Main extends Application {
 
       // Visa fönstret
       primaryStage.show();
+
+      // Återställ banken från senaste ögonblicksbild och journal
+      runBankTask(true, () -> {
+        bank = BankFileIO.recoverBank();
+        subscribeToBankEvents();
+        return bank.getAllCustomersList().size();
+      }, count -> setStatusOk("Banken återställd, " + count + " kunder"));
     } catch (Exception e) {
       e.printStackTrace();
     }
   }
 
+  /**
+   * Stänger banken när fönstret stängs, efter att pågående anrop är klara. Med
+   * kontona i en minnesmappad fil kan filen då mappas om vid nästa start.
+   */
+  @Override
+  public void stop() {
+    bankExecutor.shutdown();
+    try {
+      bankExecutor.awaitTermination(1, TimeUnit.MINUTES);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    if (bank != null) {
+      BankFileIO.closeBank(bank);
+    }
+  }
+
+  /**
+   * Rutin som prenumererar på händelser från den aktuella banken och stänger
+   * en tidigare prenumeration. Omgångarna lämnas över till JavaFX-tråden.
+   */
+  private void subscribeToBankEvents() {
+    if (bankEvents != null) {
+      bankEvents.close();
+    }
+    bankEvents = bank.getEvents().subscribe("ui", EVENT_QUEUE_SIZE, EVENT_BATCH_SIZE,
+        batch -> Platform.runLater(() -> onBankEvents(batch)));
+  }
+
   /**
    * Rutin som tar ut pengar från ett konto
    */
@@ -611,14 +1015,20 @@ public class Main extends Application {
     try {
       var accountId = Integer.parseInt(tfKontoNr[8].getSelectionModel().getSelectedItem());
       var amount = Integer.parseInt(tfBelopp[8].getText());
-      if (bank.withdraw(tfPNo[8].getText(), accountId, amount)) {
-        setStatusOk(SAVED);
-      } else {
-        setStatusError(NOTSAVED);
-      }
+      var pNo = tfPNo[8].getText();
+      runBankTask(false, () -> bank.withdraw(pNo, accountId, amount), this::showSaved);
     } catch (Exception e) {
       setStatusError(
           "Felaktiga värden: " + tfKontoNr[8].getSelectionModel().getSelectedItem() + "/" + tfBelopp[8].getText());
     }
   }
-}
\ No newline at end of file
+
+  /**
+   * Rutin som skriver kontoutdrag för alla kunder för förra månaden, en fil per
+   * kund. Görs i bakgrunden, en avbruten körning fortsätter nästa gång.
+   */
+  private void writeStatements() {
+    var month = LocalDate.now().minusMonths(1).withDayOfMonth(1);
+    showFileResultLater(BankFileIO.putFileStatements(bank, month, month.plusMonths(1).minusDays(1)));
+  }
+}
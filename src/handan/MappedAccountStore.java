@@ -0,0 +1,477 @@
+/**
+ * Klass som definierar en minnesmappad fil med kontonas tillstånd.
+ * @author Hans Danielsson, handan-2
+ */
+package handan;
+
+/**
+ * Importsatser
+ */
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.math.BigDecimal;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Varje konto är en post med fast bredd, 48 bytes, som adresseras med ett
+ * platsnummer:
+ *
+ * <pre>
+ *  0 kontonummer (int)   4 kontotyp (byte)   5 flaggor (byte)
+ *  8 saldo i öre        16 ränta             24 uttags- eller skuldränta
+ * 32 kreditgräns i öre  40 reserverad
+ * </pre>
+ *
+ * Räntor lagras i tiotusendels procent. Posterna ligger efter ett huvud på
+ * 4096 bytes och mappas i bitar om 65 536 poster som aldrig mappas om, så en
+ * läsare behöver inget lås. Operativsystemets sidcache avgör vilka poster som
+ * ligger i minnet, filen kan alltså vara större än heapen. Lagret väljs med
+ * systemegenskapen handan.accounts, "mapped" ger lagring i filen accounts.map i
+ * bankens katalog. Varje bank har sin egen fil, som låses så att en annan
+ * process inte kan öppna den medan den är mappad.
+ *
+ * Huvudet har bankens id, antal platser, löpnumret för senaste journalpost och
+ * om filen stängdes ordentligt:
+ *
+ * <pre>
+ *  0 MAGIC (int)   4 VERSION (int)   8 stängd (int)   12 antal platser (int)
+ * 16 löpnummer (long)   24 bankens id (längd och UTF-8)
+ * </pre>
+ *
+ * Ögonblicksbild och journal är det som gäller vid en krasch, posterna ändras
+ * innan journalen är skriven. Filen synkas vid varje ögonblicksbild och när
+ * banken stängs. Vid start mappas filen om och kontona tar tillbaka sina platser
+ * om filen stängdes ordentligt vid samma löpnummer som ögonblicksbilden, annars
+ * töms den och kontona skrivs in från ögonblicksbilden. Banken lämnar tillbaka
+ * platsen när ett konto avslutas eller skrivs ut till disk.
+ */
+public class MappedAccountStore implements Closeable {
+
+  protected static final int RATE = 16; // Kontots ränta
+  protected static final int SECOND_RATE = 24; // Uttagsränta för sparkonto, skuldränta för kreditkonto
+
+  private static final long RECORD_SIZE = 48;
+  private static final int CHUNK_BITS = 16; // 65 536 poster, 3 MB per bit
+  private static final int CHUNK_MASK = (1 << CHUNK_BITS) - 1;
+  private static final int ACCOUNT_NUMBER = 0;
+  private static final int TYPE = 4;
+  private static final int FLAGS = 5;
+  private static final int BALANCE = 8;
+  private static final int CREDIT_LIMIT = 32;
+  private static final byte WITHDRAWAL_MADE = 1; // Flagga för sparkonto
+  private static final int RATE_SCALE = 4;
+  private static final String FILE_NAME = "accounts.map";
+
+  // Huvudet
+  private static final long HEADER_SIZE = 4096;
+  private static final int MAGIC = 0x48414D53; // "HAMS"
+  private static final int VERSION = 1;
+  private static final int HEADER_MAGIC = 0;
+  private static final int HEADER_VERSION = 4;
+  private static final int HEADER_CLEAN = 8;
+  private static final int HEADER_SLOTS = 12;
+  private static final int HEADER_SEQUENCE = 16;
+  private static final int HEADER_BANK_ID = 24;
+  private static final int MAX_BANK_ID = 256;
+
+  private static final Map<Long, BigDecimal> rates = new ConcurrentHashMap<>(); // Lagrad ränta -> delad instans
+
+  /**
+   * Öppnar lagret i bankens katalog om systemegenskapen handan.accounts är
+   * "mapped"
+   *
+   * @param dir Bankens katalog
+   * @return lagret, eller null om kontona har sitt tillstånd på heapen
+   * @throws IllegalStateException om filen redan används
+   */
+  protected static MappedAccountStore open(Path dir) {
+    return "mapped".equalsIgnoreCase(System.getProperty("handan.accounts"))
+        ? new MappedAccountStore(dir.resolve(FILE_NAME))
+        : null;
+  }
+
+  private final FileChannel channel;
+  private final FileLock lock;
+  private final Arena arena = Arena.ofShared();
+  private final MemorySegment header;
+  private volatile MemorySegment[] chunks = new MemorySegment[0];
+  private int[] free = new int[16]; // Lediga platser
+  private int freeCount;
+  private int nextSlot;
+  private BitSet claimed; // Platser som kontona har tagit tillbaka, bara under remap
+  private boolean closed;
+
+  /**
+   * Öppnar filen och låser den. Innehållet används först efter remap.
+   *
+   * @param path
+   * @throws IllegalStateException om filen är låst av en annan process eller
+   *                               redan är öppen i detta program
+   */
+  protected MappedAccountStore(Path path) {
+    try {
+      channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+      FileLock taken;
+      try {
+        taken = channel.tryLock();
+      } catch (OverlappingFileLockException e) {
+        taken = null;
+      }
+      lock = taken;
+      if (lock == null) {
+        channel.close();
+        throw new IllegalStateException("Kontofilen används redan: " + path);
+      }
+      header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE, arena);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Tar en ledig plats för ett nytt konto
+   *
+   * @param accountNumber
+   * @param type
+   * @return platsen
+   */
+  protected int allocate(int accountNumber, Account.AccountType type) {
+    int slot;
+    synchronized (this) {
+      slot = freeCount > 0 ? free[--freeCount] : nextSlot++;
+      if ((slot >>> CHUNK_BITS) >= chunks.length) {
+        mapChunk();
+      }
+      if (claimed != null) {
+        claimed.set(slot); // Under remap, se endRemap
+      }
+    }
+    var segment = segment(slot);
+    var offset = offset(slot);
+    segment.asSlice(offset, RECORD_SIZE).fill((byte) 0);
+    segment.set(ValueLayout.JAVA_INT, offset + ACCOUNT_NUMBER, accountNumber);
+    segment.set(ValueLayout.JAVA_BYTE, offset + TYPE, (byte) (type.ordinal() + 1));
+    return slot;
+  }
+
+  /**
+   * Synkar posterna till disk och skriver löpnumret i huvudet. Anropas när en
+   * ögonblicksbild är sparad. Filen räknas fortfarande som öppen eftersom
+   * posterna ändras efter detta.
+   *
+   * @param journalSequence Löpnumret som ögonblicksbilden sparades vid
+   */
+  protected synchronized void checkpoint(long journalSequence) {
+    if (!closed) {
+      force(journalSequence, false);
+    }
+  }
+
+  /**
+   * Tar tillbaka ett kontos plats efter remap. Lyckas bara om posten har samma
+   * kontonummer, typ och saldo som kontot i ögonblicksbilden och ingen annan har
+   * tagit platsen.
+   *
+   * @param slot          Platsen som sparades med kontot
+   * @param accountNumber
+   * @param type
+   * @param balance       Saldot i öre enligt ögonblicksbilden
+   * @return false om kontot ska få en ny plats
+   */
+  protected synchronized boolean claim(int slot, int accountNumber, Account.AccountType type, long balance) {
+    if (claimed == null || slot < 0 || slot >= nextSlot || claimed.get(slot)) {
+      return false;
+    }
+    var segment = segment(slot);
+    var offset = offset(slot);
+    if (segment.get(ValueLayout.JAVA_INT, offset + ACCOUNT_NUMBER) != accountNumber
+        || segment.get(ValueLayout.JAVA_BYTE, offset + TYPE) != (byte) (type.ordinal() + 1)
+        || segment.get(ValueLayout.JAVA_LONG, offset + BALANCE) != balance) {
+      return false;
+    }
+    claimed.set(slot);
+    return true;
+  }
+
+  /**
+   * Stänger filen utan att markera den som stängd ordentligt, nästa start
+   * skriver in kontona från ögonblicksbilden igen
+   */
+  @Override
+  public void close() {
+    closeFile(0, false);
+  }
+
+  /**
+   * Synkar och stänger filen och markerar att posterna stämmer med
+   * ögonblicksbilden vid journalSequence. Kontona får inte användas efter detta.
+   *
+   * @param journalSequence Löpnumret för bankens senaste ögonblicksbild
+   */
+  protected void close(long journalSequence) {
+    closeFile(journalSequence, true);
+  }
+
+  /**
+   * Hjälprutin som stänger filen och släpper låset
+   *
+   * @param journalSequence
+   * @param clean           Om huvudet ska visa att filen stängdes ordentligt
+   */
+  private synchronized void closeFile(long journalSequence, boolean clean) {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try {
+      if (clean) {
+        force(journalSequence, true);
+      }
+      lock.release();
+      channel.close();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+    arena.close();
+  }
+
+  /**
+   * Avslutar remap: platser som inget konto tog tillbaka blir lediga
+   */
+  protected synchronized void endRemap() {
+    if (claimed == null) {
+      return;
+    }
+    for (var slot = claimed.nextClearBit(0); slot < nextSlot; slot = claimed.nextClearBit(slot + 1)) {
+      segment(slot).set(ValueLayout.JAVA_BYTE, offset(slot) + TYPE, (byte) 0);
+      if (freeCount == free.length) {
+        free = Arrays.copyOf(free, free.length * 2);
+      }
+      free[freeCount++] = slot;
+    }
+    claimed = null;
+  }
+
+  /**
+   * Hjälprutin som synkar posterna och huvudet till disk
+   *
+   * @param journalSequence
+   * @param clean
+   */
+  private void force(long journalSequence, boolean clean) {
+    for (var chunk : chunks) {
+      chunk.force();
+    }
+    header.set(ValueLayout.JAVA_INT, HEADER_CLEAN, clean ? 1 : 0);
+    header.set(ValueLayout.JAVA_INT, HEADER_SLOTS, nextSlot);
+    header.set(ValueLayout.JAVA_LONG, HEADER_SEQUENCE, journalSequence);
+    header.force();
+  }
+
+  /**
+   * Hämtar saldot
+   *
+   * @param slot
+   * @return öre
+   */
+  protected long getBalance(int slot) {
+    return segment(slot).get(ValueLayout.JAVA_LONG, offset(slot) + BALANCE);
+  }
+
+  /**
+   * Hämtar kreditgränsen
+   *
+   * @param slot
+   * @return kronor
+   */
+  protected BigDecimal getCreditLimit(int slot) {
+    return Account.fromMinor(segment(slot).get(ValueLayout.JAVA_LONG, offset(slot) + CREDIT_LIMIT));
+  }
+
+  /**
+   * Hämtar en ränta
+   *
+   * @param slot
+   * @param field RATE eller SECOND_RATE
+   * @return procent, delad mellan konton
+   */
+  protected BigDecimal getRate(int slot, int field) {
+    var stored = segment(slot).get(ValueLayout.JAVA_LONG, offset(slot) + field);
+    return rates.computeIfAbsent(stored,
+        s -> Account.sharedValue(BigDecimal.valueOf(s, RATE_SCALE).stripTrailingZeros()));
+  }
+
+  /**
+   * Om första uttaget från sparkontot är gjort
+   *
+   * @param slot
+   * @return true om uttag har gjorts
+   */
+  protected boolean hasMadeWithdrawal(int slot) {
+    return (segment(slot).get(ValueLayout.JAVA_BYTE, offset(slot) + FLAGS) & WITHDRAWAL_MADE) != 0;
+  }
+
+  /**
+   * Hjälprutin som mappar nästa bit av filen
+   */
+  private void mapChunk() {
+    try {
+      var size = RECORD_SIZE << CHUNK_BITS;
+      var chunk = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_SIZE + chunks.length * size, size, arena);
+      var grown = Arrays.copyOf(chunks, chunks.length + 1);
+      grown[chunks.length] = chunk;
+      chunks = grown;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Hjälprutin som ger postens position i sin bit
+   *
+   * @param slot
+   * @return position
+   */
+  private static long offset(int slot) {
+    return (slot & CHUNK_MASK) * RECORD_SIZE;
+  }
+
+  /**
+   * Hjälprutin som läser bankens id ur huvudet
+   *
+   * @return id, eller tom text om huvudet saknar id
+   */
+  private String readBankId() {
+    var length = header.get(ValueLayout.JAVA_SHORT, HEADER_BANK_ID);
+    if (length <= 0 || length > MAX_BANK_ID) {
+      return "";
+    }
+    var bytes = header.asSlice(HEADER_BANK_ID + 2, length).toArray(ValueLayout.JAVA_BYTE);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Lämnar tillbaka en plats när kontot inte längre används
+   *
+   * @param slot
+   */
+  protected synchronized void release(int slot) {
+    segment(slot).set(ValueLayout.JAVA_BYTE, offset(slot) + TYPE, (byte) 0);
+    if (freeCount == free.length) {
+      free = Arrays.copyOf(free, free.length * 2);
+    }
+    free[freeCount++] = slot;
+  }
+
+  /**
+   * Mappar om filen vid start. Stängdes filen ordentligt av samma bank vid
+   * samma löpnummer som ögonblicksbilden mappas posterna om och kontona kan ta
+   * tillbaka sina platser med claim, följt av endRemap. Annars töms filen.
+   * Anropas en gång innan lagret används.
+   *
+   * @param bankId          Bankens id
+   * @param journalSequence Löpnumret i ögonblicksbilden som lästes in
+   * @return true om posterna mappades om
+   */
+  protected synchronized boolean remap(String bankId, long journalSequence) {
+    try {
+      var slots = header.get(ValueLayout.JAVA_INT, HEADER_SLOTS);
+      var chunkSize = RECORD_SIZE << CHUNK_BITS;
+      var neededChunks = (slots + CHUNK_MASK) >>> CHUNK_BITS;
+      var matches = header.get(ValueLayout.JAVA_INT, HEADER_MAGIC) == MAGIC
+          && header.get(ValueLayout.JAVA_INT, HEADER_VERSION) == VERSION
+          && header.get(ValueLayout.JAVA_INT, HEADER_CLEAN) == 1
+          && header.get(ValueLayout.JAVA_LONG, HEADER_SEQUENCE) == journalSequence && bankId.equals(readBankId())
+          && slots >= 0 && channel.size() >= HEADER_SIZE + neededChunks * chunkSize;
+      if (matches) {
+        while (chunks.length < neededChunks) {
+          mapChunk();
+        }
+        nextSlot = slots;
+        claimed = new BitSet(slots);
+      } else {
+        channel.truncate(HEADER_SIZE);
+        header.fill((byte) 0);
+        var id = bankId.getBytes(StandardCharsets.UTF_8);
+        if (id.length <= MAX_BANK_ID) {
+          header.set(ValueLayout.JAVA_SHORT, HEADER_BANK_ID, (short) id.length);
+          MemorySegment.copy(MemorySegment.ofArray(id), 0, header, HEADER_BANK_ID + 2, id.length);
+        }
+        header.set(ValueLayout.JAVA_INT, HEADER_MAGIC, MAGIC);
+        header.set(ValueLayout.JAVA_INT, HEADER_VERSION, VERSION);
+      }
+      force(journalSequence, false); // Öppen tills den stängs
+      return matches;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Hjälprutin som ger biten där posten ligger
+   *
+   * @param slot
+   * @return segmentet
+   */
+  private MemorySegment segment(int slot) {
+    return chunks[slot >>> CHUNK_BITS];
+  }
+
+  /**
+   * Sätter saldot
+   *
+   * @param slot
+   * @param balance öre
+   */
+  protected void setBalance(int slot, long balance) {
+    segment(slot).set(ValueLayout.JAVA_LONG, offset(slot) + BALANCE, balance);
+  }
+
+  /**
+   * Sätter kreditgränsen
+   *
+   * @param slot
+   * @param creditLimit kronor
+   */
+  protected void setCreditLimit(int slot, BigDecimal creditLimit) {
+    segment(slot).set(ValueLayout.JAVA_LONG, offset(slot) + CREDIT_LIMIT, Account.toMinor(creditLimit));
+  }
+
+  /**
+   * Sätter en ränta
+   *
+   * @param slot
+   * @param field RATE eller SECOND_RATE
+   * @param rate  procent
+   */
+  protected void setRate(int slot, int field, BigDecimal rate) {
+    segment(slot).set(ValueLayout.JAVA_LONG, offset(slot) + field,
+        rate.movePointRight(RATE_SCALE).longValueExact());
+  }
+
+  /**
+   * Markerar om första uttaget från sparkontot är gjort
+   *
+   * @param slot
+   * @param made false när ett första uttag återförs
+   */
+  protected void setWithdrawalMade(int slot, boolean made) {
+    var offset = offset(slot) + FLAGS;
+    var segment = segment(slot);
+    var flags = segment.get(ValueLayout.JAVA_BYTE, offset);
+    segment.set(ValueLayout.JAVA_BYTE, offset, (byte) (made ? flags | WITHDRAWAL_MADE : flags & ~WITHDRAWAL_MADE));
+  }
+}
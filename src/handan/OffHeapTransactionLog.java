@@ -0,0 +1,165 @@
+/**
+ * Klass som definierar lagring av transaktioner utanför Java-heapen.
+ * @author Hans Danielsson, handan-2
+ */
+package handan;
+
+/**
+ * Importsatser
+ */
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.util.Objects;
+
+/**
+ * Transaktionerna ligger i ett MemorySegment med poster om 24 bytes. Minnet
+ * hanteras av en automatisk Arena och frigörs när kontot inte längre används,
+ * men det ligger utanför heapen och påverkar därför inte skräpsamlingen.
+ */
+public class OffHeapTransactionLog implements TransactionLog {
+
+  /**
+   * Versionshanterings variabel till deserialisering
+   */
+  private static final long serialVersionUID = 611114L;
+  private static final long RECORD_SIZE = 3 * Long.BYTES; // tid, belopp, saldo
+  private static final int INITIAL_CAPACITY = 4;
+
+  private transient MemorySegment segment = MemorySegment.NULL;
+  private transient int size;
+  private transient boolean frozen; // Vy från freeze(), kan inte ändras
+
+  /**
+   * Skapa en tom lagring
+   */
+  public OffHeapTransactionLog() {
+    // Tom lagring
+  }
+
+  /**
+   * Skapa en fryst vy som delar segmentet
+   *
+   * @param segment
+   * @param size
+   */
+  private OffHeapTransactionLog(MemorySegment segment, int size) {
+    this.segment = segment;
+    this.size = size;
+    this.frozen = true;
+  }
+
+  @Override
+  public void add(long time, long amount, long balance) {
+    checkWritable();
+    if ((size + 1) * RECORD_SIZE > segment.byteSize()) {
+      grow();
+    }
+    var offset = size * RECORD_SIZE;
+    segment.set(ValueLayout.JAVA_LONG, offset, time);
+    segment.set(ValueLayout.JAVA_LONG, offset + Long.BYTES, amount);
+    segment.set(ValueLayout.JAVA_LONG, offset + 2 * Long.BYTES, balance);
+    size++;
+  }
+
+  @Override
+  public void clear() {
+    checkWritable();
+    segment = MemorySegment.NULL;
+    size = 0;
+  }
+
+  /**
+   * Segmentet skrivs bara efter size och byts ut vid grow() och clear(), därför
+   * räcker det att vyn kommer ihåg segmentet och antalet.
+   */
+  @Override
+  public TransactionLog freeze() {
+    return frozen ? this : new OffHeapTransactionLog(segment, size);
+  }
+
+  @Override
+  public long getAmount(int index) {
+    return segment.get(ValueLayout.JAVA_LONG, offset(index) + Long.BYTES);
+  }
+
+  @Override
+  public long getBalance(int index) {
+    return segment.get(ValueLayout.JAVA_LONG, offset(index) + 2 * Long.BYTES);
+  }
+
+  @Override
+  public long getTime(int index) {
+    return segment.get(ValueLayout.JAVA_LONG, offset(index));
+  }
+
+  /**
+   * Hjälprutin som hindrar ändringar i en fryst vy
+   */
+  private void checkWritable() {
+    if (frozen) {
+      throw new UnsupportedOperationException("Transaktionerna är frysta");
+    }
+  }
+
+  /**
+   * Hjälprutin som dubblar utrymmet. Det gamla segmentet frigörs av den
+   * automatiska arenan när det inte längre används.
+   */
+  private void grow() {
+    var capacity = Math.max(INITIAL_CAPACITY, segment.byteSize() / RECORD_SIZE * 2);
+    var bigger = Arena.ofAuto().allocate(capacity * RECORD_SIZE, Long.BYTES);
+    MemorySegment.copy(segment, 0, bigger, 0, size * RECORD_SIZE);
+    segment = bigger;
+  }
+
+  /**
+   * Hjälprutin som räknar ut var posten börjar
+   *
+   * @param index
+   * @return offset i bytes
+   */
+  private long offset(int index) {
+    return Objects.checkIndex(index, size) * RECORD_SIZE;
+  }
+
+  /**
+   * Läser in posterna till ett nytt segment
+   *
+   * @param in
+   * @throws IOException
+   * @throws ClassNotFoundException
+   */
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    segment = MemorySegment.NULL;
+    var count = in.readInt();
+    for (var i = 0; i < count; i++) {
+      add(in.readLong(), in.readLong(), in.readLong());
+    }
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Segmentet kan inte serialiseras, posterna skrivs en och en
+   *
+   * @param out
+   * @throws IOException
+   */
+  private void writeObject(ObjectOutputStream out) throws IOException {
+    out.defaultWriteObject();
+    out.writeInt(size);
+    for (var i = 0; i < size; i++) {
+      out.writeLong(getTime(i));
+      out.writeLong(getAmount(i));
+      out.writeLong(getBalance(i));
+    }
+  }
+}
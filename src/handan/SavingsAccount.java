@@ -9,6 +9,9 @@ package handan;
 /**
  * Importsatser
  */
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.math.BigDecimal;
 import java.math.RoundingMode;
 
@@ -21,23 +24,19 @@ public class SavingsAccount extends Account {
 
   // Variabler för enskilt sparkonto
   private boolean hasMadeWithdrawal; // Första uttaget är fritt, ingen uttagsränta.
-  private final BigDecimal withdrawRate; // Ex: 2.0 = 2%
-
-  protected SavingsAccount() {
-    this(0, 2.4, 2.0, false);
-  }
+  private BigDecimal withdrawRate; // Ex: 2.0 = 2%, delad mellan konton
 
   /**
    * Skapa ett nytt Sparkonto
    *
+   * @param accountNumber       Från bankens AccountNumbers
    * @param initialBalance      Startbelopp
-   * @param interestRate        Ränta 2.4% på insatta pengar > 0
-   * @param withdrawRatePercent Uttagsränta 2% på beloppet efter första uttaget.
-   * @param addNumber           Om kontonummer ska ökas.
+   * @param interestRate        Ränta på insatta pengar
+   * @param withdrawRatePercent Uttagsränta efter första uttaget
    */
-  protected SavingsAccount(int initialBalance, double interestRate, double withdrawRatePercent, boolean addNumber) {
-    super("Sparkonto", initialBalance, interestRate, addNumber);
-    this.withdrawRate = BigDecimal.valueOf(withdrawRatePercent);
+  protected SavingsAccount(int accountNumber, int initialBalance, double interestRate, double withdrawRatePercent) {
+    super(accountNumber, initialBalance, interestRate);
+    this.withdrawRate = sharedValue(BigDecimal.valueOf(withdrawRatePercent));
   }
 
   /**
@@ -52,6 +51,81 @@ public class SavingsAccount extends Account {
     return formatCurrency(interest);
   }
 
+  @Override
+  protected AccountType getType() {
+    return AccountType.SAVINGS;
+  }
+
+  /**
+   * Hämtar uttagsräntan
+   *
+   * @return procent
+   */
+  private BigDecimal getWithdrawRate() {
+    return records == null ? withdrawRate : records.getRate(getSlot(), MappedAccountStore.SECOND_RATE);
+  }
+
+  /**
+   * Om första, avgiftsfria, uttaget redan är gjort
+   *
+   * @return hasMadeWithdrawal
+   */
+  protected boolean hasMadeWithdrawal() {
+    return records == null ? hasMadeWithdrawal : records.hasMadeWithdrawal(getSlot());
+  }
+
+  /**
+   * Flyttar också uttagsräntan och uttagsflaggan till kontots post
+   *
+   * @param write false om posten redan har värdena
+   */
+  @Override
+  protected void moveToRecord(boolean write) {
+    super.moveToRecord(write);
+    if (write) {
+      records.setRate(getSlot(), MappedAccountStore.SECOND_RATE, withdrawRate);
+      if (hasMadeWithdrawal) {
+        records.setWithdrawalMade(getSlot(), true);
+      }
+    }
+    withdrawRate = null;
+    hasMadeWithdrawal = false;
+  }
+
+  /**
+   * Läser in kontot och byter uttagsräntan mot den delade instansen
+   *
+   * @param in
+   * @throws IOException
+   * @throws ClassNotFoundException
+   */
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    withdrawRate = sharedValue(withdrawRate);
+  }
+
+  /**
+   * Återför ett uttag. Var det första uttaget blir nästa uttag fritt igen.
+   *
+   * @param debited Det som drogs från saldot vid uttaget
+   * @param first   Om uttaget var kontots första
+   * @return true om det gick bra
+   */
+  @Override
+  protected boolean reverseWithdrawal(BigDecimal debited, boolean first) {
+    if (!super.reverseWithdrawal(debited, first)) {
+      return false;
+    }
+    if (first) {
+      if (records == null) {
+        hasMadeWithdrawal = false;
+      } else {
+        records.setWithdrawalMade(getSlot(), false);
+      }
+    }
+    return true;
+  }
+
   /**
    * Gör ett uttag. Det första uttaget är avgiftsfritt. Därefter tillkommer
    * uttagsavgift.
@@ -69,15 +143,32 @@ public class SavingsAccount extends Account {
     var withdrawal = BigDecimal.valueOf(amount);
 
     // Justera beloppet efter första uttaget
-    if (hasMadeWithdrawal) {
-      var fee = withdrawal.multiply(withdrawRate).divide(BigDecimal.valueOf(100), 2, RoundingMode.HALF_UP);
+    if (hasMadeWithdrawal()) {
+      var fee = withdrawal.multiply(getWithdrawRate()).divide(BigDecimal.valueOf(100), 2, RoundingMode.HALF_UP);
       withdrawal = withdrawal.add(fee);
     }
 
     if (getAccountBalance().compareTo(withdrawal) < 0) {
       return false; // Inte tillräckligt med pengar
     }
-    hasMadeWithdrawal = true;
+    if (records == null) {
+      hasMadeWithdrawal = true;
+    } else {
+      records.setWithdrawalMade(getSlot(), true);
+    }
     return balanceSubtract(withdrawal);
   }
+
+  /**
+   * Sparar kontot med värdena från posten om lagret används
+   *
+   * @param out
+   * @throws IOException
+   */
+  private void writeObject(ObjectOutputStream out) throws IOException {
+    var fields = out.putFields();
+    fields.put("hasMadeWithdrawal", hasMadeWithdrawal());
+    fields.put("withdrawRate", getWithdrawRate());
+    out.writeFields();
+  }
 }
\ No newline at end of file
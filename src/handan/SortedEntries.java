@@ -0,0 +1,131 @@
+/**
+ * Klass som definierar en redan sorterad lista som en SortedMap.
+ * @author Hans Danielsson, handan-2
+ */
+package handan;
+
+/**
+ * Importsatser
+ */
+import java.util.AbstractList;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SortedMap;
+
+/**
+ * Konstruktorn TreeMap(SortedMap) bygger trädet direkt från nycklarna i
+ * ordning, O(n), i stället för att lägga in dem en i taget, O(n log n). Den här
+ * klassen låter en lista som redan är sorterad, t.ex. från en indexfil, skapa
+ * ett TreeMap på det sättet. Listan läses bara, delvyerna är dellistor som hittas
+ * med binärsökning.
+ *
+ * @param <K> Nyckel
+ * @param <V> Värde
+ */
+public class SortedEntries<K, V> extends AbstractMap<K, V> implements SortedMap<K, V> {
+
+  private final Comparator<? super K> comparator;
+  private final List<Map.Entry<K, V>> entries;
+  private final Comparator<? super K> order; // comparator eller naturlig ordning
+  private final List<K> keys = new AbstractList<>() {
+    @Override
+    public K get(int index) {
+      return entries.get(index).getKey();
+    }
+
+    @Override
+    public int size() {
+      return entries.size();
+    }
+  };
+
+  /**
+   * Skapa från en lista som är sorterad med comparator utan dubbletter
+   *
+   * @param comparator Samma som TreeMap har, null för naturlig ordning
+   * @param entries    Nycklar och värden i ordning
+   */
+  @SuppressWarnings("unchecked")
+  protected SortedEntries(Comparator<? super K> comparator, List<Map.Entry<K, V>> entries) {
+    this.comparator = comparator;
+    this.entries = entries;
+    this.order = comparator == null ? (Comparator<? super K>) Comparator.naturalOrder() : comparator;
+  }
+
+  @Override
+  public Comparator<? super K> comparator() {
+    return comparator;
+  }
+
+  @Override
+  public Set<Map.Entry<K, V>> entrySet() {
+    return new AbstractSet<>() {
+      @Override
+      public Iterator<Map.Entry<K, V>> iterator() {
+        return entries.iterator();
+      }
+
+      @Override
+      public int size() {
+        return entries.size();
+      }
+    };
+  }
+
+  @Override
+  public K firstKey() {
+    if (entries.isEmpty()) {
+      throw new NoSuchElementException();
+    }
+    return entries.get(0).getKey();
+  }
+
+  @Override
+  public SortedMap<K, V> headMap(K toKey) {
+    return new SortedEntries<>(comparator, entries.subList(0, indexOf(toKey)));
+  }
+
+  /**
+   * Hjälprutin som hittar första nyckeln som är key eller större
+   *
+   * @param key
+   * @return index i listan
+   */
+  private int indexOf(K key) {
+    var found = Collections.binarySearch(keys, key, order);
+    return found < 0 ? -found - 1 : found;
+  }
+
+  @Override
+  public K lastKey() {
+    if (entries.isEmpty()) {
+      throw new NoSuchElementException();
+    }
+    return entries.get(entries.size() - 1).getKey();
+  }
+
+  @Override
+  public int size() {
+    return entries.size();
+  }
+
+  @Override
+  public SortedMap<K, V> subMap(K fromKey, K toKey) {
+    if (order.compare(fromKey, toKey) > 0) {
+      throw new IllegalArgumentException("fromKey > toKey");
+    }
+    return new SortedEntries<>(comparator, entries.subList(indexOf(fromKey), indexOf(toKey)));
+  }
+
+  @Override
+  public SortedMap<K, V> tailMap(K fromKey) {
+    return new SortedEntries<>(comparator, entries.subList(indexOf(fromKey), entries.size()));
+  }
+}
@@ -0,0 +1,490 @@
+/**
+ * Klass som definierar ett sökindex över alla transaktioner i banken.
+ * @author Hans Danielsson, handan-2
+ */
+package handan;
+
+/**
+ * Importsatser
+ */
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Transaktionerna läggs i kolumner i den ordning de görs, så posterna ligger
+ * sorterade på tid och en sökning på tid är en binärsökning. De olika beloppen i
+ * öre ligger sorterade i en egen kolumn och pekar ut posterna med det beloppet,
+ * i tidsordning, en sökning på belopp är också en binärsökning. Båda sökningarna
+ * tar alltså tid i proportion till antalet träffar.
+ *
+ * Posterna behåller sin verkliga tid. Kommer en post med tidigare tid än posten
+ * före, t.ex. när klockan har ställts tillbaka, sorteras kolumnerna om innan
+ * nästa sökning. När ett konto tas bort markeras bara kontonumret, posterna
+ * rensas bort när de är fler än de som gäller.
+ *
+ * Kolumnerna och posterna per belopp sparas i indexfilen bredvid en
+ * ögonblicksbild och läses tillbaka utan att sorteras om, se write och read.
+ */
+public class TransactionIndex {
+
+  /**
+   * En träff
+   *
+   * @param personalNumber Kunden som äger kontot
+   * @param accountNumber
+   * @param time           Epoch-sekunder
+   * @param amount         Ändrat belopp i öre
+   * @param balance        Nytt saldo i öre
+   */
+  protected record Match(String personalNumber, int accountNumber, long time, long amount, long balance) {
+
+    /**
+     * Formaterar träffen, "pNr kontonr datum belopp Saldo: saldo"
+     *
+     * @return texten
+     */
+    protected String format() {
+      return personalNumber + " " + accountNumber + " " + Account.formatTransaction(time, amount, balance);
+    }
+  }
+
+  /**
+   * Posterna med ett visst belopp, i tidsordning
+   */
+  private static final class Postings {
+    private int[] ids = new int[2];
+    private int size;
+
+    private void add(int id) {
+      if (size == ids.length) {
+        ids = Arrays.copyOf(ids, size * 2);
+      }
+      ids[size++] = id;
+    }
+  }
+
+  private static final int INITIAL_CAPACITY = 1024;
+
+  /**
+   * Bygger ett index över alla transaktioner för kunderna. Transaktionerna
+   * samlas in och sorteras på tid parallellt, sorteringen är stabil så lika
+   * tider behåller kundernas ordning.
+   *
+   * @param customers
+   * @return indexet
+   */
+  protected static TransactionIndex build(List<Customer> customers) {
+    var matches = customers.parallelStream().flatMap(customer -> customer.getAccounts().stream().flatMap(account -> {
+      var log = account.getTransactionLog();
+      var result = new ArrayList<Match>(log.size());
+      for (var i = 0; i < log.size(); i++) {
+        result.add(new Match(customer.getPersonalNumber(), account.getAccountNumber(), log.getTime(i),
+            log.getAmount(i), log.getBalance(i)));
+      }
+      return result.stream();
+    })).toArray(Match[]::new);
+    Arrays.parallelSort(matches, Comparator.comparingLong(Match::time));
+
+    var index = new TransactionIndex();
+    index.ensureCapacity(matches.length);
+    for (var match : matches) {
+      index.add(match);
+    }
+    return index;
+  }
+
+  /**
+   * Läser ett index som skrivits med write
+   *
+   * @param in        Indexets del av indexfilen
+   * @param customers Bankens kunder, ägarna lagras som plats i listan
+   * @return indexet
+   * @throws IllegalArgumentException om datat inte hänger ihop
+   */
+  protected static TransactionIndex read(ByteBuffer in, List<Customer> customers) {
+    var index = new TransactionIndex();
+    var size = in.getInt();
+    var amountCount = in.getInt();
+    if (size < 0 || amountCount < 0 || in.remaining() != bytes(size, amountCount)) {
+      throw new IllegalArgumentException("Fel storlek på transaktionsindex");
+    }
+    index.ensureCapacity(size);
+    index.size = size;
+    readLongs(in, index.times, size);
+    readLongs(in, index.amounts, size);
+    readLongs(in, index.balances, size);
+    readInts(in, index.accounts, size);
+    var positions = new int[size];
+    readInts(in, positions, size);
+    for (var id = 0; id < size; id++) {
+      index.owners[id] = customers.get(positions[id]).getPersonalNumber();
+      if (id > 0 && index.times[id] < index.times[id - 1]) {
+        throw new IllegalArgumentException("Transaktionsindex är inte sorterat på tid");
+      }
+    }
+
+    var keys = new long[amountCount];
+    readLongs(in, keys, amountCount);
+    var starts = new int[amountCount + 1];
+    readInts(in, starts, amountCount + 1);
+    var ids = new int[size];
+    readInts(in, ids, size);
+    if (starts[0] != 0 || starts[amountCount] != size || Arrays.stream(ids).anyMatch(id -> id < 0 || id >= size)) {
+      throw new IllegalArgumentException("Fel poster per belopp i transaktionsindex");
+    }
+    var postings = new Postings[amountCount];
+    for (var i = 0; i < amountCount; i++) {
+      if ((i > 0 && keys[i] <= keys[i - 1]) || starts[i] >= starts[i + 1]) {
+        throw new IllegalArgumentException("Transaktionsindex är inte sorterat på belopp");
+      }
+      postings[i] = new Postings();
+      postings[i].ids = Arrays.copyOfRange(ids, starts[i], starts[i + 1]);
+      postings[i].size = starts[i + 1] - starts[i];
+    }
+    index.amountKeys = amountCount == 0 ? index.amountKeys : keys;
+    index.amountPostings = amountCount == 0 ? index.amountPostings : postings;
+    index.amountCount = amountCount;
+    return index;
+  }
+
+  /**
+   * Hjälprutin som ger antal bytes efter storlekarna i indexets del av filen
+   *
+   * @param size        Antal transaktioner
+   * @param amountCount Antal olika belopp
+   * @return bytes
+   */
+  private static long bytes(long size, long amountCount) {
+    return size * (3 * Long.BYTES + 3 * Integer.BYTES) + amountCount * (Long.BYTES + Integer.BYTES) + Integer.BYTES;
+  }
+
+  /**
+   * Hjälprutin som läser count int från bufferten
+   *
+   * @param in
+   * @param target
+   * @param count
+   */
+  private static void readInts(ByteBuffer in, int[] target, int count) {
+    in.asIntBuffer().get(target, 0, count);
+    in.position(in.position() + count * Integer.BYTES);
+  }
+
+  /**
+   * Hjälprutin som läser count long från bufferten
+   *
+   * @param in
+   * @param target
+   * @param count
+   */
+  private static void readLongs(ByteBuffer in, long[] target, int count) {
+    in.asLongBuffer().get(target, 0, count);
+    in.position(in.position() + count * Long.BYTES);
+  }
+
+  private long[] times = new long[INITIAL_CAPACITY];
+  private long[] amounts = new long[INITIAL_CAPACITY];
+  private long[] balances = new long[INITIAL_CAPACITY];
+  private int[] accounts = new int[INITIAL_CAPACITY];
+  private String[] owners = new String[INITIAL_CAPACITY];
+  private int size;
+  private long[] amountKeys = new long[INITIAL_CAPACITY]; // Olika belopp, sorterade
+  private Postings[] amountPostings = new Postings[INITIAL_CAPACITY];
+  private int amountCount;
+  private final Set<Integer> closed = new HashSet<>(); // Borttagna konton
+  private int removed; // Poster för borttagna konton
+  private boolean unsorted; // En post har tidigare tid än posten före
+
+  /**
+   * Lägger till en transaktion
+   *
+   * @param match
+   */
+  private void add(Match match) {
+    if (size == times.length) {
+      ensureCapacity(size * 2);
+    }
+    if (size > 0 && match.time() < times[size - 1]) {
+      unsorted = true;
+    }
+    times[size] = match.time();
+    amounts[size] = match.amount();
+    balances[size] = match.balance();
+    accounts[size] = match.accountNumber();
+    owners[size] = match.personalNumber();
+    postings(match.amount()).add(size);
+    size++;
+  }
+
+  /**
+   * Lägger till kontots senaste transaktion, anropas efter insättning och uttag
+   *
+   * @param customer
+   * @param account
+   */
+  protected synchronized void added(Customer customer, Account account) {
+    var log = account.getTransactionLog();
+    var last = log.size() - 1;
+    add(new Match(customer.getPersonalNumber(), account.getAccountNumber(), log.getTime(last), log.getAmount(last),
+        log.getBalance(last)));
+  }
+
+  /**
+   * Transaktioner med belopp mellan min och max som gjorts mellan from och to.
+   * Sorterade på belopp och sedan tid.
+   *
+   * @param minAmount Minsta belopp i öre, negativt för uttag
+   * @param maxAmount Största belopp i öre
+   * @param from      Epoch-sekunder, inklusive
+   * @param to        Epoch-sekunder, inklusive
+   * @return träffarna
+   */
+  protected synchronized List<Match> byAmount(long minAmount, long maxAmount, long from, long to) {
+    var result = new ArrayList<Match>();
+    if (minAmount > maxAmount) {
+      return result;
+    }
+    sortIfNeeded();
+    var first = Arrays.binarySearch(amountKeys, 0, amountCount, minAmount);
+    for (var k = first < 0 ? -first - 1 : first; k < amountCount && amountKeys[k] <= maxAmount; k++) {
+      var postings = amountPostings[k];
+      for (var i = firstAtOrAfter(postings, from); i < postings.size && times[postings.ids[i]] <= to; i++) {
+        collect(postings.ids[i], result);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Transaktioner som gjorts mellan from och to, i tidsordning
+   *
+   * @param from Epoch-sekunder, inklusive
+   * @param to   Epoch-sekunder, inklusive
+   * @return träffarna
+   */
+  protected synchronized List<Match> byTime(long from, long to) {
+    var result = new ArrayList<Match>();
+    sortIfNeeded();
+    for (var id = firstAtOrAfter(from); id < size && times[id] <= to; id++) {
+      collect(id, result);
+    }
+    return result;
+  }
+
+  /**
+   * Markerar att ett konto har tagits bort, anropas innan transaktionerna
+   * töms
+   *
+   * @param account
+   */
+  protected synchronized void closed(Account account) {
+    if (closed.add(account.getAccountNumber())) {
+      removed += account.getTransactionLog().size();
+      if (removed > size / 2 && size > INITIAL_CAPACITY) {
+        compact();
+      }
+    }
+  }
+
+  /**
+   * Hjälprutin som lägger till posten i svaret om kontot finns kvar
+   *
+   * @param id
+   * @param result
+   */
+  private void collect(int id, List<Match> result) {
+    if (closed.isEmpty() || !closed.contains(accounts[id])) {
+      result.add(new Match(owners[id], accounts[id], times[id], amounts[id], balances[id]));
+    }
+  }
+
+  /**
+   * Hjälprutin som skriver om kolumnerna utan posterna för borttagna konton och
+   * i tidsordning. Sorteringen är stabil, så poster med samma tid behåller sin
+   * ordning.
+   */
+  private void compact() {
+    var live = new ArrayList<Match>(size - removed);
+    for (var id = 0; id < size; id++) {
+      collect(id, live);
+    }
+    if (unsorted) {
+      live.sort(Comparator.comparingLong(Match::time));
+    }
+    size = 0;
+    Arrays.fill(amountPostings, 0, amountCount, null);
+    amountCount = 0;
+    closed.clear();
+    removed = 0;
+    unsorted = false;
+    live.forEach(this::add);
+    Arrays.fill(owners, size, owners.length, null);
+  }
+
+  /**
+   * Hjälprutin som gör kolumnerna minst så stora
+   *
+   * @param capacity
+   */
+  private void ensureCapacity(int capacity) {
+    if (capacity > times.length) {
+      times = Arrays.copyOf(times, capacity);
+      amounts = Arrays.copyOf(amounts, capacity);
+      balances = Arrays.copyOf(balances, capacity);
+      accounts = Arrays.copyOf(accounts, capacity);
+      owners = Arrays.copyOf(owners, capacity);
+    }
+  }
+
+  /**
+   * Hjälprutin som hittar första posten med tid from eller senare
+   *
+   * @param from
+   * @return index i kolumnerna
+   */
+  private int firstAtOrAfter(long from) {
+    int low = 0;
+    int high = size;
+    while (low < high) {
+      var mid = (low + high) >>> 1;
+      if (times[mid] < from) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * Hjälprutin som hittar första posten med tid from eller senare bland
+   * posterna för ett belopp
+   *
+   * @param postings
+   * @param from
+   * @return index i postings
+   */
+  private int firstAtOrAfter(Postings postings, long from) {
+    int low = 0;
+    int high = postings.size;
+    while (low < high) {
+      var mid = (low + high) >>> 1;
+      if (times[postings.ids[mid]] < from) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * Hjälprutin som hittar posterna för ett belopp. Ett nytt belopp sätts in på
+   * sin plats i den sorterade kolumnen.
+   *
+   * @param amount
+   * @return posterna
+   */
+  private Postings postings(long amount) {
+    var k = Arrays.binarySearch(amountKeys, 0, amountCount, amount);
+    if (k >= 0) {
+      return amountPostings[k];
+    }
+    k = -k - 1;
+    if (amountCount == amountKeys.length) {
+      amountKeys = Arrays.copyOf(amountKeys, amountCount * 2);
+      amountPostings = Arrays.copyOf(amountPostings, amountCount * 2);
+    }
+    System.arraycopy(amountKeys, k, amountKeys, k + 1, amountCount - k);
+    System.arraycopy(amountPostings, k, amountPostings, k + 1, amountCount - k);
+    amountKeys[k] = amount;
+    amountPostings[k] = new Postings();
+    amountCount++;
+    return amountPostings[k];
+  }
+
+  /**
+   * Hjälprutin som sorterar om kolumnerna om en post kommit i fel tidsordning
+   */
+  private void sortIfNeeded() {
+    if (unsorted) {
+      compact();
+    }
+  }
+
+  /**
+   * Antal transaktioner i indexet, borttagna konton oräknade
+   *
+   * @return antal
+   */
+  protected synchronized int size() {
+    return size - removed;
+  }
+
+  /**
+   * Indexet som bytes för indexfilen. Poster för borttagna konton rensas och
+   * posterna sorteras på tid först, så antalet poster är size().
+   *
+   * @param positions Kundernas plats i banken på personnummer
+   * @return bufferten, eller null om indexet inte ryms i en buffert
+   */
+  protected synchronized ByteBuffer write(Map<String, Integer> positions) {
+    if (removed > 0 || unsorted) {
+      compact();
+    }
+    var length = 2 * Integer.BYTES + bytes(size, amountCount);
+    if (length > Integer.MAX_VALUE - 8) {
+      return null;
+    }
+    var out = ByteBuffer.allocate((int) length);
+    out.putInt(size).putInt(amountCount);
+    writeLongs(out, times);
+    writeLongs(out, amounts);
+    writeLongs(out, balances);
+    writeInts(out, accounts);
+    for (var id = 0; id < size; id++) {
+      out.putInt(positions.get(owners[id]));
+    }
+    out.asLongBuffer().put(amountKeys, 0, amountCount);
+    out.position(out.position() + amountCount * Long.BYTES);
+    var start = 0;
+    for (var k = 0; k < amountCount; k++) {
+      out.putInt(start);
+      start += amountPostings[k].size;
+    }
+    out.putInt(start);
+    for (var k = 0; k < amountCount; k++) {
+      out.asIntBuffer().put(amountPostings[k].ids, 0, amountPostings[k].size);
+      out.position(out.position() + amountPostings[k].size * Integer.BYTES);
+    }
+    return out.flip();
+  }
+
+  /**
+   * Hjälprutin som skriver de size första talen
+   *
+   * @param out
+   * @param values
+   */
+  private void writeInts(ByteBuffer out, int[] values) {
+    out.asIntBuffer().put(values, 0, size);
+    out.position(out.position() + size * Integer.BYTES);
+  }
+
+  /**
+   * Hjälprutin som skriver de size första talen
+   *
+   * @param out
+   * @param values
+   */
+  private void writeLongs(ByteBuffer out, long[] values) {
+    out.asLongBuffer().put(values, 0, size);
+    out.position(out.position() + size * Long.BYTES);
+  }
+}
@@ -0,0 +1,83 @@
+/**
+ * Gränssnitt som definierar lagringen av ett kontos transaktioner.
+ * @author Hans Danielsson, handan-2
+ */
+package handan;
+
+/**
+ * Importsatser
+ */
+import java.io.Serializable;
+
+/**
+ * Transaktionerna lagras som poster med fast bredd: tid (epoch-sekunder),
+ * ändrat belopp och nytt saldo i öre. Texten "datum belopp Saldo: saldo" skapas
+ * först när transaktionen ska visas. Lagringen väljs med systemegenskapen
+ * handan.transactions, "offheap" ger lagring utanför Java-heapen.
+ */
+public interface TransactionLog extends Serializable {
+
+  /**
+   * Skapar en tom lagring enligt systemegenskapen handan.transactions
+   *
+   * @return lagringen
+   */
+  static TransactionLog create() {
+    return "offheap".equalsIgnoreCase(System.getProperty("handan.transactions")) ? new OffHeapTransactionLog()
+        : new HeapTransactionLog();
+  }
+
+  /**
+   * Lägger till en transaktion
+   *
+   * @param time    Tid i epoch-sekunder
+   * @param amount  Ändrat belopp i öre
+   * @param balance Nytt saldo i öre
+   */
+  void add(long time, long amount, long balance);
+
+  /**
+   * Tar bort alla transaktioner
+   */
+  void clear();
+
+  /**
+   * Fryser transaktionerna som de ser ut nu. Vyn delar lagringen med kontot men
+   * ser bara de transaktioner som fanns när den skapades, nya transaktioner
+   * hamnar utanför vyn. Anropas av den tråd som ändrar kontot.
+   *
+   * @return oföränderlig vy
+   */
+  TransactionLog freeze();
+
+  /**
+   * Hämtar ändrat belopp
+   *
+   * @param index
+   * @return öre
+   */
+  long getAmount(int index);
+
+  /**
+   * Hämtar nytt saldo
+   *
+   * @param index
+   * @return öre
+   */
+  long getBalance(int index);
+
+  /**
+   * Hämtar tiden för transaktionen
+   *
+   * @param index
+   * @return epoch-sekunder
+   */
+  long getTime(int index);
+
+  /**
+   * Antal transaktioner
+   *
+   * @return antal
+   */
+  int size();
+}
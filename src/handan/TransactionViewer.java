@@ -0,0 +1,318 @@
+/**
+ * Klass som definierar ett fönster för att visa stora transaktionsfiler.
+ * @author Hans Danielsson, handan-2
+ */
+package handan;
+
+/**
+ * Importsatser
+ */
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Importsatser för JavaFX med olika API rutiner
+ */
+import javafx.application.Platform;
+import javafx.collections.ObservableListBase;
+import javafx.scene.Scene;
+import javafx.scene.control.Button;
+import javafx.scene.control.Label;
+import javafx.scene.control.ListView;
+import javafx.scene.control.TextField;
+import javafx.scene.layout.BorderPane;
+import javafx.scene.layout.HBox;
+import javafx.stage.Stage;
+
+/**
+ * Visar en transaktionsfil utan att läsa in hela filen. Filen mappas in i minnet
+ * och en bakgrundstråd bygger ett index med var varje rad börjar. Listan i
+ * fönstret läser bara de rader som syns, och sökning görs direkt i den mappade
+ * filen.
+ */
+public class TransactionViewer {
+
+  private static final long REGION_SIZE = 1L << 28; // 256 MB per mappad region
+  private static final int MAX_LINE_LENGTH = 10_000; // Längre rader kortas av
+  private static final int PUBLISH_INTERVAL = 50_000; // Rader mellan uppdateringar av listan
+
+  /**
+   * Lista med raderna i filen. Storleken växer medan indexet byggs och get läser
+   * raden direkt från filen, så ListView hämtar bara de rader som syns.
+   */
+  private class LineList extends ObservableListBase<String> {
+    private int size;
+
+    @Override
+    public String get(int index) {
+      return readLine(index);
+    }
+
+    /**
+     * Visar nya rader från indexet, anropas i JavaFX-tråden.
+     *
+     * @param newSize antal indexerade rader
+     */
+    private void grow(int newSize) {
+      if (newSize > size) {
+        beginChange();
+        nextAdd(size, newSize);
+        size = newSize;
+        endChange();
+      }
+    }
+
+    @Override
+    public int size() {
+      return size;
+    }
+  }
+
+  /**
+   * Rutin som öppnar ett fönster med filen.
+   *
+   * @param file Transaktionsfilen
+   * @throws IOException om filen inte går att öppna
+   */
+  protected static void show(Path file) throws IOException {
+    new TransactionViewer(file).open();
+  }
+
+  private final Path file;
+  private final FileChannel channel;
+  private final long fileSize;
+  private final MappedByteBuffer[] regions;
+
+  /**
+   * Index med startposition för varje rad. Indexeraren skriver, JavaFX-tråden och
+   * sökningen läser upp till lineCount.
+   */
+  private volatile long[] lineStarts = new long[1024];
+  private volatile int lineCount;
+  private volatile boolean indexDone;
+  private volatile boolean closed;
+
+  private final LineList lines = new LineList();
+  private final ListView<String> listView = new ListView<>(lines);
+  private final TextField searchField = new TextField();
+  private final Label statusText = new Label();
+
+  /**
+   * Skapa ett visningsfönster för filen
+   *
+   * @param file
+   * @throws IOException
+   */
+  private TransactionViewer(Path file) throws IOException {
+    this.file = file;
+    this.channel = FileChannel.open(file, StandardOpenOption.READ);
+    this.fileSize = channel.size();
+
+    var count = (int) ((fileSize + REGION_SIZE - 1) / REGION_SIZE);
+    regions = new MappedByteBuffer[count];
+    for (var i = 0; i < count; i++) {
+      var start = i * REGION_SIZE;
+      regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(REGION_SIZE, fileSize - start));
+    }
+  }
+
+  /**
+   * Hjälprutin som läser en byte på en position i filen.
+   *
+   * @param pos
+   * @return byten
+   */
+  private byte byteAt(long pos) {
+    return regions[(int) (pos / REGION_SIZE)].get((int) (pos % REGION_SIZE));
+  }
+
+  /**
+   * Stänger filen när fönstret stängs.
+   */
+  private void close() {
+    closed = true;
+    try {
+      channel.close();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Bygger radindexet i bakgrunden och visar nya rader i listan efter hand.
+   */
+  private void buildIndex() {
+    var starts = lineStarts;
+    var count = 0;
+    if (fileSize > 0) {
+      starts[count++] = 0;
+    }
+    lineCount = count;
+
+    for (var r = 0; r < regions.length && !closed; r++) {
+      var region = regions[r];
+      var base = r * REGION_SIZE;
+      for (var i = 0; i < region.limit(); i++) {
+        if (region.get(i) == '\n' && base + i + 1 < fileSize) {
+          if (count == starts.length) {
+            starts = Arrays.copyOf(starts, count * 2);
+            lineStarts = starts;
+          }
+          starts[count++] = base + i + 1;
+          if (count % PUBLISH_INTERVAL == 0) {
+            publish(count, false);
+          }
+        }
+      }
+    }
+    publish(count, true);
+  }
+
+  /**
+   * Hjälprutin som letar upp raden som innehåller en position i filen.
+   *
+   * @param pos
+   * @return radnummer
+   */
+  private int lineOf(long pos) {
+    var found = Arrays.binarySearch(lineStarts, 0, lineCount, pos);
+    return found >= 0 ? found : -found - 2;
+  }
+
+  /**
+   * Öppnar fönstret och startar indexeringen.
+   */
+  private void open() {
+    listView.setFixedCellSize(24);
+
+    var searchButton = new Button("Sök nästa");
+    searchField.setPromptText("Sök text");
+    searchField.setOnAction(_ -> search());
+    searchButton.setOnAction(_ -> search());
+
+    var top = new HBox(10, searchField, searchButton, statusText);
+    var pane = new BorderPane();
+    pane.setTop(top);
+    pane.setCenter(listView);
+
+    var stage = new Stage();
+    stage.setTitle("Transaktioner: " + file.getFileName());
+    stage.setScene(new Scene(pane, 800, 600));
+    stage.setOnHidden(_ -> close());
+    stage.show();
+
+    var indexer = new Thread(this::buildIndex, "transaction-index");
+    indexer.setDaemon(true);
+    indexer.start();
+  }
+
+  /**
+   * Publicerar antal indexerade rader och visar dem i JavaFX-tråden.
+   *
+   * @param count
+   * @param done
+   */
+  private void publish(int count, boolean done) {
+    lineCount = count;
+    indexDone = done;
+    Platform.runLater(() -> {
+      lines.grow(count);
+      statusText.setText(String.format("%d rader%s", count, done ? "" : " (indexerar...)"));
+    });
+  }
+
+  /**
+   * Läser en rad direkt från den mappade filen.
+   *
+   * @param index radnummer
+   * @return raden
+   */
+  private String readLine(int index) {
+    if (closed || index >= lineCount) {
+      return "";
+    }
+    var start = lineStarts[index];
+    var max = (int) Math.min(fileSize - start, MAX_LINE_LENGTH);
+
+    // Läs fram till radslut, nästa rad kan vara oindexerad ännu.
+    var bytes = new byte[max];
+    var length = 0;
+    while (length < max && byteAt(start + length) != '\n') {
+      bytes[length] = byteAt(start + length);
+      length++;
+    }
+    if (length > 0 && bytes[length - 1] == '\r') {
+      length--;
+    }
+    return new String(bytes, 0, length, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Söker nästa träff efter vald rad. Sökningen görs i bakgrunden direkt i filen
+   * och listan hoppar sedan till raden med träffen.
+   */
+  private void search() {
+    var text = searchField.getText();
+    if (text == null || text.isEmpty()) {
+      return;
+    }
+    var pattern = text.getBytes(StandardCharsets.UTF_8);
+    var selected = listView.getSelectionModel().getSelectedIndex();
+    var from = selected >= 0 && selected + 1 < lineCount ? lineStarts[selected + 1] : 0;
+    statusText.setText("Söker...");
+
+    var searcher = new Thread(() -> {
+      var pos = searchFrom(from, pattern);
+      // Vänta in indexet om träffen ligger längre fram än det hunnit.
+      while (pos >= 0 && !indexDone && (lineCount == 0 || lineStarts[lineCount - 1] < pos) && !closed) {
+        try {
+          Thread.sleep(10);
+        } catch (InterruptedException e) {
+          return;
+        }
+      }
+      var line = pos < 0 ? -1 : lineOf(pos);
+      Platform.runLater(() -> {
+        if (line < 0) {
+          statusText.setText("Ingen träff för: " + text);
+          return;
+        }
+        lines.grow(lineCount);
+        listView.scrollTo(line);
+        listView.getSelectionModel().select(line);
+        statusText.setText("Träff på rad " + (line + 1));
+      });
+    }, "transaction-search");
+    searcher.setDaemon(true);
+    searcher.start();
+  }
+
+  /**
+   * Hjälprutin som söker mönstret i filen från en position.
+   *
+   * @param from    startposition
+   * @param pattern UTF-8 bytes att söka efter
+   * @return position för träffen eller -1
+   */
+  private long searchFrom(long from, byte[] pattern) {
+    var last = fileSize - pattern.length;
+    for (var pos = from; pos <= last && !closed; pos++) {
+      if (byteAt(pos) != pattern[0]) {
+        continue;
+      }
+      var i = 1;
+      while (i < pattern.length && byteAt(pos + i) == pattern[i]) {
+        i++;
+      }
+      if (i == pattern.length) {
+        return pos;
+      }
+    }
+    return -1;
+  }
+}
@@ -1,6 +1,7 @@
 module BankSystem4 {
 	requires javafx.controls;
   requires javafx.graphics;
+  requires java.management;
 	
 	opens handan to javafx.graphics, javafx.fxml;
 }